@@ -20,10 +20,17 @@
 package com.hmdm.launcher;
 
 import android.app.Application;
+import android.os.AsyncTask;
 
+import com.hmdm.launcher.json.JsonCodec;
+import com.hmdm.launcher.server.SharedHttpClient;
 import com.jakewharton.picasso.OkHttp3Downloader;
 import com.squareup.picasso.Picasso;
 
+import java.io.File;
+
+import okhttp3.Cache;
+
 public class App extends Application {
 
     @Override
@@ -31,11 +38,17 @@ public class App extends Application {
         super.onCreate();
 
         Picasso.Builder builder = new Picasso.Builder(this);
-        builder.downloader(new OkHttp3Downloader(this,Integer.MAX_VALUE));
+        // Same disk cache as OkHttp3Downloader(context, maxSize), on the shared connection pool
+        builder.downloader(new OkHttp3Downloader(SharedHttpClient.getClient().newBuilder()
+                .cache(new Cache(new File(getCacheDir(), "picasso-cache"), Integer.MAX_VALUE))
+                .build()));
         Picasso built = builder.build();
         //built.setIndicatorsEnabled(true);
         //built.setLoggingEnabled(true);
         Picasso.setSingletonInstance(built);
+
+        // Prepare the JSON codec before the first server request
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(JsonCodec::warmUp);
     }
 
 }
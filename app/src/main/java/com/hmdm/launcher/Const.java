@@ -42,6 +42,7 @@ public class Const {
     public static final String ACTION_DISABLE_BLOCK_WINDOW = "DISABLE_BLOCK_WINDOW";
 
     public static final String EXTRA_ENABLED = "ENABLED";
+    public static final String EXTRA_PUSH_INITIATED = "PUSH_INITIATED";
 
     public static long CONNECTION_TIMEOUT = 10000;
     public static long LONG_POLLING_READ_TIMEOUT = 300000;
@@ -156,6 +157,12 @@ public class Const {
 
     public static final String HEADER_IP_ADDRESS = "X-IP-Address";
     public static final String HEADER_RESPONSE_SIGNATURE = "X-Response-Signature";
+    public static final String HEADER_ETAG = "ETag";
+    // Incremental config sync: the request header announces the supported delta format, the same
+    // response header marks the data as a delta, and the hash is of the resulting config (see JsonMergePatch)
+    public static final String HEADER_CONFIG_DELTA = "X-Config-Delta";
+    public static final String HEADER_CONFIG_HASH = "X-Config-Hash";
+    public static final String CONFIG_DELTA_FORMAT = "merge-patch";
 
     public static final int SCREEN_ORIENTATION_PORTRAIT = 1;
     public static final int SCREEN_ORIENTATION_LANDSCAPE = 2;
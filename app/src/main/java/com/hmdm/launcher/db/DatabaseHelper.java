@@ -22,17 +22,46 @@ package com.hmdm.launcher.db;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The database is opened in the write-ahead logging mode, so readers never wait for writers.
+ * All writes should go through write() or post() which run them in a single writer thread.
+ * Statements compiled in the writer thread are cached (see getStatement()).
+ */
 public class DatabaseHelper extends SQLiteOpenHelper {
-    // Next version should be 10 and versions must be increased by 10
+    // Next version should be 50 and versions must be increased by 10
     // to enable custom database changes
-    private static final int DATABASE_VERSION = 10;
+    private static final int DATABASE_VERSION = 40;
     private static final String DATABASE_NAME = "hmdm.launcher.sqlite";
 
     private static DatabaseHelper sInstance;
 
+    private static volatile Thread writerThread;
+    private static final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DatabaseWriter");
+        writerThread = thread;
+        return thread;
+    });
+
+    // Accessed only in the writer thread
+    private static final Map<String, SQLiteStatement> statements = new HashMap<>();
+    private static SQLiteDatabase statementsDb;
+
+    public interface WriteTask {
+        void run(SQLiteDatabase db);
+    }
+
     private DatabaseHelper( Context context ) {
         super( context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
     }
 
     public static synchronized DatabaseHelper instance(Context context) {
@@ -42,6 +71,121 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         return sInstance;
     }
 
+    // Runs the task in the writer thread and waits for its completion.
+    // Returns false if the task has failed, or has not been run because the calling thread was interrupted
+    public boolean write(WriteTask task) {
+        if (Thread.currentThread() == writerThread) {
+            task.run(getWritableDatabase());
+            return true;
+        }
+        Future<?> future = writeExecutor.submit(() -> task.run(getWritableDatabase()));
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return true;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    // A queued task is dropped; a running one is waited for, so the result is known
+                    if (future.cancel(false)) {
+                        return false;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Runs the task in the writer thread without waiting
+    public void post(WriteTask task) {
+        writeExecutor.execute(() -> {
+            try {
+                task.run(getWritableDatabase());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // In the writer thread, returns a cached statement with cleared bindings.
+    // In other threads, compiles a new statement. Call releaseStatement() after use
+    public static SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        if (Thread.currentThread() != writerThread) {
+            return db.compileStatement(sql);
+        }
+        if (db != statementsDb) {
+            // The database has been reopened
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            statementsDb = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    public static void releaseStatement(SQLiteStatement statement) {
+        if (Thread.currentThread() != writerThread) {
+            statement.close();
+        }
+    }
+
+    public static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    public static void bindLong(SQLiteStatement statement, int index, Number value) {
+        if (value != null) {
+            statement.bindLong(index, value.longValue());
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    public static void bindBoolean(SQLiteStatement statement, int index, Boolean value) {
+        if (value != null) {
+            statement.bindLong(index, value ? 1 : 0);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    public static void bindDouble(SQLiteStatement statement, int index, Double value) {
+        if (value != null) {
+            statement.bindDouble(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Takes effect for new databases only, existing databases
+        // are converted by DatabaseRetention.enableIncrementalVacuum()
+        db.execSQL(DatabaseRetention.getEnableIncrementalVacuumSql());
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.beginTransaction();
@@ -52,6 +196,12 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.execSQL(RemoteFileTable.getCreateTableSql());
             db.execSQL(LocationTable.getCreateTableSql());
             db.execSQL(DownloadTable.getCreateTableSql());
+            db.execSQL(LogTable.getCreateTsIndexSql());
+            db.execSQL(InfoHistoryTable.getCreateTsIndexSql());
+            db.execSQL(LocationTable.getCreateTsIndexSql());
+            db.execSQL(InfoHistoryCompactTable.getCreateTableSql());
+            db.execSQL(InfoHistoryCompactTable.getCreateTsIndexSql());
+            db.execSQL(InfoHistoryCompactTable.getCreateStringsTableSql());
             db.setTransactionSuccessful();
         }
         catch ( Exception e ) {
@@ -82,6 +232,23 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             if (oldVersion < 10 && newVersion >= 10) {
                 db.execSQL(DownloadTable.getCreateTableSql());
             }
+            if (oldVersion < 20 && newVersion >= 20) {
+                db.execSQL(LogTable.getCreateTsIndexSql());
+                db.execSQL(InfoHistoryTable.getCreateTsIndexSql());
+                db.execSQL(LocationTable.getCreateTsIndexSql());
+            }
+            if (oldVersion < 30 && newVersion >= 30) {
+                db.execSQL(InfoHistoryCompactTable.getCreateTableSql());
+                db.execSQL(InfoHistoryCompactTable.getCreateTsIndexSql());
+                db.execSQL(InfoHistoryCompactTable.getCreateStringsTableSql());
+            }
+            if (oldVersion < 40 && newVersion >= 40) {
+                if (oldVersion >= 10) {
+                    // Created with the new columns above otherwise
+                    db.execSQL(DownloadTable.getAlterTableAddPartialLengthSql());
+                    db.execSQL(DownloadTable.getAlterTableAddValidatorSql());
+                }
+            }
             db.setTransactionSuccessful();
         } catch ( Exception e ) {
             e.printStackTrace();
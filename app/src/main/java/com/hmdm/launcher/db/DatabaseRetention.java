@@ -0,0 +1,244 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.db;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Retention of the tables which are filled by the device and emptied by uploads
+ * (logs, info_history, locations). If the device is offline for a long time,
+ * these tables are bounded by the item age, by the row count per table,
+ * and by the total database size. The oldest items are removed first.
+ */
+public class DatabaseRetention {
+    private static final String ENABLE_INCREMENTAL_VACUUM = "PRAGMA auto_vacuum = INCREMENTAL";
+    private static final String GET_AUTO_VACUUM = "PRAGMA auto_vacuum";
+    private static final String INCREMENTAL_VACUUM = "PRAGMA incremental_vacuum(%d)";
+    private static final String GET_PAGE_SIZE = "PRAGMA page_size";
+    private static final String GET_PAGE_COUNT = "PRAGMA page_count";
+    private static final String GET_FREELIST_COUNT = "PRAGMA freelist_count";
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // Max size of the database file, in bytes
+    public static final long MAX_DATABASE_SIZE = 20 * 1024 * 1024L;
+
+    // Share of the rows removed from each table in one round when the database is too big
+    private static final int OVERSIZE_EVICTION_PERCENT = 10;
+    private static final int MAX_OVERSIZE_ROUNDS = 5;
+
+    // Max amount of free pages released by one run
+    private static final int VACUUM_PAGES_PER_RUN = 1000;
+
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+
+    public static class Policy {
+        private final String table;
+        private final long maxAgeMs;
+        private final long maxRows;
+
+        public Policy(String table, long maxAgeMs, long maxRows) {
+            this.table = table;
+            this.maxAgeMs = maxAgeMs;
+            this.maxRows = maxRows;
+        }
+
+        public String getTable() {
+            return table;
+        }
+
+        public long getMaxAgeMs() {
+            return maxAgeMs;
+        }
+
+        public long getMaxRows() {
+            return maxRows;
+        }
+    }
+
+    // Age limits are the same as in deleteOldItems() of each table
+    private static final Policy[] POLICIES = new Policy[] {
+            new Policy("logs", 7 * 24 * HOUR_MS, 10000),
+            new Policy("info_history", 24 * HOUR_MS, 5000),
+            new Policy("locations", 24 * HOUR_MS, 5000)
+    };
+
+    // The compact history is a delta chain, so its rows are removed by InfoHistoryCompactTable
+    // which rewrites the first remaining row as a keyframe
+    private static final String COMPACT_HISTORY_TABLE = "info_history_compact";
+    private static final long COMPACT_HISTORY_MAX_AGE_MS = 24 * HOUR_MS;
+    private static final long COMPACT_HISTORY_MAX_ROWS = 5000;
+
+    // Max rows removed by one write task
+    private static final int DELETE_CHUNK_ROWS = 500;
+
+    private interface Eviction {
+        // Removes up to limit oldest rows, returns the number of removed rows
+        int evict(SQLiteDatabase db, int limit);
+    }
+
+    public static String getEnableIncrementalVacuumSql() {
+        return ENABLE_INCREMENTAL_VACUUM;
+    }
+
+    // Returns the number of removed rows. Rows are removed by small write tasks,
+    // so other writes are not blocked for long. Must not be called in the writer thread
+    public static int enforce(DatabaseHelper helper) {
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        for (Policy policy : POLICIES) {
+            final String table = policy.getTable();
+            final long ts = now - policy.getMaxAgeMs();
+            removed += evict(helper, (db, limit) -> deleteOlderThan(db, table, ts, limit), Long.MAX_VALUE);
+            removed += evict(helper, (db, limit) -> deleteOldest(db, table, limit),
+                    getRowCount(helper.getReadableDatabase(), table) - policy.getMaxRows());
+        }
+        final long compactTs = now - COMPACT_HISTORY_MAX_AGE_MS;
+        removed += evict(helper, (db, limit) -> InfoHistoryCompactTable.deleteOlderThan(db, compactTs, limit), Long.MAX_VALUE);
+        removed += evict(helper, InfoHistoryCompactTable::deleteOldest,
+                getRowCount(helper.getReadableDatabase(), COMPACT_HISTORY_TABLE) - COMPACT_HISTORY_MAX_ROWS);
+
+        for (int round = 0; round < MAX_OVERSIZE_ROUNDS; round++) {
+            SQLiteDatabase readableDb = helper.getReadableDatabase();
+            if (getUsedSize(readableDb) <= MAX_DATABASE_SIZE) {
+                break;
+            }
+            int removedInRound = 0;
+            for (Policy policy : POLICIES) {
+                final String table = policy.getTable();
+                removedInRound += evict(helper, (db, limit) -> deleteOldest(db, table, limit),
+                        getOversizeEvictionCount(readableDb, table));
+            }
+            removedInRound += evict(helper, InfoHistoryCompactTable::deleteOldest,
+                    getOversizeEvictionCount(readableDb, COMPACT_HISTORY_TABLE));
+            if (removedInRound == 0) {
+                break;
+            }
+            removed += removedInRound;
+        }
+        return removed;
+    }
+
+    // Existing databases are created without auto_vacuum, and switching it on
+    // requires a full VACUUM which is done once (see enableIncrementalVacuum())
+    public static boolean isIncrementalVacuumEnabled(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, GET_AUTO_VACUUM, null) == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    // Rewrites the whole database file, so it is run as a separate write task. Must be called outside a transaction
+    public static void enableIncrementalVacuum(SQLiteDatabase db) {
+        try {
+            if (!isIncrementalVacuumEnabled(db)) {
+                db.execSQL(ENABLE_INCREMENTAL_VACUUM);
+                db.execSQL("VACUUM");
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void incrementalVacuum(SQLiteDatabase db) {
+        // incremental_vacuum returns a row per released page, so it must be read as a query
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(String.format(INCREMENTAL_VACUUM, VACUUM_PAGES_PER_RUN), null);
+            while (cursor.moveToNext()) {
+                // Pages are released while the result is read
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    // Row count per retained table, for diagnostics
+    public static Map<String, Long> getTableSizes(SQLiteDatabase db) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Policy policy : POLICIES) {
+            result.put(policy.getTable(), getRowCount(db, policy.getTable()));
+        }
+        result.put(COMPACT_HISTORY_TABLE, getRowCount(db, COMPACT_HISTORY_TABLE));
+        return result;
+    }
+
+    // Size of the database file excluding free pages, in bytes
+    public static long getUsedSize(SQLiteDatabase db) {
+        long pageSize = DatabaseUtils.longForQuery(db, GET_PAGE_SIZE, null);
+        long pageCount = DatabaseUtils.longForQuery(db, GET_PAGE_COUNT, null);
+        long freePages = DatabaseUtils.longForQuery(db, GET_FREELIST_COUNT, null);
+        return (pageCount - freePages) * pageSize;
+    }
+
+    private static long getRowCount(SQLiteDatabase db, String table) {
+        return DatabaseUtils.queryNumEntries(db, table);
+    }
+
+    private static long getOversizeEvictionCount(SQLiteDatabase db, String table) {
+        long count = getRowCount(db, table);
+        return count > 0 ? Math.max(1, count * OVERSIZE_EVICTION_PERCENT / 100) : 0;
+    }
+
+    // Removes up to count rows by chunks, each chunk in its own write task
+    private static int evict(DatabaseHelper helper, Eviction eviction, long count) {
+        int removed = 0;
+        while (count > 0) {
+            final int limit = (int) Math.min(count, DELETE_CHUNK_ROWS);
+            final int[] result = new int[1];
+            if (!helper.write(db -> result[0] = eviction.evict(db, limit))) {
+                break;
+            }
+            removed += result[0];
+            count -= result[0];
+            if (result[0] < limit) {
+                break;
+            }
+        }
+        return removed;
+    }
+
+    private static int deleteOlderThan(SQLiteDatabase db, String table, long ts, int limit) {
+        try {
+            return db.delete(table, "_id IN (SELECT _id FROM " + table + " WHERE ts < ? ORDER BY ts LIMIT ?)",
+                    new String[] { Long.toString(ts), Integer.toString(limit) });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+
+    // Uses the ts index to find the oldest rows
+    private static int deleteOldest(SQLiteDatabase db, String table, long count) {
+        try {
+            return db.delete(table, "_id IN (SELECT _id FROM " + table + " ORDER BY ts LIMIT ?)",
+                    new String[] { Long.toString(count) });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+}
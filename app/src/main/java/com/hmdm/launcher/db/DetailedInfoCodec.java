@@ -0,0 +1,311 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.db;
+
+import com.hmdm.launcher.json.DetailedInfo;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Binary record format of DetailedInfo samples used by InfoHistoryCompactTable.
+ *
+ * A sample is flattened into FIELD_COUNT values. A record contains a bitmap of the fields
+ * changed against the base sample, a bitmap of the changed fields which became null,
+ * and the new values of the other changed fields: integers as zigzag varint deltas,
+ * strings as varint ids in a string dictionary, booleans as one byte, doubles as 8 bytes.
+ * A keyframe record has no base, so all non-null fields are written.
+ */
+public class DetailedInfoCodec {
+
+    public interface StringDictionary {
+        long getId(String value);
+        String getValue(long id);
+    }
+
+    private static final byte TYPE_LONG = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_STRING = 2;
+    private static final byte TYPE_DOUBLE = 3;
+
+    // Field order is the same as the column order in InfoHistoryTable
+    private static final byte[] FIELD_TYPES = new byte[] {
+            // Device
+            TYPE_LONG, TYPE_STRING, TYPE_BOOLEAN, TYPE_BOOLEAN, TYPE_STRING,
+            TYPE_BOOLEAN, TYPE_LONG, TYPE_BOOLEAN, TYPE_BOOLEAN, TYPE_BOOLEAN,
+            // Wifi
+            TYPE_LONG, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_LONG, TYPE_LONG,
+            // Gps
+            TYPE_STRING, TYPE_STRING, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE, TYPE_DOUBLE,
+            // Mobile
+            TYPE_LONG, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_BOOLEAN,
+            TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_LONG, TYPE_LONG,
+            // Mobile 2
+            TYPE_LONG, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_BOOLEAN,
+            TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_LONG, TYPE_LONG,
+            // Device memory
+            TYPE_LONG, TYPE_LONG
+    };
+
+    public static final int FIELD_COUNT = FIELD_TYPES.length;
+
+    public static Object[] flatten(DetailedInfo item) {
+        Object[] values = new Object[FIELD_COUNT];
+        int n = 0;
+
+        DetailedInfo.Device device = item.getDevice();
+        if (device != null) {
+            values[n] = toLong(device.getBatteryLevel());
+            values[n + 1] = device.getBatteryCharging();
+            values[n + 2] = device.getWifi();
+            values[n + 3] = device.getGps();
+            values[n + 4] = device.getIp();
+            values[n + 5] = device.getKeyguard();
+            values[n + 6] = toLong(device.getRingVolume());
+            values[n + 7] = device.getMobileData();
+            values[n + 8] = device.getBluetooth();
+            values[n + 9] = device.getUsbStorage();
+            values[44] = toLong(device.getMemoryTotal());
+            values[45] = toLong(device.getMemoryAvailable());
+        }
+        n += 10;
+
+        DetailedInfo.Wifi wifi = item.getWifi();
+        if (wifi != null) {
+            values[n] = toLong(wifi.getRssi());
+            values[n + 1] = wifi.getSsid();
+            values[n + 2] = wifi.getSecurity();
+            values[n + 3] = wifi.getState();
+            values[n + 4] = wifi.getIp();
+            values[n + 5] = wifi.getTx();
+            values[n + 6] = wifi.getRx();
+        }
+        n += 7;
+
+        DetailedInfo.Gps gps = item.getGps();
+        if (gps != null) {
+            values[n] = gps.getState();
+            values[n + 1] = gps.getProvider();
+            values[n + 2] = gps.getLat();
+            values[n + 3] = gps.getLon();
+            values[n + 4] = gps.getAlt();
+            values[n + 5] = gps.getSpeed();
+            values[n + 6] = gps.getCourse();
+        }
+        n += 7;
+
+        n = flattenMobile(item.getMobile(), values, n);
+        flattenMobile(item.getMobile2(), values, n);
+        return values;
+    }
+
+    public static DetailedInfo unflatten(long id, long ts, Object[] values) {
+        DetailedInfo item = new DetailedInfo();
+        item.setId(id);
+        item.setTs(ts);
+        int n = 0;
+
+        DetailedInfo.Device device = new DetailedInfo.Device();
+        device.setBatteryLevel(toInteger(values[n]));
+        device.setBatteryCharging((String) values[n + 1]);
+        device.setWifi((Boolean) values[n + 2]);
+        device.setGps((Boolean) values[n + 3]);
+        device.setIp((String) values[n + 4]);
+        device.setKeyguard((Boolean) values[n + 5]);
+        device.setRingVolume(toInteger(values[n + 6]));
+        device.setMobileData((Boolean) values[n + 7]);
+        device.setBluetooth((Boolean) values[n + 8]);
+        device.setUsbStorage((Boolean) values[n + 9]);
+        device.setMemoryTotal(toInteger(values[44]));
+        device.setMemoryAvailable(toInteger(values[45]));
+        item.setDevice(device);
+        n += 10;
+
+        DetailedInfo.Wifi wifi = new DetailedInfo.Wifi();
+        wifi.setRssi(toInteger(values[n]));
+        wifi.setSsid((String) values[n + 1]);
+        wifi.setSecurity((String) values[n + 2]);
+        wifi.setState((String) values[n + 3]);
+        wifi.setIp((String) values[n + 4]);
+        wifi.setTx((Long) values[n + 5]);
+        wifi.setRx((Long) values[n + 6]);
+        item.setWifi(wifi);
+        n += 7;
+
+        DetailedInfo.Gps gps = new DetailedInfo.Gps();
+        gps.setState((String) values[n]);
+        gps.setProvider((String) values[n + 1]);
+        gps.setLat((Double) values[n + 2]);
+        gps.setLon((Double) values[n + 3]);
+        gps.setAlt((Double) values[n + 4]);
+        gps.setSpeed((Double) values[n + 5]);
+        gps.setCourse((Double) values[n + 6]);
+        item.setGps(gps);
+        n += 7;
+
+        DetailedInfo.Mobile mobile = new DetailedInfo.Mobile();
+        n = unflattenMobile(values, n, mobile);
+        item.setMobile(mobile);
+        DetailedInfo.Mobile mobile2 = new DetailedInfo.Mobile();
+        unflattenMobile(values, n, mobile2);
+        item.setMobile2(mobile2);
+        return item;
+    }
+
+    // If base is null, a keyframe is encoded
+    public static byte[] encode(Object[] values, Object[] base, StringDictionary dictionary) {
+        long changed = 0;
+        long nulls = 0;
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            Object baseValue = base != null ? base[i] : null;
+            Object value = values[i];
+            if (value == null ? baseValue != null : !value.equals(baseValue)) {
+                changed |= 1L << i;
+                if (value == null) {
+                    nulls |= 1L << i;
+                }
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeVarint(out, changed);
+        writeVarint(out, nulls);
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if ((changed & (1L << i)) == 0 || values[i] == null) {
+                continue;
+            }
+            Object baseValue = base != null ? base[i] : null;
+            switch (FIELD_TYPES[i]) {
+                case TYPE_LONG:
+                    long delta = (Long) values[i] - (baseValue != null ? (Long) baseValue : 0);
+                    writeVarint(out, (delta << 1) ^ (delta >> 63));
+                    break;
+                case TYPE_BOOLEAN:
+                    out.write((Boolean) values[i] ? 1 : 0);
+                    break;
+                case TYPE_STRING:
+                    writeVarint(out, dictionary.getId((String) values[i]));
+                    break;
+                case TYPE_DOUBLE:
+                    long bits = Double.doubleToLongBits((Double) values[i]);
+                    for (int b = 0; b < 8; b++) {
+                        out.write((int) (bits >>> (8 * b)));
+                    }
+                    break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // If base is null, the record must be a keyframe
+    public static Object[] decode(byte[] data, Object[] base, StringDictionary dictionary) {
+        Object[] values = base != null ? base.clone() : new Object[FIELD_COUNT];
+        int[] pos = new int[] { 0 };
+        long changed = readVarint(data, pos);
+        long nulls = readVarint(data, pos);
+        for (int i = 0; i < FIELD_COUNT; i++) {
+            if ((changed & (1L << i)) == 0) {
+                continue;
+            }
+            if ((nulls & (1L << i)) != 0) {
+                values[i] = null;
+                continue;
+            }
+            switch (FIELD_TYPES[i]) {
+                case TYPE_LONG:
+                    long zigzag = readVarint(data, pos);
+                    long delta = (zigzag >>> 1) ^ -(zigzag & 1);
+                    values[i] = (values[i] != null ? (Long) values[i] : 0) + delta;
+                    break;
+                case TYPE_BOOLEAN:
+                    values[i] = data[pos[0]++] != 0;
+                    break;
+                case TYPE_STRING:
+                    values[i] = dictionary.getValue(readVarint(data, pos));
+                    break;
+                case TYPE_DOUBLE:
+                    long bits = 0;
+                    for (int b = 0; b < 8; b++) {
+                        bits |= (data[pos[0]++] & 0xFFL) << (8 * b);
+                    }
+                    values[i] = Double.longBitsToDouble(bits);
+                    break;
+            }
+        }
+        return values;
+    }
+
+    private static int flattenMobile(DetailedInfo.Mobile mobile, Object[] values, int n) {
+        if (mobile != null) {
+            values[n] = toLong(mobile.getRssi());
+            values[n + 1] = mobile.getCarrier();
+            values[n + 2] = mobile.getNumber();
+            values[n + 3] = mobile.getImsi();
+            values[n + 4] = mobile.getData();
+            values[n + 5] = mobile.getIp();
+            values[n + 6] = mobile.getState();
+            values[n + 7] = mobile.getSimState();
+            values[n + 8] = mobile.getTx();
+            values[n + 9] = mobile.getRx();
+        }
+        return n + 10;
+    }
+
+    private static int unflattenMobile(Object[] values, int n, DetailedInfo.Mobile mobile) {
+        mobile.setRssi(toInteger(values[n]));
+        mobile.setCarrier((String) values[n + 1]);
+        mobile.setNumber((String) values[n + 2]);
+        mobile.setImsi((String) values[n + 3]);
+        mobile.setData((Boolean) values[n + 4]);
+        mobile.setIp((String) values[n + 5]);
+        mobile.setState((String) values[n + 6]);
+        mobile.setSimState((String) values[n + 7]);
+        mobile.setTx((Long) values[n + 8]);
+        mobile.setRx((Long) values[n + 9]);
+        return n + 10;
+    }
+
+    private static Long toLong(Integer value) {
+        return value != null ? value.longValue() : null;
+    }
+
+    private static Integer toInteger(Object value) {
+        return value != null ? ((Long) value).intValue() : null;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] pos) {
+        long result = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
@@ -23,11 +23,14 @@ import android.annotation.SuppressLint;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.hmdm.launcher.json.Download;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class DownloadTable {
     private static final String CREATE_TABLE =
@@ -38,45 +41,75 @@ public class DownloadTable {
                     "attempts INTEGER, " +
                     "lastAttemptTime INTEGER, " +
                     "downloaded INTEGER, " +
-                    "installed INTEGER " +
+                    "installed INTEGER, " +
+                    "partialLength INTEGER DEFAULT 0, " +
+                    "validator TEXT " +
                     ")";
+    private static final String ALTER_TABLE_ADD_PARTIAL_LENGTH =
+            "ALTER TABLE downloads ADD COLUMN partialLength INTEGER DEFAULT 0";
+    private static final String ALTER_TABLE_ADD_VALIDATOR =
+            "ALTER TABLE downloads ADD COLUMN validator TEXT";
     private static final String INSERT_DOWNLOAD =
-            "INSERT OR REPLACE INTO downloads(url, path, attempts, lastAttemptTime, downloaded, installed) VALUES (?, ?, ?, ?, ?, ?)";
+            "INSERT OR REPLACE INTO downloads(url, path, attempts, lastAttemptTime, downloaded, installed, partialLength, validator) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_DOWNLOAD =
             "DELETE FROM downloads WHERE _id=?";
     private static final String DELETE_DOWNLOAD_BY_PATH =
             "DELETE FROM downloads WHERE path=?";
     private static final String SELECT_ALL_DOWNLOADS =
             "SELECT * FROM downloads";
-    private static final String SELECT_DOWNLOAD_BY_PATH =
-            "SELECT * FROM downloads WHERE path=?";
     private static final String DELETE_ALL_DOWNLOADS =
             "DELETE FROM downloads";
 
+    // Write-through cache of all rows by path, loaded at the first lookup.
+    // Items are copied in and out because the callers modify them
+    private static Map<String, Download> cache;
+
     public static String getCreateTableSql() {
         return CREATE_TABLE;
     }
 
+    public static String getAlterTableAddPartialLengthSql() {
+        return ALTER_TABLE_ADD_PARTIAL_LENGTH;
+    }
+
+    public static String getAlterTableAddValidatorSql() {
+        return ALTER_TABLE_ADD_VALIDATOR;
+    }
+
     public static void insert(SQLiteDatabase db, Download item) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_DOWNLOAD);
         try {
-            db.execSQL(INSERT_DOWNLOAD, new String[]{
-                    item.getUrl(),
-                    item.getPath(),
-                    Long.toString(item.getAttempts()),
-                    Long.toString(item.getLastAttemptTime()),
-                    item.isDownloaded() ? "1" : "0",
-                    item.isInstalled() ? "1" : "0"
-            });
+            DatabaseHelper.bindString(statement, 1, item.getUrl());
+            DatabaseHelper.bindString(statement, 2, item.getPath());
+            statement.bindLong(3, item.getAttempts());
+            statement.bindLong(4, item.getLastAttemptTime());
+            statement.bindLong(5, item.isDownloaded() ? 1 : 0);
+            statement.bindLong(6, item.isInstalled() ? 1 : 0);
+            statement.bindLong(7, item.getPartialLength());
+            DatabaseHelper.bindString(statement, 8, item.getValidator());
+            long id = statement.executeInsert();
+            Download cached = new Download(item);
+            cached.setId(id);
+            cachePut(cached);
         } catch (SQLException e) {
             e.printStackTrace();
+            invalidateCache();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
     public static void deleteByPath(SQLiteDatabase db, String path) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_DOWNLOAD_BY_PATH);
         try {
-            db.execSQL(DELETE_DOWNLOAD_BY_PATH, new String[]{ path });
+            DatabaseHelper.bindString(statement, 1, path);
+            statement.executeUpdateDelete();
+            cacheRemove(path);
         } catch (SQLException e) {
             e.printStackTrace();
+            invalidateCache();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
@@ -86,6 +119,7 @@ public class DownloadTable {
         } catch (SQLException e) {
             e.printStackTrace();
         }
+        invalidateCache();
     }
 
     @SuppressLint("Range")
@@ -105,16 +139,36 @@ public class DownloadTable {
         return result;
     }
 
-    @SuppressLint("Range")
     public static Download selectByPath(SQLiteDatabase db, String path) {
-        Cursor cursor = db.rawQuery(SELECT_DOWNLOAD_BY_PATH, new String[] { path });
+        if (path == null) {
+            return null;
+        }
+        synchronized (DownloadTable.class) {
+            if (cache == null) {
+                Map<String, Download> items = new HashMap<>();
+                for (Download item : selectAll(db)) {
+                    items.put(item.getPath(), item);
+                }
+                cache = items;
+            }
+            Download item = cache.get(path);
+            return item != null ? new Download(item) : null;
+        }
+    }
+
+    public static synchronized void invalidateCache() {
+        cache = null;
+    }
 
-        Download item = null;
-        if (cursor.moveToFirst()) {
-            item = new Download(cursor);
+    private static synchronized void cachePut(Download item) {
+        if (cache != null && item.getPath() != null) {
+            cache.put(item.getPath(), item);
         }
-        cursor.close();
+    }
 
-        return item;
+    private static synchronized void cacheRemove(String path) {
+        if (cache != null) {
+            cache.remove(path);
+        }
     }
 }
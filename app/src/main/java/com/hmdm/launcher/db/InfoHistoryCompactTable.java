@@ -0,0 +1,335 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.db;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.hmdm.launcher.json.DetailedInfo;
+import com.hmdm.launcher.json.JsonCodec;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Compact storage of DetailedInfo history samples (see DetailedInfoCodec).
+ * Each row is a delta against the previous row (referenced by the "base" column),
+ * every KEYFRAME_INTERVAL rows a self-contained keyframe (base = 0) is written.
+ * When uploaded rows are deleted, the first remaining row is rewritten as a keyframe,
+ * so the remaining chain can always be decoded.
+ */
+public class InfoHistoryCompactTable {
+    private static final String CREATE_TABLE =
+            "CREATE TABLE info_history_compact (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "ts INTEGER, " +
+                    "base INTEGER, " +
+                    "data BLOB" +
+                    ")";
+    private static final String CREATE_TS_INDEX =
+            "CREATE INDEX IF NOT EXISTS info_history_compact_ts ON info_history_compact(ts)";
+    private static final String CREATE_STRINGS_TABLE =
+            "CREATE TABLE info_history_strings (" +
+                    "_id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "value TEXT UNIQUE" +
+                    ")";
+    private static final String INSERT_INFO =
+            "INSERT INTO info_history_compact(ts, base, data) VALUES (?, ?, ?)";
+    private static final String UPDATE_TO_KEYFRAME =
+            "UPDATE info_history_compact SET base = 0, data = ? WHERE _id = ?";
+    // Decoding starts from the last keyframe before the first selected row
+    private static final String SELECT_START_KEYFRAME =
+            "SELECT MAX(_id) FROM info_history_compact WHERE base = 0 AND _id <= " +
+            "(SELECT MIN(_id) FROM info_history_compact WHERE _id > ?)";
+    private static final String SELECT_RANGE =
+            "SELECT _id, ts, base, data FROM info_history_compact WHERE _id >= ? AND _id <= ? ORDER BY _id";
+    private static final String SELECT_NEXT_ID =
+            "SELECT MIN(_id) FROM info_history_compact WHERE _id > ?";
+    private static final String SELECT_LAST_OLD_ID =
+            "SELECT MAX(_id) FROM info_history_compact WHERE ts < ?";
+    private static final String SELECT_NTH_ID =
+            "SELECT _id FROM info_history_compact ORDER BY _id LIMIT 1 OFFSET ?";
+    private static final String DELETE_INFO_UP_TO =
+            "DELETE FROM info_history_compact WHERE _id <= ?";
+    private static final String DELETE_ALL_STRINGS =
+            "DELETE FROM info_history_strings";
+    private static final String INSERT_STRING =
+            "INSERT INTO info_history_strings(value) VALUES (?)";
+    private static final String SELECT_ALL_STRINGS =
+            "SELECT _id, value FROM info_history_strings";
+
+    public static final int KEYFRAME_INTERVAL = 30;
+
+    private static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
+
+    // Previously inserted sample, deltas are encoded against it
+    private static long lastId;
+    private static Object[] lastValues;
+    private static int rowsSinceKeyframe;
+
+    private static Map<String, Long> stringIds;
+    private static Map<Long, String> strings;
+
+    public static String getCreateTableSql() {
+        return CREATE_TABLE;
+    }
+
+    public static String getCreateTsIndexSql() {
+        return CREATE_TS_INDEX;
+    }
+
+    public static String getCreateStringsTableSql() {
+        return CREATE_STRINGS_TABLE;
+    }
+
+    public static synchronized void insert(SQLiteDatabase db, DetailedInfo item) {
+        Object[] values = DetailedInfoCodec.flatten(item);
+        boolean keyframe = lastValues == null || rowsSinceKeyframe >= KEYFRAME_INTERVAL - 1;
+        db.beginTransaction();
+        try {
+            byte[] data = DetailedInfoCodec.encode(values, keyframe ? null : lastValues, getDictionary(db));
+            SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_INFO);
+            statement.bindLong(1, item.getTs());
+            statement.bindLong(2, keyframe ? 0 : lastId);
+            statement.bindBlob(3, data);
+            long id = statement.executeInsert();
+            DatabaseHelper.releaseStatement(statement);
+            db.setTransactionSuccessful();
+
+            lastId = id;
+            lastValues = values;
+            rowsSinceKeyframe = keyframe ? 0 : rowsSinceKeyframe + 1;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            resetEncoder();
+            stringIds = null;
+            strings = null;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private interface ItemConsumer {
+        void accept(DetailedInfo item) throws IOException;
+    }
+
+    // Selects the rows after the watermark, ordered by _id
+    public static synchronized List<DetailedInfo> select(SQLiteDatabase db, long afterId, int limit) {
+        List<DetailedInfo> result = new LinkedList<>();
+        try {
+            decodeRange(db, afterId, Long.MAX_VALUE, limit, result::add);
+        } catch (IOException e) {
+            // Not thrown when adding to the list
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    // Streams the rows in the range (afterId, upToId] to the server as a JSON array.
+    // The rows are decoded one by one while the body is written, so the memory usage
+    // doesn't depend on the row count (same as CursorJsonRequestBody does)
+    public static RequestBody createUploadBody(final SQLiteDatabase db, final long afterId, final long upToId) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return MEDIA_TYPE_JSON;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                JsonGenerator generator = JsonCodec.getFactory().createGenerator(sink.outputStream(), JsonEncoding.UTF8);
+                generator.writeStartArray();
+                decodeRange(db, afterId, upToId, Integer.MAX_VALUE,
+                        item -> JsonCodec.getDetailedInfoWriter().writeValue(generator, item));
+                generator.writeEndArray();
+                // Do not close the generator: it would close the sink
+                generator.flush();
+            }
+        };
+    }
+
+    // Passes up to limit rows in the range (afterId, upToId] to the consumer, ordered by _id.
+    // Decoding starts from the last keyframe before the range, the rows are read until upToId only
+    private static void decodeRange(SQLiteDatabase db, long afterId, long upToId, int limit,
+                                    ItemConsumer consumer) throws IOException {
+        long startId = longForQuery(db, SELECT_START_KEYFRAME, afterId);
+        if (startId <= 0) {
+            // No keyframe: rows until the next keyframe can't be decoded and are skipped
+            startId = afterId + 1;
+        }
+
+        Cursor cursor = db.rawQuery(SELECT_RANGE, new String[] { Long.toString(startId), Long.toString(upToId) });
+        try {
+            long prevId = 0;
+            Object[] prevValues = null;
+            int count = 0;
+            while (count < limit && cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                long base = cursor.getLong(2);
+                Object[] values = null;
+                if (base == 0 || (prevValues != null && base == prevId)) {
+                    // The string dictionary is shared with the writer thread
+                    synchronized (InfoHistoryCompactTable.class) {
+                        values = DetailedInfoCodec.decode(cursor.getBlob(3), base == 0 ? null : prevValues, getDictionary(db));
+                    }
+                }
+                if (values != null && id > afterId) {
+                    consumer.accept(DetailedInfoCodec.unflatten(id, cursor.getLong(1), values));
+                    count++;
+                }
+                prevId = id;
+                prevValues = values;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Acknowledges all rows up to the watermark (the max uploaded _id)
+    public static synchronized void deleteUpTo(SQLiteDatabase db, long watermark) {
+        db.beginTransaction();
+        try {
+            long nextId = longForQuery(db, SELECT_NEXT_ID, watermark);
+            if (nextId > 0) {
+                // Rewrite the first remaining row as a keyframe before its base is deleted
+                List<DetailedInfo> next = select(db, nextId - 1, 1);
+                if (next.size() > 0 && next.get(0).getId() == nextId) {
+                    byte[] data = DetailedInfoCodec.encode(DetailedInfoCodec.flatten(next.get(0)), null, getDictionary(db));
+                    SQLiteStatement statement = DatabaseHelper.getStatement(db, UPDATE_TO_KEYFRAME);
+                    statement.bindBlob(1, data);
+                    statement.bindLong(2, nextId);
+                    statement.executeUpdateDelete();
+                    DatabaseHelper.releaseStatement(statement);
+                }
+            }
+            db.execSQL(DELETE_INFO_UP_TO, new String[] { Long.toString(watermark) });
+            if (lastId <= watermark) {
+                resetEncoder();
+            }
+            if (DatabaseUtils.queryNumEntries(db, "info_history_compact") == 0) {
+                // No rows refer to the strings any more
+                db.execSQL(DELETE_ALL_STRINGS);
+                stringIds = null;
+                strings = null;
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            // The cached dictionary may be out of sync with the rolled back table
+            stringIds = null;
+            strings = null;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public static synchronized void deleteOldItems(SQLiteDatabase db) {
+        deleteOlderThan(db, System.currentTimeMillis() - 24 * 60 * 60 * 1000L, Integer.MAX_VALUE);
+    }
+
+    // Removes up to limit rows older than ts (see DatabaseRetention), returns the number of removed rows
+    public static synchronized int deleteOlderThan(SQLiteDatabase db, long ts, int limit) {
+        long lastOldId = longForQuery(db, SELECT_LAST_OLD_ID, ts);
+        if (lastOldId <= 0) {
+            return 0;
+        }
+        long limitId = longForQuery(db, SELECT_NTH_ID, limit - 1);
+        return deleteUpToCounted(db, limitId > 0 ? Math.min(lastOldId, limitId) : lastOldId);
+    }
+
+    // Removes the given number of the oldest rows (see DatabaseRetention), returns the number of removed rows
+    public static synchronized int deleteOldest(SQLiteDatabase db, long count) {
+        if (count <= 0) {
+            return 0;
+        }
+        long watermark = longForQuery(db, SELECT_NTH_ID, count - 1);
+        if (watermark <= 0) {
+            return 0;
+        }
+        return deleteUpToCounted(db, watermark);
+    }
+
+    private static int deleteUpToCounted(SQLiteDatabase db, long watermark) {
+        long count = DatabaseUtils.queryNumEntries(db, "info_history_compact");
+        deleteUpTo(db, watermark);
+        return (int)(count - DatabaseUtils.queryNumEntries(db, "info_history_compact"));
+    }
+
+    private static void resetEncoder() {
+        lastId = 0;
+        lastValues = null;
+        rowsSinceKeyframe = 0;
+    }
+
+    private static long longForQuery(SQLiteDatabase db, String sql, long arg) {
+        Cursor cursor = db.rawQuery(sql, new String[] { Long.toString(arg) });
+        long result = 0;
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+            result = cursor.getLong(0);
+        }
+        cursor.close();
+        return result;
+    }
+
+    private static DetailedInfoCodec.StringDictionary getDictionary(final SQLiteDatabase db) {
+        if (stringIds == null) {
+            stringIds = new HashMap<>();
+            strings = new HashMap<>();
+            Cursor cursor = db.rawQuery(SELECT_ALL_STRINGS, null);
+            while (cursor.moveToNext()) {
+                stringIds.put(cursor.getString(1), cursor.getLong(0));
+                strings.put(cursor.getLong(0), cursor.getString(1));
+            }
+            cursor.close();
+        }
+        return new DetailedInfoCodec.StringDictionary() {
+            @Override
+            public long getId(String value) {
+                Long id = stringIds.get(value);
+                if (id == null) {
+                    SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_STRING);
+                    statement.bindString(1, value);
+                    id = statement.executeInsert();
+                    DatabaseHelper.releaseStatement(statement);
+                    stringIds.put(value, id);
+                    strings.put(id, value);
+                }
+                return id;
+            }
+
+            @Override
+            public String getValue(long id) {
+                return strings.get(id);
+            }
+        };
+    }
+}
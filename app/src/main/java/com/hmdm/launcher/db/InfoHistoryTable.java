@@ -22,12 +22,20 @@ package com.hmdm.launcher.db;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.json.DetailedInfo;
+import com.hmdm.launcher.json.JsonCodec;
+import com.hmdm.launcher.server.CursorJsonRequestBody;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
+import okhttp3.RequestBody;
+
 public class InfoHistoryTable {
     private static final String CREATE_TABLE =
             "CREATE TABLE info_history (" +
@@ -82,6 +90,8 @@ public class InfoHistoryTable {
                     ")";
     private static final String ALTER_TABLE_ADD_MEMORY_TOTAL = "ALTER TABLE info_history ADD deviceMemoryTotal INT";
     private static final String ALTER_TABLE_ADD_MEMORY_AVAILABLE = "ALTER TABLE info_history ADD deviceMemoryAvailable INT";
+    private static final String CREATE_TS_INDEX =
+            "CREATE INDEX IF NOT EXISTS info_history_ts ON info_history(ts)";
     private static final String SELECT_LAST_INFO =
             "SELECT * FROM info_history ORDER BY ts LIMIT ?";
     private static final String INSERT_INFO =
@@ -94,15 +104,77 @@ public class InfoHistoryTable {
             "deviceMemoryTotal, deviceMemoryAvailable" +
             ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, " +
             "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-    private static final String DELETE_FROM_INFO =
-            "DELETE FROM info_history WHERE _id=?";
+    private static final String SELECT_INFO_AFTER =
+            "SELECT * FROM info_history WHERE _id > ? ORDER BY _id LIMIT ?";
+    private static final String SELECT_BATCH_END =
+            "SELECT MAX(_id) FROM (SELECT _id FROM %s WHERE _id > ? ORDER BY _id LIMIT ?)";
+    // Column positions are fixed, they are used by UPLOAD_ROW_WRITER
+    private static final String SELECT_INFO_RANGE =
+            "SELECT _id, ts, deviceBatteryLevel, deviceBatteryCharging, deviceWifi, " +
+            "deviceGps, deviceIp, deviceKeyguard, deviceRingVolume, deviceMobileData, deviceBluetooth, deviceUsbStorage, " +
+            "wifiRssi, wifiSsid, wifiSecurity, wifiState, wifiIp, wifiTx, wifiRx, " +
+            "gpsState, gpsProvider, gpsLat, gpsLon, gpsAlt, gpsSpeed, gpsCourse, " +
+            "mobileRssi, mobileCarrier, mobileNumber, mobileImsi, mobileData, mobileIp, mobileState, mobileSimState, mobileTx, mobileRx, " +
+            "mobile2Rssi, mobile2Carrier, mobile2Number, mobile2Imsi, mobile2Data, mobile2Ip, mobile2State, mobile2SimState, mobile2Tx, mobile2Rx, " +
+            "deviceMemoryTotal, deviceMemoryAvailable " +
+            "FROM info_history WHERE _id > ? AND _id <= ? ORDER BY _id";
+    private static final String DELETE_INFO_UP_TO =
+            "DELETE FROM info_history WHERE _id <= ?";
     private static final String DELETE_OLD_ITEMS =
             "DELETE FROM info_history WHERE ts < ?";
 
+    // Same JSON as DetailedInfo
+    private static final CursorJsonRequestBody.RowWriter UPLOAD_ROW_WRITER = (generator, cursor) -> {
+        generator.writeNumberField("id", cursor.getLong(0));
+        generator.writeNumberField("ts", cursor.getLong(1));
+
+        generator.writeObjectFieldStart("device");
+        CursorJsonRequestBody.writeLongField(generator, "batteryLevel", cursor, 2);
+        CursorJsonRequestBody.writeStringField(generator, "batteryCharging", cursor, 3);
+        CursorJsonRequestBody.writeBooleanField(generator, "wifi", cursor, 4);
+        CursorJsonRequestBody.writeBooleanField(generator, "gps", cursor, 5);
+        CursorJsonRequestBody.writeStringField(generator, "ip", cursor, 6);
+        CursorJsonRequestBody.writeBooleanField(generator, "keyguard", cursor, 7);
+        CursorJsonRequestBody.writeLongField(generator, "ringVolume", cursor, 8);
+        CursorJsonRequestBody.writeBooleanField(generator, "mobileData", cursor, 9);
+        CursorJsonRequestBody.writeBooleanField(generator, "bluetooth", cursor, 10);
+        CursorJsonRequestBody.writeBooleanField(generator, "usbStorage", cursor, 11);
+        CursorJsonRequestBody.writeLongField(generator, "memoryTotal", cursor, 46);
+        CursorJsonRequestBody.writeLongField(generator, "memoryAvailable", cursor, 47);
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("wifi");
+        CursorJsonRequestBody.writeLongField(generator, "rssi", cursor, 12);
+        CursorJsonRequestBody.writeStringField(generator, "ssid", cursor, 13);
+        CursorJsonRequestBody.writeStringField(generator, "security", cursor, 14);
+        CursorJsonRequestBody.writeStringField(generator, "state", cursor, 15);
+        CursorJsonRequestBody.writeStringField(generator, "ip", cursor, 16);
+        CursorJsonRequestBody.writeLongField(generator, "tx", cursor, 17);
+        CursorJsonRequestBody.writeLongField(generator, "rx", cursor, 18);
+        generator.writeEndObject();
+
+        generator.writeObjectFieldStart("gps");
+        CursorJsonRequestBody.writeStringField(generator, "state", cursor, 19);
+        CursorJsonRequestBody.writeStringField(generator, "provider", cursor, 20);
+        CursorJsonRequestBody.writeDoubleField(generator, "lat", cursor, 21);
+        CursorJsonRequestBody.writeDoubleField(generator, "lon", cursor, 22);
+        CursorJsonRequestBody.writeDoubleField(generator, "alt", cursor, 23);
+        CursorJsonRequestBody.writeDoubleField(generator, "speed", cursor, 24);
+        CursorJsonRequestBody.writeDoubleField(generator, "course", cursor, 25);
+        generator.writeEndObject();
+
+        writeMobile(generator, "mobile", cursor, 26);
+        writeMobile(generator, "mobile2", cursor, 36);
+    };
+
     public static String getCreateTableSql() {
         return CREATE_TABLE;
     }
 
+    public static String getCreateTsIndexSql() {
+        return CREATE_TS_INDEX;
+    }
+
     public static String getAlterTableAddMemoryTotalSql() {
         return ALTER_TABLE_ADD_MEMORY_TOTAL;
     }
@@ -112,6 +184,11 @@ public class InfoHistoryTable {
     }
 
     public static void insert(SQLiteDatabase db, DetailedInfo item) {
+        if (BuildConfig.COMPACT_INFO_HISTORY) {
+            InfoHistoryCompactTable.insert(db, item);
+            return;
+        }
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_INFO);
         try {
             DetailedInfo.Device device = item.getDevice();
             DetailedInfo.Wifi wifi = item.getWifi();
@@ -119,94 +196,133 @@ public class InfoHistoryTable {
             DetailedInfo.Mobile mobile = item.getMobile();
             DetailedInfo.Mobile mobile2 = item.getMobile2();
 
-            db.execSQL(INSERT_INFO, new String[]{
-                    Long.toString(item.getTs()),
-
-                    device != null && device.getBatteryLevel() != null ? device.getBatteryLevel().toString() : null,
-                    device != null ? device.getBatteryCharging() : null,
-                    device != null && device.getWifi() != null ? (device.getWifi() ? "1" : "0") : null,
-                    device != null && device.getGps() != null ? (device.getGps() ? "1" : "0") : null,
-                    device != null ? device.getIp() : null,
-                    device != null && device.getKeyguard() != null ? (device.getKeyguard() ? "1" : "0") : null,
-                    device != null && device.getRingVolume() != null ? device.getRingVolume().toString() : null,
-                    device != null && device.getMobileData() != null ? (device.getMobileData() ? "1" : "0") : null,
-                    device != null && device.getBluetooth() != null ? (device.getBluetooth() ? "1" : "0") : null,
-                    device != null && device.getUsbStorage() != null ? (device.getUsbStorage() ? "1" : "0") : null,
-
-                    wifi != null && wifi.getRssi() != null ? wifi.getRssi().toString() : null,
-                    wifi != null ? wifi.getSsid() : null,
-                    wifi != null ? wifi.getSecurity() : null,
-                    wifi != null ? wifi.getState() : null,
-                    wifi != null ? wifi.getIp() : null,
-                    wifi != null && wifi.getTx() != null ? wifi.getTx().toString() : null,
-                    wifi != null && wifi.getRx() != null ? wifi.getRx().toString() : null,
-
-                    gps != null ? gps.getState() : null,
-                    gps != null ? gps.getProvider() : null,
-                    gps != null && gps.getLat() != null ? gps.getLat().toString() : null,
-                    gps != null && gps.getLon() != null ? gps.getLon().toString() : null,
-                    gps != null && gps.getAlt() != null ? gps.getAlt().toString() : null,
-                    gps != null && gps.getSpeed() != null ? gps.getSpeed().toString() : null,
-                    gps != null && gps.getCourse() != null ? gps.getCourse().toString() : null,
-
-                    mobile != null && mobile.getRssi() != null ? mobile.getRssi().toString() : null,
-                    mobile != null ? mobile.getCarrier() : null,
-                    mobile != null ? mobile.getNumber() : null,
-                    mobile != null ? mobile.getImsi() : null,
-                    mobile != null && mobile.getData() != null ? (mobile.getData() ? "1" : "0") : null,
-                    mobile != null ? mobile.getIp() : null,
-                    mobile != null ? mobile.getState() : null,
-                    mobile != null ? mobile.getSimState() : null,
-                    mobile != null && mobile.getTx() != null ? mobile.getTx().toString() : null,
-                    mobile != null && mobile.getRx() != null ? mobile.getRx().toString() : null,
-
-                    mobile2 != null && mobile2.getRssi() != null ? mobile2.getRssi().toString() : null,
-                    mobile2 != null ? mobile2.getCarrier() : null,
-                    mobile2 != null ? mobile2.getNumber() : null,
-                    mobile2 != null ? mobile2.getImsi() : null,
-                    mobile2 != null && mobile2.getData() != null ? (mobile2.getData() ? "1" : "0") : null,
-                    mobile2 != null ? mobile2.getIp() : null,
-                    mobile2 != null ? mobile2.getState() : null,
-                    mobile2 != null ? mobile2.getSimState() : null,
-                    mobile2 != null && mobile2.getTx() != null ? mobile2.getTx().toString() : null,
-                    mobile2 != null && mobile2.getRx() != null ? mobile2.getRx().toString() : null,
-
-                    device != null && device.getMemoryTotal() != null ? device.getMemoryTotal().toString() : null,
-                    device != null && device.getMemoryAvailable() != null ? device.getMemoryAvailable().toString() : null,
-            });
+            statement.bindLong(1, item.getTs());
+
+            DatabaseHelper.bindLong(statement, 2, device != null ? device.getBatteryLevel() : null);
+            DatabaseHelper.bindString(statement, 3, device != null ? device.getBatteryCharging() : null);
+            DatabaseHelper.bindBoolean(statement, 4, device != null ? device.getWifi() : null);
+            DatabaseHelper.bindBoolean(statement, 5, device != null ? device.getGps() : null);
+            DatabaseHelper.bindString(statement, 6, device != null ? device.getIp() : null);
+            DatabaseHelper.bindBoolean(statement, 7, device != null ? device.getKeyguard() : null);
+            DatabaseHelper.bindLong(statement, 8, device != null ? device.getRingVolume() : null);
+            DatabaseHelper.bindBoolean(statement, 9, device != null ? device.getMobileData() : null);
+            DatabaseHelper.bindBoolean(statement, 10, device != null ? device.getBluetooth() : null);
+            DatabaseHelper.bindBoolean(statement, 11, device != null ? device.getUsbStorage() : null);
+
+            DatabaseHelper.bindLong(statement, 12, wifi != null ? wifi.getRssi() : null);
+            DatabaseHelper.bindString(statement, 13, wifi != null ? wifi.getSsid() : null);
+            DatabaseHelper.bindString(statement, 14, wifi != null ? wifi.getSecurity() : null);
+            DatabaseHelper.bindString(statement, 15, wifi != null ? wifi.getState() : null);
+            DatabaseHelper.bindString(statement, 16, wifi != null ? wifi.getIp() : null);
+            DatabaseHelper.bindLong(statement, 17, wifi != null ? wifi.getTx() : null);
+            DatabaseHelper.bindLong(statement, 18, wifi != null ? wifi.getRx() : null);
+
+            DatabaseHelper.bindString(statement, 19, gps != null ? gps.getState() : null);
+            DatabaseHelper.bindString(statement, 20, gps != null ? gps.getProvider() : null);
+            DatabaseHelper.bindDouble(statement, 21, gps != null ? gps.getLat() : null);
+            DatabaseHelper.bindDouble(statement, 22, gps != null ? gps.getLon() : null);
+            DatabaseHelper.bindDouble(statement, 23, gps != null ? gps.getAlt() : null);
+            DatabaseHelper.bindDouble(statement, 24, gps != null ? gps.getSpeed() : null);
+            DatabaseHelper.bindDouble(statement, 25, gps != null ? gps.getCourse() : null);
+
+            DatabaseHelper.bindLong(statement, 26, mobile != null ? mobile.getRssi() : null);
+            DatabaseHelper.bindString(statement, 27, mobile != null ? mobile.getCarrier() : null);
+            DatabaseHelper.bindString(statement, 28, mobile != null ? mobile.getNumber() : null);
+            DatabaseHelper.bindString(statement, 29, mobile != null ? mobile.getImsi() : null);
+            DatabaseHelper.bindBoolean(statement, 30, mobile != null ? mobile.getData() : null);
+            DatabaseHelper.bindString(statement, 31, mobile != null ? mobile.getIp() : null);
+            DatabaseHelper.bindString(statement, 32, mobile != null ? mobile.getState() : null);
+            DatabaseHelper.bindString(statement, 33, mobile != null ? mobile.getSimState() : null);
+            DatabaseHelper.bindLong(statement, 34, mobile != null ? mobile.getTx() : null);
+            DatabaseHelper.bindLong(statement, 35, mobile != null ? mobile.getRx() : null);
+
+            DatabaseHelper.bindLong(statement, 36, mobile2 != null ? mobile2.getRssi() : null);
+            DatabaseHelper.bindString(statement, 37, mobile2 != null ? mobile2.getCarrier() : null);
+            DatabaseHelper.bindString(statement, 38, mobile2 != null ? mobile2.getNumber() : null);
+            DatabaseHelper.bindString(statement, 39, mobile2 != null ? mobile2.getImsi() : null);
+            DatabaseHelper.bindBoolean(statement, 40, mobile2 != null ? mobile2.getData() : null);
+            DatabaseHelper.bindString(statement, 41, mobile2 != null ? mobile2.getIp() : null);
+            DatabaseHelper.bindString(statement, 42, mobile2 != null ? mobile2.getState() : null);
+            DatabaseHelper.bindString(statement, 43, mobile2 != null ? mobile2.getSimState() : null);
+            DatabaseHelper.bindLong(statement, 44, mobile2 != null ? mobile2.getTx() : null);
+            DatabaseHelper.bindLong(statement, 45, mobile2 != null ? mobile2.getRx() : null);
+
+            DatabaseHelper.bindLong(statement, 46, device != null ? device.getMemoryTotal() : null);
+            DatabaseHelper.bindLong(statement, 47, device != null ? device.getMemoryAvailable() : null);
+            statement.executeInsert();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
     public static void deleteOldItems(SQLiteDatabase db) {
+        if (BuildConfig.COMPACT_INFO_HISTORY) {
+            InfoHistoryCompactTable.deleteOldItems(db);
+            return;
+        }
         long oldTs = System.currentTimeMillis() - 24 * 60 * 60 * 1000L;
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_OLD_ITEMS);
         try {
-            db.execSQL(DELETE_OLD_ITEMS, new String[]{
-                    Long.toString(oldTs)
-            });
+            statement.bindLong(1, oldTs);
+            statement.executeUpdateDelete();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
+    // Deletes the uploaded items by a single statement
     public static void delete(SQLiteDatabase db, List<DetailedInfo> items) {
-        db.beginTransaction();
-        try {
+        if (items.isEmpty()) {
+            return;
+        }
+        if (BuildConfig.COMPACT_INFO_HISTORY) {
+            // Uploaded items are the oldest ones, so they are deleted by the watermark
+            long watermark = 0;
             for (DetailedInfo item : items) {
-                db.execSQL(DELETE_FROM_INFO, new String[]{
-                        Long.toString(item.getId())
-                });
+                watermark = Math.max(watermark, item.getId());
             }
-            db.setTransactionSuccessful();
+            InfoHistoryCompactTable.deleteUpTo(db, watermark);
+            return;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (DetailedInfo item : items) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(item.getId());
+        }
+        try {
+            db.execSQL("DELETE FROM info_history WHERE _id IN (" + ids + ")");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Acknowledges all rows up to the watermark (the max uploaded _id)
+    public static void deleteUpTo(SQLiteDatabase db, long watermark) {
+        if (BuildConfig.COMPACT_INFO_HISTORY) {
+            InfoHistoryCompactTable.deleteUpTo(db, watermark);
+            return;
+        }
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_INFO_UP_TO);
+        try {
+            statement.bindLong(1, watermark);
+            statement.executeUpdateDelete();
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            db.endTransaction();
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
     public static List<DetailedInfo> select(SQLiteDatabase db, int limit) {
+        if (BuildConfig.COMPACT_INFO_HISTORY) {
+            return InfoHistoryCompactTable.select(db, 0, limit);
+        }
         Cursor cursor = db.rawQuery( SELECT_LAST_INFO, new String[] {
                 Integer.toString(limit)
         });
@@ -222,4 +338,67 @@ public class InfoHistoryTable {
 
         return result;
     }
+
+    // Selects the rows after the watermark, ordered by _id
+    public static List<DetailedInfo> select(SQLiteDatabase db, long afterId, int limit) {
+        if (BuildConfig.COMPACT_INFO_HISTORY) {
+            return InfoHistoryCompactTable.select(db, afterId, limit);
+        }
+        Cursor cursor = db.rawQuery( SELECT_INFO_AFTER, new String[] {
+                Long.toString(afterId),
+                Integer.toString(limit)
+        });
+        List<DetailedInfo> result = new LinkedList<>();
+
+        boolean isDataNotEmpty = cursor.moveToFirst();
+        while (isDataNotEmpty) {
+            DetailedInfo item = new DetailedInfo(cursor);
+            result.add(item);
+            isDataNotEmpty = cursor.moveToNext();
+        }
+        cursor.close();
+
+        return result;
+    }
+
+    // Returns the max _id of the next upload batch after the watermark, or 0 if there are no rows
+    public static long selectBatchEnd(SQLiteDatabase db, long afterId, int limit) {
+        String table = BuildConfig.COMPACT_INFO_HISTORY ? "info_history_compact" : "info_history";
+        Cursor cursor = db.rawQuery(String.format(SELECT_BATCH_END, table), new String[] {
+                Long.toString(afterId),
+                Integer.toString(limit)
+        });
+        long result = 0;
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+            result = cursor.getLong(0);
+        }
+        cursor.close();
+        return result;
+    }
+
+    // Streams the rows in the range (afterId, upToId] to the server without loading them to memory
+    public static RequestBody createUploadBody(final SQLiteDatabase db, final long afterId, final long upToId) throws IOException {
+        if (BuildConfig.COMPACT_INFO_HISTORY) {
+            return InfoHistoryCompactTable.createUploadBody(db, afterId, upToId);
+        }
+        return new CursorJsonRequestBody(() -> db.rawQuery(SELECT_INFO_RANGE, new String[] {
+                Long.toString(afterId),
+                Long.toString(upToId)
+        }), UPLOAD_ROW_WRITER);
+    }
+
+    private static void writeMobile(JsonGenerator generator, String name, Cursor cursor, int index) throws IOException {
+        generator.writeObjectFieldStart(name);
+        CursorJsonRequestBody.writeLongField(generator, "rssi", cursor, index);
+        CursorJsonRequestBody.writeStringField(generator, "carrier", cursor, index + 1);
+        CursorJsonRequestBody.writeStringField(generator, "number", cursor, index + 2);
+        CursorJsonRequestBody.writeStringField(generator, "imsi", cursor, index + 3);
+        CursorJsonRequestBody.writeBooleanField(generator, "data", cursor, index + 4);
+        CursorJsonRequestBody.writeStringField(generator, "ip", cursor, index + 5);
+        CursorJsonRequestBody.writeStringField(generator, "state", cursor, index + 6);
+        CursorJsonRequestBody.writeStringField(generator, "simState", cursor, index + 7);
+        CursorJsonRequestBody.writeLongField(generator, "tx", cursor, index + 8);
+        CursorJsonRequestBody.writeLongField(generator, "rx", cursor, index + 9);
+        generator.writeEndObject();
+    }
 }
@@ -23,10 +23,15 @@ import android.annotation.SuppressLint;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.hmdm.launcher.server.CursorJsonRequestBody;
 
 import java.util.LinkedList;
 import java.util.List;
 
+import okhttp3.RequestBody;
+
 public class LocationTable {
     private static final String CREATE_TABLE =
             "CREATE TABLE locations (" +
@@ -35,16 +40,33 @@ public class LocationTable {
                     "lat REAL, " +
                     "lon REAL " +
                     ")";
+    private static final String CREATE_TS_INDEX =
+            "CREATE INDEX IF NOT EXISTS locations_ts ON locations(ts)";
     private static final String SELECT_LAST_LOCATION =
             "SELECT * FROM locations ORDER BY ts LIMIT ?";
     private static final String INSERT_LOCATIONS =
             "INSERT OR IGNORE INTO locations(ts, lat, lon) " +
             "VALUES (?, ?, ?)";
-    private static final String DELETE_FROM_LOCATION =
-            "DELETE FROM locations WHERE _id=?";
+    private static final String SELECT_LOCATION_AFTER =
+            "SELECT * FROM locations WHERE _id > ? ORDER BY _id LIMIT ?";
+    private static final String SELECT_BATCH_END =
+            "SELECT MAX(_id) FROM (SELECT _id FROM locations WHERE _id > ? ORDER BY _id LIMIT ?)";
+    // Column positions are fixed, they are used by UPLOAD_ROW_WRITER
+    private static final String SELECT_LOCATION_RANGE =
+            "SELECT _id, ts, lat, lon FROM locations WHERE _id > ? AND _id <= ? ORDER BY _id";
+    private static final String DELETE_LOCATION_UP_TO =
+            "DELETE FROM locations WHERE _id <= ?";
     private static final String DELETE_OLD_ITEMS =
             "DELETE FROM locations WHERE ts < ?";
 
+    // Same JSON as Location
+    private static final CursorJsonRequestBody.RowWriter UPLOAD_ROW_WRITER = (generator, cursor) -> {
+        generator.writeNumberField("id", cursor.getLong(0));
+        generator.writeNumberField("ts", cursor.getLong(1));
+        generator.writeNumberField("lat", cursor.getDouble(2));
+        generator.writeNumberField("lon", cursor.getDouble(3));
+    };
+
     public static class Location {
         private long _id;
         private long ts;
@@ -104,42 +126,66 @@ public class LocationTable {
         return CREATE_TABLE;
     }
 
+    public static String getCreateTsIndexSql() {
+        return CREATE_TS_INDEX;
+    }
+
     public static void insert(SQLiteDatabase db, Location location) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_LOCATIONS);
         try {
-            db.execSQL(INSERT_LOCATIONS, new String[]{
-                    Long.toString(location.getTs()),
-                    Double.toString(location.getLat()),
-                    Double.toString(location.getLon())
-            });
+            statement.bindLong(1, location.getTs());
+            statement.bindDouble(2, location.getLat());
+            statement.bindDouble(3, location.getLon());
+            statement.executeInsert();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
     public static void deleteOldItems(SQLiteDatabase db) {
         long oldTs = System.currentTimeMillis() - 24 * 60 * 60 * 1000L;
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_OLD_ITEMS);
         try {
-            db.execSQL(DELETE_OLD_ITEMS, new String[]{
-                    Long.toString(oldTs)
-            });
+            statement.bindLong(1, oldTs);
+            statement.executeUpdateDelete();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
+    // Deletes the uploaded items by a single statement
     public static void delete(SQLiteDatabase db, List<Location> items) {
-        db.beginTransaction();
-        try {
-            for (Location item : items) {
-                db.execSQL(DELETE_FROM_LOCATION, new String[]{
-                        Long.toString(item.getId())
-                });
+        if (items.isEmpty()) {
+            return;
+        }
+        StringBuilder ids = new StringBuilder();
+        for (Location item : items) {
+            if (ids.length() > 0) {
+                ids.append(',');
             }
-            db.setTransactionSuccessful();
+            ids.append(item.getId());
+        }
+        try {
+            db.execSQL("DELETE FROM locations WHERE _id IN (" + ids + ")");
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Acknowledges all rows up to the watermark (the max uploaded _id)
+    public static void deleteUpTo(SQLiteDatabase db, long watermark) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_LOCATION_UP_TO);
+        try {
+            statement.bindLong(1, watermark);
+            statement.executeUpdateDelete();
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            db.endTransaction();
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
@@ -159,4 +205,45 @@ public class LocationTable {
 
         return result;
     }
+
+    // Selects the rows after the watermark, ordered by _id
+    public static List<Location> select(SQLiteDatabase db, long afterId, int limit) {
+        Cursor cursor = db.rawQuery( SELECT_LOCATION_AFTER, new String[] {
+                Long.toString(afterId),
+                Integer.toString(limit)
+        });
+        List<Location> result = new LinkedList<>();
+
+        boolean isDataNotEmpty = cursor.moveToFirst();
+        while (isDataNotEmpty) {
+            Location item = new Location(cursor);
+            result.add(item);
+            isDataNotEmpty = cursor.moveToNext();
+        }
+        cursor.close();
+
+        return result;
+    }
+
+    // Returns the max _id of the next upload batch after the watermark, or 0 if there are no rows
+    public static long selectBatchEnd(SQLiteDatabase db, long afterId, int limit) {
+        Cursor cursor = db.rawQuery(SELECT_BATCH_END, new String[] {
+                Long.toString(afterId),
+                Integer.toString(limit)
+        });
+        long result = 0;
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+            result = cursor.getLong(0);
+        }
+        cursor.close();
+        return result;
+    }
+
+    // Streams the rows in the range (afterId, upToId] to the server without loading them to memory
+    public static RequestBody createUploadBody(final SQLiteDatabase db, final long afterId, final long upToId) {
+        return new CursorJsonRequestBody(() -> db.rawQuery(SELECT_LOCATION_RANGE, new String[] {
+                Long.toString(afterId),
+                Long.toString(upToId)
+        }), UPLOAD_ROW_WRITER);
+    }
 }
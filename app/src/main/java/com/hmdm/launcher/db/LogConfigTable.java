@@ -22,10 +22,11 @@ package com.hmdm.launcher.db;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.hmdm.launcher.json.RemoteLogConfig;
-import com.hmdm.launcher.json.RemoteLogItem;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class LogConfigTable {
@@ -40,40 +41,51 @@ public class LogConfigTable {
             "DELETE FROM log_rules";
     private static final String INSERT_RULE =
             "INSERT OR IGNORE INTO log_rules(packageId, level, filter) VALUES (?, ?, ?)";
-    private static final String FIND_MATCHING =
-            "SELECT * FROM log_rules WHERE packageId = ? AND level >= ? AND (filter IS NULL OR filter = '' OR ? LIKE ('%' || filter || '%')) LIMIT 1";
+    private static final String SELECT_ALL =
+            "SELECT packageId, level, filter FROM log_rules";
 
     public static String getCreateTableSql() {
         return CREATE_TABLE;
     }
 
     public static void replaceAll(SQLiteDatabase db, List<RemoteLogConfig> items) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_RULE);
         db.beginTransaction();
         try {
             db.execSQL(DELETE_ALL);
             for (RemoteLogConfig item : items) {
-                db.execSQL(INSERT_RULE, new String[]{
-                        item.getPackageId(),
-                        Integer.toString(item.getLogLevel()),
-                        item.getFilter()
-                });
+                statement.clearBindings();
+                DatabaseHelper.bindString(statement, 1, item.getPackageId());
+                statement.bindLong(2, item.getLogLevel());
+                DatabaseHelper.bindString(statement, 3, item.getFilter());
+                statement.executeInsert();
             }
             db.setTransactionSuccessful();
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
+            DatabaseHelper.releaseStatement(statement);
             db.endTransaction();
         }
     }
 
-    public static boolean match(SQLiteDatabase db, RemoteLogItem item) {
-        Cursor cursor = db.rawQuery(FIND_MATCHING, new String[] {
-                item.getPackageId(),
-                Integer.toString(item.getLogLevel()),
-                item.getMessage()
-        });
-        boolean ret = cursor.moveToFirst();
+    // Rules are matched in memory, see LogRuleMatcher
+    public static List<RemoteLogConfig> selectAll(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery(SELECT_ALL, null);
+        List<RemoteLogConfig> result = new ArrayList<>();
+
+        boolean isDataNotEmpty = cursor.moveToFirst();
+        while (isDataNotEmpty) {
+            RemoteLogConfig item = new RemoteLogConfig();
+            item.setPackageId(cursor.getString(0));
+            item.setLogLevel(cursor.getInt(1));
+            item.setFilter(cursor.getString(2));
+            result.add(item);
+
+            isDataNotEmpty = cursor.moveToNext();
+        }
         cursor.close();
-        return ret;
+
+        return result;
     }
 }
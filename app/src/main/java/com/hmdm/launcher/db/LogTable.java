@@ -19,15 +19,15 @@
 
 package com.hmdm.launcher.db;
 
-import android.annotation.SuppressLint;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.hmdm.launcher.json.RemoteLogItem;
+import com.hmdm.launcher.server.CursorJsonRequestBody;
 
-import java.util.LinkedList;
-import java.util.List;
+import okhttp3.RequestBody;
 
 public class LogTable {
     private static final String CREATE_TABLE =
@@ -38,80 +38,97 @@ public class LogTable {
                     "packageId TEXT, " +
                     "message TEXT" +
                     ")";
-    private static final String SELECT_LAST_LOGS =
-            "SELECT * FROM logs ORDER BY ts LIMIT ?";
+    private static final String CREATE_TS_INDEX =
+            "CREATE INDEX IF NOT EXISTS logs_ts ON logs(ts)";
+    // Rows are selected by _id so the uploaded rows can be acknowledged by a single range delete
+    private static final String SELECT_BATCH_END =
+            "SELECT MAX(_id) FROM (SELECT _id FROM logs WHERE _id > ? ORDER BY _id LIMIT ?)";
+    // Column positions are fixed, they are used by UPLOAD_ROW_WRITER
+    private static final String SELECT_LOGS_RANGE =
+            "SELECT ts, level, packageId, message FROM logs WHERE _id > ? AND _id <= ? ORDER BY _id";
     private static final String INSERT_LOG =
             "INSERT OR IGNORE INTO logs(ts, level, packageId, message) VALUES (?, ?, ?, ?)";
-    private static final String DELETE_FROM_LOGS =
-            "DELETE FROM logs WHERE _id=?";
+    private static final String DELETE_LOGS_UP_TO =
+            "DELETE FROM logs WHERE _id <= ?";
     private static final String DELETE_OLD_LOGS =
             "DELETE FROM logs WHERE ts < ?";
 
+    // Same JSON as RemoteLogItem
+    private static final CursorJsonRequestBody.RowWriter UPLOAD_ROW_WRITER = (generator, cursor) -> {
+        generator.writeNumberField("timestamp", cursor.getLong(0));
+        generator.writeNumberField("logLevel", cursor.getInt(1));
+        CursorJsonRequestBody.writeStringField(generator, "packageId", cursor, 2);
+        CursorJsonRequestBody.writeStringField(generator, "message", cursor, 3);
+    };
+
     public static String getCreateTableSql() {
         return CREATE_TABLE;
     }
 
+    public static String getCreateTsIndexSql() {
+        return CREATE_TS_INDEX;
+    }
+
     public static void insert(SQLiteDatabase db, RemoteLogItem item) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_LOG);
         try {
-            db.execSQL(INSERT_LOG, new String[]{
-                    Long.toString(item.getTimestamp()),
-                    Integer.toString(item.getLogLevel()),
-                    item.getPackageId(),
-                    item.getMessage()
-            });
+            statement.bindLong(1, item.getTimestamp());
+            statement.bindLong(2, item.getLogLevel());
+            DatabaseHelper.bindString(statement, 3, item.getPackageId());
+            DatabaseHelper.bindString(statement, 4, item.getMessage());
+            statement.executeInsert();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
     public static void deleteOldItems(SQLiteDatabase db) {
         long oldTs = System.currentTimeMillis() - 7 * 24 * 60 * 60 * 1000L;
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_OLD_LOGS);
         try {
-            db.execSQL(DELETE_FROM_LOGS, new String[]{
-                    Long.toString(oldTs)
-            });
+            statement.bindLong(1, oldTs);
+            statement.executeUpdateDelete();
         } catch (SQLException e) {
             e.printStackTrace();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
-    public static void delete(SQLiteDatabase db, List<RemoteLogItem> items) {
-        db.beginTransaction();
+    // Acknowledges all rows up to the watermark (the max uploaded _id)
+    public static void deleteUpTo(SQLiteDatabase db, long watermark) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_LOGS_UP_TO);
         try {
-            for (RemoteLogItem item : items) {
-                db.execSQL(DELETE_FROM_LOGS, new String[]{
-                        Long.toString(item.getId())
-                });
-            }
-            db.setTransactionSuccessful();
+            statement.bindLong(1, watermark);
+            statement.executeUpdateDelete();
         } catch (SQLException e) {
             e.printStackTrace();
         } finally {
-            db.endTransaction();
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
-    @SuppressLint("Range")
-    public static List<RemoteLogItem> select(SQLiteDatabase db, int limit) {
-        Cursor cursor = db.rawQuery( SELECT_LAST_LOGS, new String[] {
-            Integer.toString(limit)
+    // Returns the max _id of the next upload batch after the watermark, or 0 if there are no rows
+    public static long selectBatchEnd(SQLiteDatabase db, long afterId, int limit) {
+        Cursor cursor = db.rawQuery(SELECT_BATCH_END, new String[] {
+                Long.toString(afterId),
+                Integer.toString(limit)
         });
-        List<RemoteLogItem> result = new LinkedList<>();
-
-        boolean isDataNotEmpty = cursor.moveToFirst();
-        while (isDataNotEmpty) {
-            RemoteLogItem item = new RemoteLogItem();
-            item.setId(cursor.getLong(cursor.getColumnIndex("_id")));
-            item.setTimestamp(cursor.getLong(cursor.getColumnIndex("ts")));
-            item.setLogLevel(cursor.getInt(cursor.getColumnIndex("level")));
-            item.setPackageId(cursor.getString(cursor.getColumnIndex("packageId")));
-            item.setMessage(cursor.getString(cursor.getColumnIndex("message")));
-            result.add(item);
-
-            isDataNotEmpty = cursor.moveToNext();
+        long result = 0;
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+            result = cursor.getLong(0);
         }
         cursor.close();
-
         return result;
     }
+
+    // Streams the rows in the range (afterId, upToId] to the server without loading them to memory
+    public static RequestBody createUploadBody(final SQLiteDatabase db, final long afterId, final long upToId) {
+        return new CursorJsonRequestBody(() -> db.rawQuery(SELECT_LOGS_RANGE, new String[] {
+                Long.toString(afterId),
+                Long.toString(upToId)
+        }), UPLOAD_ROW_WRITER);
+    }
 }
@@ -23,9 +23,13 @@ import android.annotation.SuppressLint;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.hmdm.launcher.json.RemoteFile;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class RemoteFileTable {
     private static final String CREATE_TABLE =
             "CREATE TABLE files (" +
@@ -42,51 +46,103 @@ public class RemoteFileTable {
             "DELETE FROM files WHERE _id=?";
     private static final String DELETE_FILE_BY_PATH =
             "DELETE FROM files WHERE path=?";
-    private static final String SELECT_FILE_BY_PATH =
-            "SELECT * FROM files WHERE path=?";
+    private static final String SELECT_ALL_FILES =
+            "SELECT * FROM files";
+
+    // Write-through cache of all rows by path, loaded at the first lookup.
+    // Items are copied in and out because the callers modify them
+    private static Map<String, RemoteFile> cache;
 
     public static String getCreateTableSql() {
         return CREATE_TABLE;
     }
 
     public static void insert(SQLiteDatabase db, RemoteFile item) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, INSERT_FILE);
         try {
-            db.execSQL(INSERT_FILE, new String[]{
-                    Long.toString(item.getLastUpdate()),
-                    item.getUrl(),
-                    item.getChecksum(),
-                    item.getPath(),
-                    item.getDescription()
-            });
+            statement.bindLong(1, item.getLastUpdate());
+            DatabaseHelper.bindString(statement, 2, item.getUrl());
+            DatabaseHelper.bindString(statement, 3, item.getChecksum());
+            DatabaseHelper.bindString(statement, 4, item.getPath());
+            DatabaseHelper.bindString(statement, 5, item.getDescription());
+            long id = statement.executeInsert();
+            RemoteFile cached = new RemoteFile(item);
+            cached.setId(id);
+            // Not stored in the table
+            cached.setRemove(false);
+            cached.setVarContent(false);
+            cachePut(cached);
         } catch (SQLException e) {
             e.printStackTrace();
+            invalidateCache();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
     public static void deleteByPath(SQLiteDatabase db, String path) {
+        SQLiteStatement statement = DatabaseHelper.getStatement(db, DELETE_FILE_BY_PATH);
         try {
-            db.execSQL(DELETE_FILE_BY_PATH, new String[]{ path });
+            DatabaseHelper.bindString(statement, 1, path);
+            statement.executeUpdateDelete();
+            cacheRemove(path);
         } catch (SQLException e) {
             e.printStackTrace();
+            invalidateCache();
+        } finally {
+            DatabaseHelper.releaseStatement(statement);
         }
     }
 
-    @SuppressLint("Range")
     public static RemoteFile selectByPath(SQLiteDatabase db, String path) {
-        Cursor cursor = db.rawQuery(SELECT_FILE_BY_PATH, new String[] { path });
+        if (path == null) {
+            return null;
+        }
+        synchronized (RemoteFileTable.class) {
+            if (cache == null) {
+                cache = selectAll(db);
+            }
+            RemoteFile item = cache.get(path);
+            return item != null ? new RemoteFile(item) : null;
+        }
+    }
+
+    public static synchronized void invalidateCache() {
+        cache = null;
+    }
 
-        RemoteFile item = null;
-        if (cursor.moveToFirst()) {
-            item = new RemoteFile();
+    @SuppressLint("Range")
+    private static Map<String, RemoteFile> selectAll(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery(SELECT_ALL_FILES, new String[] {});
+        Map<String, RemoteFile> result = new HashMap<>();
+
+        boolean isDataNotEmpty = cursor.moveToFirst();
+        while (isDataNotEmpty) {
+            RemoteFile item = new RemoteFile();
             item.setId(cursor.getLong(cursor.getColumnIndex("_id")));
             item.setLastUpdate(cursor.getLong(cursor.getColumnIndex("lastUpdate")));
             item.setUrl(cursor.getString(cursor.getColumnIndex("url")));
             item.setChecksum(cursor.getString(cursor.getColumnIndex("checksum")));
             item.setPath(cursor.getString(cursor.getColumnIndex("path")));
             item.setDescription(cursor.getString(cursor.getColumnIndex("description")));
+            result.put(item.getPath(), item);
+
+            isDataNotEmpty = cursor.moveToNext();
         }
         cursor.close();
 
-        return item;
+        return result;
+    }
+
+    private static synchronized void cachePut(RemoteFile item) {
+        if (cache != null && item.getPath() != null) {
+            cache.put(item.getPath(), item);
+        }
+    }
+
+    private static synchronized void cacheRemove(String path) {
+        if (cache != null) {
+            cache.remove(path);
+        }
     }
 }
@@ -38,12 +38,15 @@ import com.hmdm.launcher.task.ConfirmPasswordResetTask;
 import com.hmdm.launcher.task.ConfirmRebootTask;
 import com.hmdm.launcher.task.GetRemoteLogConfigTask;
 import com.hmdm.launcher.task.GetServerConfigTask;
+import com.hmdm.launcher.util.ArtifactCache;
 import com.hmdm.launcher.util.DeviceInfoProvider;
 import com.hmdm.launcher.util.InstallUtils;
+import com.hmdm.launcher.util.LoadSpreader;
 import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.SystemUtils;
 import com.hmdm.launcher.util.Utils;
+import com.hmdm.launcher.worker.PushIntake;
 
 import org.apache.commons.io.FileUtils;
 
@@ -81,7 +84,14 @@ public class ConfigUpdater {
         void onAllAppInstallComplete();
     };
 
+    // Hash of the last config completely applied by the update flow. It's not persisted,
+    // so the full flow runs at least once after the launcher start
+    private static String appliedConfigHash;
+
     private boolean configInitializing;
+    private String configHash;
+    // Set if some files or apps failed to download or install
+    private boolean applyFailed;
     private Context context;
     private UINotifier uiNotifier;
     private SettingsHelper settingsHelper;
@@ -91,22 +101,35 @@ public class ConfigUpdater {
     private List< Application > applicationsForRun = new LinkedList();
     private Map<String, File> pendingInstallations = new HashMap<String,File>();
     private BroadcastReceiver appInstallReceiver;
+    private DownloadScheduler downloadScheduler;
+    // Start time of the downloads in this update flow, 0 until the first download
+    private long downloadNotBefore;
+    // Incremented by each flow, so a download stage deferred by a previous flow is not started
+    private int flowId;
     private boolean retry = true;
     private boolean loadOnly = false;
     private boolean userInteraction;
+    // Set if the flow has been started by a push message, see PushIntake
+    private boolean pushInitiated;
 
     public List<Application> getApplicationsForRun() {
         return applicationsForRun;
     }
 
     public static void notifyConfigUpdate(final Context context) {
+        notifyConfigUpdate(context, false);
+    }
+
+    // If pushInitiated is set, PushIntake is notified when the update flow is finished
+    public static void notifyConfigUpdate(final Context context, final boolean pushInitiated) {
         if (SettingsHelper.getInstance(context).isMainActivityRunning()) {
             Log.d(Const.LOG_TAG, "Main activity is running, using activity updater");
-            LocalBroadcastManager.getInstance(context).
-                    sendBroadcast(new Intent(Const.ACTION_UPDATE_CONFIGURATION));
+            Intent intent = new Intent(Const.ACTION_UPDATE_CONFIGURATION);
+            intent.putExtra(Const.EXTRA_PUSH_INITIATED, pushInitiated);
+            LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
         } else {
             Log.d(Const.LOG_TAG, "Main activity is not running, creating a new ConfigUpdater");
-            new ConfigUpdater().updateConfig(context, null, false);
+            new ConfigUpdater().updateConfig(context, null, false, pushInitiated);
         }
     }
 
@@ -123,6 +146,13 @@ public class ConfigUpdater {
     }
 
     public void updateConfig(final Context context, final UINotifier uiNotifier, final boolean userInteraction) {
+        updateConfig(context, uiNotifier, userInteraction, false);
+    }
+
+    public void updateConfig(final Context context, final UINotifier uiNotifier, final boolean userInteraction,
+                             final boolean pushInitiated) {
+        // A push request is completed by the running flow (or by the restarted one) which applies the latest config
+        this.pushInitiated |= pushInitiated;
         if ( configInitializing ) {
             Log.i(Const.LOG_TAG, "updateConfig(): configInitializing=true, exiting");
             return;
@@ -134,6 +164,14 @@ public class ConfigUpdater {
         this.context = context;
         this.uiNotifier = uiNotifier;
         this.userInteraction = userInteraction;
+        synchronized (this) {
+            downloadNotBefore = 0;
+        }
+        flowId++;
+        // The failure of a previous flow doesn't prevent skipping this one
+        applyFailed = false;
+        // Downloads left by a previous flow of this updater which stopped on an error
+        shutdownDownloads();
 
         // Work around a strange bug with stale SettingsHelper instance: re-read its value
         settingsHelper = SettingsHelper.getInstance(context.getApplicationContext());
@@ -156,11 +194,18 @@ public class ConfigUpdater {
 
                 switch ( result ) {
                     case Const.TASK_SUCCESS:
+                        configHash = getConfigHash();
+                        if (isConfigUnchanged() && !userInteraction && configHash != null && configHash.equals(appliedConfigHash)) {
+                            RemoteLogger.log(context, Const.LOG_DEBUG, "Configuration not changed, skipping the update flow");
+                            completeUnchangedConfig();
+                            break;
+                        }
                         RemoteLogger.log(context, Const.LOG_INFO, "Configuration updated");
                         updateRemoteLogConfig();
                         break;
                     case Const.TASK_ERROR:
                         RemoteLogger.log(context, Const.LOG_WARN, "Failed to update config: server error");
+                        finishPushInitiated();
                         if (uiNotifier != null) {
                             uiNotifier.onConfigUpdateServerError(getErrorText());
                         }
@@ -177,6 +222,7 @@ public class ConfigUpdater {
                                 }
                             }, 15000);
                         } else {
+                            finishPushInitiated();
                             if (settingsHelper.getConfig() != null && !userInteraction) {
                                 if (uiNotifier != null && settingsHelper.getConfig().isShowWifi()) {
                                     // Show network error dialog with Wi-Fi settings
@@ -198,6 +244,22 @@ public class ConfigUpdater {
         }.execute();
     }
 
+    // The restrictions are released before the config is requested, so they must be locked again
+    private void completeUnchangedConfig() {
+        applyRestrictionLocks();
+        finishPushInitiated();
+        if (uiNotifier != null) {
+            uiNotifier.onConfigUpdateComplete();
+        }
+    }
+
+    private void finishPushInitiated() {
+        if (pushInitiated) {
+            pushInitiated = false;
+            PushIntake.getInstance().onConfigUpdateFinished();
+        }
+    }
+
     public void skipConfigLoad() {
         updateRemoteLogConfig();
     }
@@ -491,7 +553,11 @@ public class ConfigUpdater {
             RemoteLogger.log(context, Const.LOG_DEBUG, "Updating files not enabled: waiting for WiFi connection");
         }
         if (filesForInstall.size() > 0 && isGoodNetworkForUpdate) {
+            if (hasFilesToDownload() && deferDownloadStage(this::loadAndInstallFiles)) {
+                return;
+            }
             RemoteFile remoteFile = filesForInstall.remove(0);
+            prefetchFiles();
 
             new AsyncTask<RemoteFile, Void, RemoteFileStatus>() {
 
@@ -508,7 +574,7 @@ public class ConfigUpdater {
                             if (file.exists()) {
                                 file.delete();
                             }
-                            RemoteFileTable.deleteByPath(DatabaseHelper.instance(context).getWritableDatabase(), remoteFile.getPath());
+                            DatabaseHelper.instance(context).write(db -> RemoteFileTable.deleteByPath(db, remoteFile.getPath()));
                         } catch (Exception e) {
                             RemoteLogger.log(context, Const.LOG_WARN, "Failed to remove file: " +
                                     remoteFile.getPath() + ": " + e.getMessage());
@@ -535,7 +601,7 @@ public class ConfigUpdater {
                         File file = null;
                         try {
                             RemoteLogger.log(context, Const.LOG_DEBUG, "Downloading file: " + remoteFile.getPath());
-                            file = InstallUtils.downloadFile(context, remoteFile.getUrl(),
+                            file = getDownloadScheduler().take(remoteFile.getPath(), createFileDownloadTask(remoteFile),
                                     new InstallUtils.DownloadProgress() {
                                         @Override
                                         public void onDownloadProgress(final int progress, final long total, final long current) {
@@ -583,11 +649,12 @@ public class ConfigUpdater {
                                     }
                                     createFileFromTemplate(file, finalFile, settingsHelper.getDeviceId(), imei, settingsHelper.getConfig());
                                 }
-                                RemoteFileTable.insert(dbHelper.getWritableDatabase(), remoteFile);
+                                dbHelper.write(db -> {
+                                    RemoteFileTable.insert(db, remoteFile);
+                                    // The entry may also be created by downloadFile() to resume the download
+                                    DownloadTable.deleteByPath(db, remoteFile.getPath());
+                                });
                                 remoteFileStatus.installed = true;
-                                if (lastDownload != null) {
-                                    DownloadTable.deleteByPath(dbHelper.getWritableDatabase(), lastDownload.getPath());
-                                }
                             } catch (Exception e) {
                                 RemoteLogger.log(context, Const.LOG_WARN,
                                         "Failed to create file " + remoteFile.getPath() + ": " + e.getMessage());
@@ -617,6 +684,7 @@ public class ConfigUpdater {
                 protected void onPostExecute(RemoteFileStatus fileStatus) {
                     if (fileStatus != null) {
                         if (!fileStatus.installed) {
+                            applyFailed = true;
                             filesForInstall.add( 0, fileStatus.remoteFile );
                             if (uiNotifier != null) {
                                 if (!fileStatus.downloaded) {
@@ -638,6 +706,8 @@ public class ConfigUpdater {
                                 confirmDownloadFailureClicked(null);
                             }
                              */
+                            // The flow stops here, do not leave the prefetched downloads running
+                            shutdownDownloads();
                             return;
                         }
                     }
@@ -654,6 +724,11 @@ public class ConfigUpdater {
 
     // Save failed attempt to download or install a file or an app in the database to avoid infinite loops
     private void saveFailedAttempt(Context context, Download lastDownload, String url, String path, boolean downloaded, boolean installed) {
+        // Re-read the entry to keep the partial download state saved by InstallUtils.downloadFile()
+        Download storedDownload = DownloadTable.selectByPath(DatabaseHelper.instance(context).getReadableDatabase(), path);
+        if (storedDownload != null) {
+            lastDownload = storedDownload;
+        }
         if (lastDownload == null) {
             lastDownload = new Download();
             lastDownload.setUrl(url);
@@ -666,8 +741,8 @@ public class ConfigUpdater {
         }
         lastDownload.setDownloaded(downloaded);
         lastDownload.setInstalled(installed);
-        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
-        DownloadTable.insert(dbHelper.getWritableDatabase(), lastDownload);
+        final Download download = lastDownload;
+        DatabaseHelper.instance(context).write(db -> DownloadTable.insert(db, download));
     }
 
     // In background mode, we do not attempt to download files or apps in two cases:
@@ -756,7 +831,11 @@ public class ConfigUpdater {
             RemoteLogger.log(context, Const.LOG_DEBUG, "Application update not enabled: waiting for WiFi connection");
         }
         if (applicationsForInstall.size() > 0 && isGoodTimeForAppUpdate && isGoodNetworkForUpdate) {
+            if (hasApplicationsToDownload() && deferDownloadStage(this::loadAndInstallApplications)) {
+                return;
+            }
             Application application = applicationsForInstall.remove(0);
+            prefetchApplications();
 
             new AsyncTask<Application, Void, ApplicationStatus>() {
 
@@ -838,7 +917,7 @@ public class ConfigUpdater {
                         File file = null;
                         try {
                             RemoteLogger.log(context, Const.LOG_DEBUG, "Downloading app: " + application.getPkg());
-                            file = InstallUtils.downloadFile(context, application.getUrl(),
+                            file = getDownloadScheduler().take(tempPath, createAppDownloadTask(application, tempPath),
                                     new InstallUtils.DownloadProgress() {
                                         @Override
                                         public void onDownloadProgress(final int progress, final long total, final long current) {
@@ -876,9 +955,7 @@ public class ConfigUpdater {
                             applicationStatus.installed = true;
                             // Here we remove app from pending downloads
                             // If it fails to install, we'll remember it and do not download any more
-                            if (lastDownload != null) {
-                                DownloadTable.deleteByPath(dbHelper.getWritableDatabase(), lastDownload.getPath());
-                            }
+                            dbHelper.write(db -> DownloadTable.deleteByPath(db, tempPath));
                         } else {
                             applicationStatus.installed = false;
                         }
@@ -895,7 +972,9 @@ public class ConfigUpdater {
                                 applicationsForRun.add(applicationStatus.application);
                             }
                         } else {
+                            applyFailed = true;
                             applicationsForInstall.add( 0, applicationStatus.application );
+                            shutdownDownloads();
                             if (uiNotifier != null) {
                                 uiNotifier.onAppDownloadError(applicationStatus.application);
                             }
@@ -920,11 +999,151 @@ public class ConfigUpdater {
         } else {
             // App install receiver is unregistered after all apps are installed or a timeout happens
             //unregisterAppInstallReceiver();
+            // Downloads of deferred apps are interrupted
+            shutdownDownloads();
             lockRestrictions();
         }
     }
 
+    // Interrupted downloads are resumed next time
+    private void shutdownDownloads() {
+        synchronized (this) {
+            if (downloadScheduler != null) {
+                downloadScheduler.shutdown();
+                downloadScheduler = null;
+            }
+        }
+    }
+
+    private DownloadScheduler getDownloadScheduler() {
+        synchronized (this) {
+            if (downloadScheduler == null) {
+                downloadScheduler = new DownloadScheduler(BuildConfig.PARALLEL_DOWNLOADS);
+            }
+            return downloadScheduler;
+        }
+    }
+
+    // Download stage of the pipeline: the next files are downloaded while the current one is installed.
+    // This is called after the network restriction is checked
+    private void prefetchFiles() {
+        if (BuildConfig.PARALLEL_DOWNLOADS <= 1) {
+            return;
+        }
+        int count = 0;
+        for (RemoteFile remoteFile : filesForInstall) {
+            if (count >= BuildConfig.PARALLEL_DOWNLOADS) {
+                break;
+            }
+            if (!remoteFile.isRemove() && remoteFile.getUrl() != null) {
+                getDownloadScheduler().prefetch(remoteFile.getPath(), createFileDownloadTask(remoteFile));
+                count++;
+            }
+        }
+    }
+
+    // Same as prefetchFiles(), this is called after the time and network restrictions are checked
+    private void prefetchApplications() {
+        if (BuildConfig.PARALLEL_DOWNLOADS <= 1) {
+            return;
+        }
+        int count = 0;
+        for (Application application : applicationsForInstall) {
+            if (count >= BuildConfig.PARALLEL_DOWNLOADS) {
+                break;
+            }
+            if (!application.isRemove() && application.getUrl() != null &&
+                    !application.getUrl().startsWith("market://details") && !application.getUrl().startsWith("file:///")) {
+                String tempPath = InstallUtils.getAppTempPath(context, application.getUrl());
+                getDownloadScheduler().prefetch(tempPath, createAppDownloadTask(application, tempPath));
+                count++;
+            }
+        }
+    }
+
+    // Download tasks check the previous failures themselves because they may run in advance
+    private DownloadScheduler.DownloadTask createFileDownloadTask(final RemoteFile remoteFile) {
+        return progress -> {
+            Download lastDownload = DownloadTable.selectByPath(DatabaseHelper.instance(context).getReadableDatabase(), remoteFile.getPath());
+            if (!canDownload(lastDownload, remoteFile.getPath())) {
+                return null;
+            }
+            String cacheKey = ArtifactCache.getKey(remoteFile);
+            return InstallUtils.downloadFile(context, remoteFile.getUrl(), remoteFile.getPath(),
+                    cacheKey, progress);
+        };
+    }
+
+    private DownloadScheduler.DownloadTask createAppDownloadTask(final Application application, final String tempPath) {
+        return progress -> {
+            Download lastDownload = DownloadTable.selectByPath(DatabaseHelper.instance(context).getReadableDatabase(), tempPath);
+            if (!canDownload(lastDownload, application.getPkg())) {
+                return null;
+            }
+            String cacheKey = ArtifactCache.getKey(application);
+            return InstallUtils.downloadFile(context, application.getUrl(), tempPath,
+                    cacheKey, progress);
+        };
+    }
+
+    // The downloads of the fleet are spread over the window set by the server (see LoadSpreader).
+    // The download stage is posted to start after the delay, so no AsyncTask thread waits for it.
+    // User-initiated updates download at once. Returns true if the stage has been deferred
+    private boolean deferDownloadStage(final Runnable stage) {
+        long notBefore;
+        synchronized (this) {
+            if (downloadNotBefore == 0) {
+                ServerConfig config = settingsHelper.getConfig();
+                long delay = userInteraction || config == null ? 0 :
+                        LoadSpreader.getDelay(context, LoadSpreader.STAGE_DOWNLOAD, config.getDownloadSpreadWindow());
+                downloadNotBefore = System.currentTimeMillis() + delay;
+                if (delay > 0) {
+                    Log.d(Const.LOG_TAG, "Downloads are delayed by " + delay + " ms");
+                }
+            }
+            notBefore = downloadNotBefore;
+        }
+        long delay = notBefore - System.currentTimeMillis();
+        if (delay <= 0) {
+            return false;
+        }
+        final int deferredFlowId = flowId;
+        handler.postDelayed(() -> {
+            if (deferredFlowId == flowId) {
+                stage.run();
+            }
+        }, delay);
+        return true;
+    }
+
+    // Cached items are installed without waiting for the download slot
+    private boolean hasFilesToDownload() {
+        for (RemoteFile remoteFile : filesForInstall) {
+            if (!remoteFile.isRemove() && remoteFile.getUrl() != null &&
+                    !ArtifactCache.contains(context, ArtifactCache.getKey(remoteFile))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasApplicationsToDownload() {
+        for (Application application : applicationsForInstall) {
+            if (!application.isRemove() && application.getUrl() != null &&
+                    !application.getUrl().startsWith("market://details") && !application.getUrl().startsWith("file:///") &&
+                    !ArtifactCache.contains(context, ArtifactCache.getKey(application))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void lockRestrictions() {
+        applyRestrictionLocks();
+        notifyThreads();
+    }
+
+    private void applyRestrictionLocks() {
         if (settingsHelper.getConfig() != null && settingsHelper.getConfig().getRestrictions() != null) {
             Utils.lockUserRestrictions(context, settingsHelper.getConfig().getRestrictions());
         }
@@ -932,7 +1151,6 @@ public class ConfigUpdater {
         Utils.lockPackages(context, lockedPackages, true);
         String unlockedPackages = settingsHelper.getAppPreference(context.getPackageName(), "unlocked_packages");
         Utils.lockPackages(context, unlockedPackages, false);
-        notifyThreads();
     }
 
     private void notifyThreads() {
@@ -974,6 +1192,11 @@ public class ConfigUpdater {
                 context.sendBroadcast(intent);
 
                 RemoteLogger.log(context, Const.LOG_VERBOSE, "Update flow completed");
+                // Let the next update requested by a push message start
+                finishPushInitiated();
+                // Deferred (by time or network restrictions) or failed items require the full flow next time
+                boolean complete = !applyFailed && filesForInstall.isEmpty() && applicationsForInstall.isEmpty();
+                appliedConfigHash = complete ? configHash : null;
                 if (pendingInstallations.size() > 0) {
                     // Some apps are still pending installation
                     // Let's wait until they're all installed
@@ -1172,6 +1395,7 @@ public class ConfigUpdater {
                 public void onInstallError(String msg) {
                     Log.i(Const.LOG_TAG, "installApplication(): error installing app " + packageName);
                     pendingInstallations.remove(packageName);
+                    appliedConfigHash = null;
                     if (file.exists()) {
                         file.delete();
                     }
@@ -60,4 +60,15 @@ public class CryptoHelper {
         } catch ( Exception e ) { throw new RuntimeException( e ); }
     }
 
+    // Same format as getSHA1String(), for digests calculated by the caller
+    public static String getHexString( byte[] digest ) {
+        char[] hexChars = new char[ digest.length * 2 ];
+        for ( int i = 0; i < digest.length; i++ ) {
+            int v = digest[ i ] & 0xFF;
+            hexChars[ i * 2 ] = hexArray[ v >>> 4 ];
+            hexChars[ i * 2 + 1 ] = hexArray[ v & 0x0F ];
+        }
+        return new String( hexChars ).toUpperCase();
+    }
+
 }
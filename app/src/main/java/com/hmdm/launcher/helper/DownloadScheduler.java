@@ -0,0 +1,125 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.helper;
+
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.util.InstallUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download stage of the ConfigUpdater pipeline. The next files and apps are downloaded
+ * by a small thread pool while the current one is being installed; installation stays
+ * sequential and takes the downloads in the config order by take().
+ * Downloads are identified by their DownloadTable path.
+ */
+public class DownloadScheduler {
+
+    public interface DownloadTask {
+        // Returns null if the download should not be done
+        File download(InstallUtils.DownloadProgress progress) throws Exception;
+    }
+
+    private static final long IDLE_TIMEOUT_SEC = 30;
+
+    private final ExecutorService executor;
+    private final Map<String, Future<File>> downloads = new HashMap<>();
+    // Paths prefetched once are not prefetched again: a later item with the same path
+    // (the same temp file) is downloaded by take() after the previous one is installed
+    private final Set<String> prefetched = new HashSet<>();
+
+    // Progress is only shown for the download awaited by the install stage
+    private volatile String foregroundPath;
+    private volatile InstallUtils.DownloadProgress foregroundProgress;
+
+    public DownloadScheduler(int poolSize) {
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(Math.max(poolSize, 1), Math.max(poolSize, 1),
+                IDLE_TIMEOUT_SEC, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        // The update flow may stop on an error without shutting down the scheduler
+        threadPool.allowCoreThreadTimeOut(true);
+        executor = threadPool;
+    }
+
+    // Starts the download in the background unless it's already started
+    public synchronized void prefetch(final String path, final DownloadTask task) {
+        if (path == null || prefetched.contains(path) || executor.isShutdown()) {
+            return;
+        }
+        prefetched.add(path);
+        Log.d(Const.LOG_TAG, "Scheduling download: " + path);
+        downloads.put(path, executor.submit(createCallable(path, task)));
+    }
+
+    // Waits for the download to complete, starts it if it's not scheduled yet
+    public File take(String path, DownloadTask task, InstallUtils.DownloadProgress progress) throws Exception {
+        foregroundPath = path;
+        foregroundProgress = progress;
+        Future<File> future;
+        synchronized (this) {
+            future = downloads.remove(path);
+        }
+        try {
+            if (future == null) {
+                return task.download(progress);
+            }
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            foregroundPath = null;
+            foregroundProgress = null;
+        }
+    }
+
+    // Interrupts the downloads not taken yet. The partially downloaded files are resumed next time
+    public synchronized void shutdown() {
+        for (Future<File> future : downloads.values()) {
+            future.cancel(true);
+        }
+        downloads.clear();
+        executor.shutdownNow();
+    }
+
+    private Callable<File> createCallable(final String path, final DownloadTask task) {
+        return () -> task.download(new InstallUtils.DownloadProgress() {
+            @Override
+            public void onDownloadProgress(int progress, long total, long current) {
+                InstallUtils.DownloadProgress handler = foregroundProgress;
+                if (handler != null && path.equals(foregroundPath)) {
+                    handler.onDownloadProgress(progress, total, current);
+                }
+            }
+        });
+    }
+}
@@ -29,6 +29,7 @@ import com.hmdm.launcher.util.DeviceInfoProvider;
 import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.Utils;
+import com.hmdm.launcher.worker.DatabaseRetentionWorker;
 import com.hmdm.launcher.worker.PushNotificationWorker;
 import com.hmdm.launcher.worker.ScheduledAppUpdateWorker;
 import com.hmdm.launcher.worker.SendDeviceInfoWorker;
@@ -72,6 +73,7 @@ public class Initializer {
                     PushNotificationWorker.schedule(context);
                 }
                 ScheduledAppUpdateWorker.schedule(context);
+                DatabaseRetentionWorker.schedule(context);
 
                 // Run completion in the UI thread
                 uiHandler.post(completion);
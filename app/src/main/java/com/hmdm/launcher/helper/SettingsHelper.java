@@ -22,13 +22,16 @@ package com.hmdm.launcher.helper;
 import android.content.Context;
 import android.content.SharedPreferences;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.json.Application;
 import com.hmdm.launcher.json.ApplicationSetting;
+import com.hmdm.launcher.json.JsonCodec;
 import com.hmdm.launcher.json.RemoteFile;
 import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.server.RequestCompressionInterceptor;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -48,6 +51,8 @@ public class SettingsHelper {
     private static final String PREF_KEY_GROUP = ".helpers.GROUP";
     private static final String PREF_KEY_DEVICE_ID_USE = ".helpers.DEVICE_ID_USE";
     private static final String PREF_KEY_CONFIG = ".helpers.CONFIG";
+    private static final String PREF_KEY_CONFIG_HASH = ".helpers.CONFIG_HASH";
+    private static final String CONFIG_BASE_FILE = "config_base.json";
     private static final String PREF_KEY_IP_ADDRESS = ".helpers.IP_ADDRESS";
     private static final String PREF_QR_PROVISIONING = ".helpers.QR_PROVISIONING";
     private static final String PREF_CFG_UPDATE_TIMESTAMP = ".helpers.CFG_UPDATE_TIMESTAMP";
@@ -64,6 +69,8 @@ public class SettingsHelper {
     private static String PACKAGE_NAME;
 
     private SharedPreferences sharedPreferences;
+    // Server config as received, the base for incremental updates
+    private File configBaseFile;
     private ServerConfig config;
     private ServerConfig oldConfig;
     private Map<String,ApplicationSetting> appSettings = new HashMap<>();
@@ -82,6 +89,7 @@ public class SettingsHelper {
     public SettingsHelper(Context context) {
         PACKAGE_NAME = context.getPackageName();
         sharedPreferences = context.getSharedPreferences(PACKAGE_NAME + PREFERENCES_ID, Context.MODE_PRIVATE );
+        configBaseFile = new File(context.getFilesDir(), CONFIG_BASE_FILE);
         initConfig();
     }
 
@@ -95,12 +103,11 @@ public class SettingsHelper {
     private void initConfig() {
         try {
             if ( sharedPreferences.contains(PACKAGE_NAME + PREF_KEY_CONFIG) ) {
-                ObjectMapper mapper = new ObjectMapper();
-                config = mapper.readValue(
-                        sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CONFIG, "" ),
-                        ServerConfig.class );
+                config = JsonCodec.getServerConfigReader().readValue(
+                        sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CONFIG, "" ) );
                 updateAppSettingsMap(config);
                 updateAllowedClassesSet(config);
+                updateRequestCompression(config);
             }
         } catch ( Exception e ) {
             e.printStackTrace();
@@ -294,8 +301,7 @@ public class SettingsHelper {
 
     public void updateConfig( ServerConfig config ) {
         try {
-            ObjectMapper objectMapper = new ObjectMapper();
-            sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CONFIG, objectMapper.writeValueAsString( config ) ).commit();
+            sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CONFIG, JsonCodec.getServerConfigWriter().writeValueAsString( config ) ).commit();
         } catch ( Exception e ) {
             e.printStackTrace();
             // Do not apply changes when there's an error while writing settings
@@ -303,14 +309,55 @@ public class SettingsHelper {
         }
         updateAppSettingsMap(config);
         updateAllowedClassesSet(config);
+        updateRequestCompression(config);
         this.oldConfig = this.config;
         this.config = config;
     }
 
+    private void updateRequestCompression(ServerConfig config) {
+        RequestCompressionInterceptor.setEnabled(config != null && config.getRequestCompression() != null &&
+                config.getRequestCompression());
+    }
+
     public ServerConfig getConfig() {
         return config;
     }
 
+    // Entity tag (or content hash) of the server config stored by updateConfig()
+    public boolean setConfigHash(String configHash) {
+        return sharedPreferences.edit().putString(PACKAGE_NAME + PREF_KEY_CONFIG_HASH, configHash).commit();
+    }
+
+    public String getConfigHash() {
+        return sharedPreferences.getString(PACKAGE_NAME + PREF_KEY_CONFIG_HASH, null);
+    }
+
+    // The server config JSON matching getConfigHash(), null to remove
+    public void setConfigBase(JsonNode configBase) {
+        try {
+            if (configBase == null) {
+                configBaseFile.delete();
+            } else {
+                JsonCodec.getMapper().writeValue(configBaseFile, configBase);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            configBaseFile.delete();
+        }
+    }
+
+    public JsonNode getConfigBase() {
+        if (!configBaseFile.exists()) {
+            return null;
+        }
+        try {
+            return JsonCodec.getMapper().readTree(configBaseFile);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     public void removeRemoteFile(RemoteFile remoteFile) {
         Iterator<RemoteFile> it = config.getFiles().iterator();
         while (it.hasNext()) {
@@ -318,6 +365,8 @@ public class SettingsHelper {
             if ( file.getPath().equals( remoteFile.getPath() ) ) {
                 it.remove();
                 updateConfig(config);
+                // The config differs from the server one now, so it must be applied again
+                setConfigHash(null);
                 return;
             }
         }
@@ -330,6 +379,8 @@ public class SettingsHelper {
             if (app.getPkg().equals(application.getPkg())) {
                 it.remove();
                 updateConfig(config);
+                // The config differs from the server one now, so it must be applied again
+                setConfigHash(null);
                 return;
             }
         }
@@ -342,6 +393,7 @@ public class SettingsHelper {
             if (app.getPkg().equals(application.getPkg())) {
                 app.setUrl(null);
                 updateConfig(config);
+                setConfigHash(null);
                 return;
             }
         }
@@ -36,6 +36,9 @@ public class Download {
     private long lastAttemptTime;
     private boolean downloaded;
     private boolean installed;
+    // Partially downloaded file to be resumed: its length and ETag / Last-Modified of the server response
+    private long partialLength;
+    private String validator;
 
     public Download() {}
 
@@ -47,6 +50,8 @@ public class Download {
         lastAttemptTime = download.lastAttemptTime;
         downloaded = download.downloaded;
         installed = download.installed;
+        partialLength = download.partialLength;
+        validator = download.validator;
     }
 
     @SuppressLint("Range")
@@ -58,6 +63,8 @@ public class Download {
         setLastAttemptTime(cursor.getLong(cursor.getColumnIndex("lastAttemptTime")));
         setDownloaded(cursor.getInt(cursor.getColumnIndex("downloaded")) != 0);
         setInstalled(cursor.getInt(cursor.getColumnIndex("installed")) != 0);
+        setPartialLength(cursor.getLong(cursor.getColumnIndex("partialLength")));
+        setValidator(cursor.getString(cursor.getColumnIndex("validator")));
     }
 
     @JsonIgnore
@@ -117,4 +124,20 @@ public class Download {
     public void setInstalled(boolean installed) {
         this.installed = installed;
     }
+
+    public long getPartialLength() {
+        return partialLength;
+    }
+
+    public void setPartialLength(long partialLength) {
+        this.partialLength = partialLength;
+    }
+
+    public String getValidator() {
+        return validator;
+    }
+
+    public void setValidator(String validator) {
+        this.validator = validator;
+    }
 }
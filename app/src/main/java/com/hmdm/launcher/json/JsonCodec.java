@@ -0,0 +1,88 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.json;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.hmdm.launcher.Const;
+
+import java.util.List;
+
+/**
+ * Process-wide Jackson codec. Creating an ObjectMapper is cheap, but each mapper introspects
+ * the classes and builds its serializers and deserializers again on the first use.
+ * All JSON processing (including the Retrofit converter) uses the mapper below, and the readers
+ * and writers of the main types resolve their (de)serializers when created, so this is done
+ * once per process, in the background (see warmUp()).
+ */
+public class JsonCodec {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final ObjectReader serverConfigReader = mapper.readerFor(ServerConfig.class);
+    private static final ObjectWriter serverConfigWriter = mapper.writerFor(ServerConfig.class);
+    // Items are written one by one to a streamed upload body, so they are not flushed each time
+    private static final ObjectWriter detailedInfoWriter = mapper.writerFor(DetailedInfo.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    public static ObjectMapper getMapper() {
+        return mapper;
+    }
+
+    public static JsonFactory getFactory() {
+        return mapper.getFactory();
+    }
+
+    public static ObjectReader getServerConfigReader() {
+        return serverConfigReader;
+    }
+
+    public static ObjectWriter getServerConfigWriter() {
+        return serverConfigWriter;
+    }
+
+    public static ObjectWriter getDetailedInfoWriter() {
+        return detailedInfoWriter;
+    }
+
+    // Initializes the codec (the static fields above), this should be called in a background thread
+    // at the start, so the first config request doesn't wait for the class introspection
+    public static void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            // Serializers and deserializers are cached by the mapper, so the readers and writers
+            // created by the Retrofit converter for these types will find them ready
+            mapper.readerFor(ServerConfigResponse.class);
+            mapper.readerFor(PushResponse.class);
+            mapper.readerFor(RemoteLogConfigResponse.class);
+            mapper.readerFor(DetailedInfoConfigResponse.class);
+            mapper.writerFor(DeviceInfo.class);
+            mapper.writerFor(new TypeReference<List<RemoteLogItem>>() {});
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        Log.d(Const.LOG_TAG, "JSON codec initialized in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
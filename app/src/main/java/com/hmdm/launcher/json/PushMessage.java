@@ -25,6 +25,8 @@ import org.json.JSONObject;
 
 @JsonIgnoreProperties( ignoreUnknown = true )
 public class PushMessage {
+    // Optional, used to drop the same message received by several transports
+    private String id;
     private String messageType;
     private String payload;
 
@@ -45,6 +47,14 @@ public class PushMessage {
     public static final String TYPE_GRANT_PERMISSIONS = "grantPermissions";
     public static final String TYPE_ADMIN_PANEL = "adminPanel";
 
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
     public String getMessageType() {
         return messageType;
     }
@@ -64,6 +64,11 @@ public class ServerConfig {
     private String pushOptions;
     private Integer keepaliveTime;
     private String requestUpdates;
+    // Set by the server if it accepts gzip-compressed request bodies
+    private Boolean requestCompression;
+    // Windows (in seconds) to spread the reaction of the devices to a push message (see LoadSpreader)
+    private Integer pushReactionWindow;
+    private Integer downloadSpreadWindow;
     private Boolean disableLocation;
     private String appPermissions;
 
@@ -714,4 +719,28 @@ public class ServerConfig {
     public void setActions(List<Action> actions) {
         this.actions = actions;
     }
+
+    public Boolean getRequestCompression() {
+        return requestCompression;
+    }
+
+    public void setRequestCompression(Boolean requestCompression) {
+        this.requestCompression = requestCompression;
+    }
+
+    public Integer getPushReactionWindow() {
+        return pushReactionWindow;
+    }
+
+    public void setPushReactionWindow(Integer pushReactionWindow) {
+        this.pushReactionWindow = pushReactionWindow;
+    }
+
+    public Integer getDownloadSpreadWindow() {
+        return downloadSpreadWindow;
+    }
+
+    public void setDownloadSpreadWindow(Integer downloadSpreadWindow) {
+        this.downloadSpreadWindow = downloadSpreadWindow;
+    }
 }
@@ -489,6 +489,7 @@ public class ProUtils {
      */
     public static void processLocation(Context context, Location location, String provider) {
         // Location tracking not implemented in this version
+        // Locations must be stored through TrajectoryFilter.getInstance().process(context, location)
     }
 
     public static String getAppName(Context context) {
@@ -0,0 +1,138 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.JsonMergePatch;
+
+import okhttp3.ResponseBody;
+import retrofit2.Response;
+
+/**
+ * Incremental config request (see BuildConfig.CONFIG_DELTA). The hash of the known config
+ * is sent together with the delta format, and the server may respond by a JSON merge patch
+ * against the stored config base. The patched config is verified by its hash; if the patch
+ * can't be applied, the config is requested again in full and unconditionally.
+ */
+public class ConfigDeltaSync {
+
+    public interface ConfigRequest {
+        // Null values mean the header is not sent
+        Response<ResponseBody> execute(String knownConfigHash, String deltaFormat) throws Exception;
+    }
+
+    public interface ConfigReader {
+        // Returns the data of the (verified) response as a JSON tree, or null on error
+        JsonNode read(Response<ResponseBody> response) throws Exception;
+    }
+
+    private static final int HTTP_NOT_MODIFIED = 304;
+
+    private final ConfigRequest request;
+    private final ConfigReader reader;
+
+    private Response<ResponseBody> response;
+    private String configHash;
+    private boolean patched;
+    private String errorText;
+
+    public ConfigDeltaSync(ConfigRequest request, ConfigReader reader) {
+        this.request = request;
+        this.reader = reader;
+    }
+
+    // Returns the full config JSON, or null if it's not modified (see isNotModified()) or on error
+    public JsonNode fetch(String knownConfigHash, JsonNode configBase) throws Exception {
+        return fetch(knownConfigHash, knownConfigHash != null ? configBase : null, true);
+    }
+
+    private JsonNode fetch(String knownConfigHash, JsonNode configBase, boolean allowDelta) throws Exception {
+        configHash = null;
+        patched = false;
+        response = request.execute(knownConfigHash, configBase != null ? Const.CONFIG_DELTA_FORMAT : null);
+        if (!response.isSuccessful()) {
+            return null;
+        }
+
+        JsonNode config = reader.read(response);
+        if (config == null) {
+            return null;
+        }
+        if (!Const.CONFIG_DELTA_FORMAT.equals(response.headers().get(Const.HEADER_CONFIG_DELTA))) {
+            configHash = getEntityTag(JsonMergePatch.getHash(config));
+            return config;
+        }
+
+        // The delta is signed as is, the result is verified by its hash
+        String expectedHash = response.headers().get(Const.HEADER_CONFIG_HASH);
+        if (configBase == null || expectedHash == null) {
+            if (!allowDelta) {
+                errorText = "Config delta received in response to a full config request";
+                Log.e(Const.LOG_TAG, errorText);
+                return null;
+            }
+            Log.w(Const.LOG_TAG, "Unexpected config delta, requesting full config");
+            return fetch(null, null, false);
+        }
+        config = JsonMergePatch.apply(configBase, config);
+        String hash = JsonMergePatch.getHash(config);
+        if (!expectedHash.equalsIgnoreCase(hash)) {
+            Log.w(Const.LOG_TAG, "Config hash " + hash + " doesn't match expected " + expectedHash + " after applying delta, requesting full config");
+            return fetch(null, null, false);
+        }
+        Log.d(Const.LOG_TAG, "Config delta applied, hash: " + hash);
+        configHash = getEntityTag(hash);
+        patched = true;
+        return config;
+    }
+
+    // Quoted to be a valid entity tag in If-None-Match
+    private static String getEntityTag(String hash) {
+        return "\"" + hash + "\"";
+    }
+
+    // The last response received
+    public Response<ResponseBody> getResponse() {
+        return response;
+    }
+
+    public boolean isNotModified() {
+        return response != null && response.code() == HTTP_NOT_MODIFIED;
+    }
+
+    // Canonical hash of the returned config (see JsonMergePatch.getHash()) as an entity tag.
+    // It's the same for full and patched configs, so the server recognizes it in both cases
+    public String getConfigHash() {
+        return configHash;
+    }
+
+    // Set if the returned config is the stored base patched by the last response
+    public boolean isPatched() {
+        return patched;
+    }
+
+    // Set if the response couldn't be processed, though the request was successful
+    public String getErrorText() {
+        return errorText;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import android.database.Cursor;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.hmdm.launcher.json.JsonCodec;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Request body which streams the rows of a database cursor as a JSON array
+ * directly to the network, so the memory usage doesn't depend on the row count.
+ * The cursor is queried each time the body is written (OkHttp may write it again
+ * on retry), so the source query must return the same rows each time.
+ */
+public class CursorJsonRequestBody extends RequestBody {
+
+    public interface CursorSource {
+        Cursor query();
+    }
+
+    // Columns are read by their positions in the source query
+    public interface RowWriter {
+        void write(JsonGenerator generator, Cursor cursor) throws IOException;
+    }
+
+    private static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final CursorSource source;
+    private final RowWriter rowWriter;
+
+    public CursorJsonRequestBody(CursorSource source, RowWriter rowWriter) {
+        this.source = source;
+        this.rowWriter = rowWriter;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE_JSON;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        Cursor cursor = source.query();
+        try {
+            JsonGenerator generator = JsonCodec.getFactory().createGenerator(sink.outputStream(), JsonEncoding.UTF8);
+            generator.writeStartArray();
+            while (cursor.moveToNext()) {
+                generator.writeStartObject();
+                rowWriter.write(generator, cursor);
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            // Do not close the generator: it would close the sink
+            generator.flush();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // NULL numbers and booleans are sent as 0 and false, same as the POJOs read by Cursor.getInt()
+    // and other getters did; NULL strings are sent as null
+    public static void writeLongField(JsonGenerator generator, String name, Cursor cursor, int index) throws IOException {
+        generator.writeNumberField(name, cursor.isNull(index) ? 0 : cursor.getLong(index));
+    }
+
+    public static void writeDoubleField(JsonGenerator generator, String name, Cursor cursor, int index) throws IOException {
+        generator.writeNumberField(name, cursor.isNull(index) ? 0 : cursor.getDouble(index));
+    }
+
+    public static void writeBooleanField(JsonGenerator generator, String name, Cursor cursor, int index) throws IOException {
+        generator.writeBooleanField(name, !cursor.isNull(index) && cursor.getInt(index) != 0);
+    }
+
+    public static void writeStringField(JsonGenerator generator, String name, Cursor cursor, int index) throws IOException {
+        if (cursor.isNull(index)) {
+            generator.writeNullField(name);
+        } else {
+            generator.writeStringField(name, cursor.getString(index));
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.util.RemoteLogger;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
+
+/**
+ * Compresses the bodies of the requests marked by ServerService.COMPRESSIBLE_HEADER
+ * (uploads of logs, detailed info, locations and device info) by gzip.
+ * Compression is enabled only if the server declares it in the config (ServerConfig.requestCompression).
+ * The original and sent body sizes are counted per endpoint to measure the traffic savings,
+ * the counters are sent to the server log by reportStats().
+ */
+public class RequestCompressionInterceptor implements Interceptor {
+    // Smaller bodies are sent as is, the gzip overhead is not worth it
+    public static final long MIN_COMPRESSED_SIZE = 1024;
+
+    private static final long STATS_REPORT_INTERVAL_MS = 6 * 60 * 60 * 1000L;
+
+    private static volatile boolean enabled;
+
+    // Endpoint => requests, original bytes, sent bytes
+    private static final Map<String, long[]> counters = new TreeMap<>();
+    private static long lastReportTime;
+
+    public static void setEnabled(boolean enabled) {
+        RequestCompressionInterceptor.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String endpoint = request.header(ServerService.COMPRESSIBLE_HEADER);
+        if (endpoint == null) {
+            return chain.proceed(request);
+        }
+        Request.Builder builder = request.newBuilder().removeHeader(ServerService.COMPRESSIBLE_HEADER);
+        RequestBody body = request.body();
+        if (body == null) {
+            return chain.proceed(builder.build());
+        }
+
+        // Streamed bodies have unknown length and are usually large
+        long length = body.contentLength();
+        boolean compress = enabled && request.header("Content-Encoding") == null &&
+                (length < 0 || length >= MIN_COMPRESSED_SIZE);
+        if (compress) {
+            builder.header("Content-Encoding", "gzip");
+        }
+        builder.method(request.method(), new CountingRequestBody(body, endpoint, compress));
+        return chain.proceed(builder.build());
+    }
+
+    // Returns the counters in a human readable form, for diagnostics
+    public static String getStats() {
+        StringBuilder result = new StringBuilder();
+        synchronized (counters) {
+            for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+                long[] values = entry.getValue();
+                if (result.length() > 0) {
+                    result.append(", ");
+                }
+                result.append(entry.getKey()).append(": ").append(values[0]).append(" requests, ")
+                        .append(values[1]).append(" -> ").append(values[2]).append(" bytes");
+            }
+        }
+        return result.toString();
+    }
+
+    // Sends the counters to the server log once in STATS_REPORT_INTERVAL_MS, called by a periodic worker
+    public static void reportStats(Context context) {
+        synchronized (counters) {
+            long now = System.currentTimeMillis();
+            if (counters.isEmpty() || now - lastReportTime < STATS_REPORT_INTERVAL_MS) {
+                return;
+            }
+            lastReportTime = now;
+        }
+        RemoteLogger.log(context, Const.LOG_INFO, "Request body sizes (" + (enabled ? "compression on" : "compression off") +
+                "): " + getStats());
+    }
+
+    private static void count(String endpoint, long originalBytes, long sentBytes) {
+        synchronized (counters) {
+            long[] values = counters.get(endpoint);
+            if (values == null) {
+                values = new long[3];
+                counters.put(endpoint, values);
+            }
+            values[0]++;
+            values[1] += originalBytes;
+            values[2] += sentBytes;
+        }
+        Log.d(Const.LOG_TAG, "Request body " + endpoint + ": " + originalBytes + " -> " + sentBytes + " bytes");
+    }
+
+    private static class CountingRequestBody extends RequestBody {
+        private final RequestBody body;
+        private final String endpoint;
+        private final boolean compress;
+
+        public CountingRequestBody(RequestBody body, String endpoint, boolean compress) {
+            this.body = body;
+            this.endpoint = endpoint;
+            this.compress = compress;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            // Compressed length is not known in advance
+            return compress ? -1 : body.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            CountingSink sentSink = new CountingSink(sink);
+            CountingSink originalSink = new CountingSink(compress ? new GzipSink(sentSink) : sentSink);
+            BufferedSink bufferedSink = Okio.buffer(originalSink);
+            body.writeTo(bufferedSink);
+            if (compress) {
+                // Writes the gzip trailer
+                bufferedSink.close();
+            } else {
+                bufferedSink.flush();
+            }
+            count(endpoint, originalSink.count, sentSink.count);
+        }
+    }
+
+    private static class CountingSink extends ForwardingSink {
+        private long count;
+
+        public CountingSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            count += byteCount;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Call;
+
+/**
+ * Health tracking of the primary and secondary servers. As an interceptor of the shared
+ * HTTP client, it records the result and latency of each request per host. A host is down
+ * after several failed requests in a row; cancelled and interrupted requests and the requests
+ * tagged {@link #UNTRACKED} (file downloads) are not counted. The down host is not used while
+ * the other one is up, and it's probed
+ * in the background with an exponential backoff until it responds again.
+ * When both hosts are up, the primary one is preferred unless the secondary is much faster.
+ */
+public class ServerEndpointSelector implements Interceptor {
+    // Weight of the last request in the moving averages
+    private static final double SMOOTHING = 0.2;
+    // The secondary server is preferred if its score is this much better
+    private static final double SWITCH_RATIO = 3;
+    // Consecutive failures after which the host is considered down
+    private static final int FAILURES_TO_DOWN = 2;
+
+    private static final long MIN_PROBE_DELAY_MS = 30 * 1000L;
+    private static final long MAX_PROBE_DELAY_MS = 30 * 60 * 1000L;
+
+    private static class Health {
+        double successRate = 1;
+        // Negative if unknown
+        double latency = -1;
+        int failures;
+        long probeDelay = MIN_PROBE_DELAY_MS;
+        boolean probeScheduled;
+
+        boolean isDown() {
+            return failures >= FAILURES_TO_DOWN;
+        }
+
+        double getScore() {
+            return latency / Math.max(successRate, 0.05);
+        }
+    }
+
+    private static final Map<String, Health> hosts = new HashMap<>();
+    // Hosts of the server URLs, only they are probed
+    private static final Set<String> serverHosts = new HashSet<>();
+    private static boolean secondaryPreferred;
+
+    private static ScheduledExecutorService probeExecutor;
+
+    // Tag of the requests which don't affect the host health, such as long file downloads
+    // which may be interrupted or time out regardless of the server state
+    public static final Object UNTRACKED = new Object();
+
+    // Requests cancelled by the app, their failures are not counted
+    private static final Set<Request> cancelledRequests =
+            Collections.newSetFromMap(new WeakHashMap<Request, Boolean>());
+
+    // Cancels the call without marking its host down
+    public static void cancel(Call<?> call) {
+        synchronized (ServerEndpointSelector.class) {
+            cancelledRequests.add(call.request());
+        }
+        call.cancel();
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (request.tag() == UNTRACKED) {
+            return chain.proceed(request);
+        }
+        String host = getHostKey(request.url());
+        long start = System.currentTimeMillis();
+        try {
+            Response response = chain.proceed(request);
+            // Any response means the server is reachable (500 is returned by long polling on timeout)
+            onSuccess(host, System.currentTimeMillis() - start);
+            return response;
+        } catch (IOException e) {
+            if (isServerFailure(request, e)) {
+                onFailure(host);
+            }
+            throw e;
+        }
+    }
+
+    // Cancellation and thread interruption say nothing about the server
+    private static boolean isServerFailure(Request request, IOException e) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false;
+        }
+        synchronized (ServerEndpointSelector.class) {
+            return !cancelledRequests.remove(request);
+        }
+    }
+
+    // Returns true if requests should be sent to the secondary server first
+    public static synchronized boolean isSecondaryPreferred(String primaryUrl, String secondaryUrl) {
+        String primary = getHostKey(HttpUrl.parse(primaryUrl));
+        String secondary = getHostKey(HttpUrl.parse(secondaryUrl));
+        if (primary == null || secondary == null || primary.equals(secondary)) {
+            return false;
+        }
+        serverHosts.add(primary);
+        serverHosts.add(secondary);
+
+        Health primaryHealth = hosts.get(primary);
+        Health secondaryHealth = hosts.get(secondary);
+        boolean primaryDown = primaryHealth != null && primaryHealth.isDown();
+        boolean secondaryDown = secondaryHealth != null && secondaryHealth.isDown();
+
+        boolean result;
+        if (primaryDown != secondaryDown) {
+            result = primaryDown;
+        } else if (primaryHealth != null && secondaryHealth != null &&
+                primaryHealth.latency >= 0 && secondaryHealth.latency >= 0) {
+            result = secondaryHealth.getScore() * SWITCH_RATIO < primaryHealth.getScore();
+        } else {
+            result = false;
+        }
+        if (result != secondaryPreferred) {
+            secondaryPreferred = result;
+            Log.i(Const.LOG_TAG, "Preferred server: " + (result ? secondary : primary) + ", state: " + getState());
+        }
+        return result;
+    }
+
+    // Human readable state of the hosts, for diagnostics
+    public static synchronized String getState() {
+        StringBuilder result = new StringBuilder();
+        for (String host : serverHosts) {
+            Health health = hosts.get(host);
+            if (result.length() > 0) {
+                result.append("; ");
+            }
+            result.append(host);
+            if (health == null) {
+                result.append(": unknown");
+                continue;
+            }
+            result.append(health.isDown() ? ": down" : ": up")
+                    .append(", success rate ").append(Math.round(health.successRate * 100)).append("%");
+            if (health.latency >= 0) {
+                result.append(", latency ").append(Math.round(health.latency)).append(" ms");
+            }
+            if (health.isDown()) {
+                result.append(", failures ").append(health.failures)
+                        .append(", probe backoff ").append(health.probeDelay / 1000).append(" s");
+            }
+        }
+        return result.toString();
+    }
+
+    private static synchronized void onSuccess(String host, long latency) {
+        if (host == null) {
+            return;
+        }
+        Health health = getHealth(host);
+        if (health.isDown()) {
+            Log.i(Const.LOG_TAG, "Server " + host + " is up again");
+        }
+        health.successRate += SMOOTHING * (1 - health.successRate);
+        // Long polling requests are waiting for messages, their duration is not a latency
+        if (latency < Const.CONNECTION_TIMEOUT) {
+            health.latency = health.latency < 0 ? latency : health.latency + SMOOTHING * (latency - health.latency);
+        }
+        health.failures = 0;
+        health.probeDelay = MIN_PROBE_DELAY_MS;
+    }
+
+    private static synchronized void onFailure(String host) {
+        if (host == null) {
+            return;
+        }
+        Health health = getHealth(host);
+        health.successRate -= SMOOTHING * health.successRate;
+        health.failures++;
+        if (health.isDown() && serverHosts.contains(host) && !health.probeScheduled) {
+            scheduleProbe(host, health);
+        }
+    }
+
+    private static void scheduleProbe(final String host, final Health health) {
+        if (probeExecutor == null) {
+            probeExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ServerProbe");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        health.probeScheduled = true;
+        long delay = health.probeDelay;
+        health.probeDelay = Math.min(health.probeDelay * 2, MAX_PROBE_DELAY_MS);
+        probeExecutor.schedule(() -> probe(host, health), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static void probe(String host, Health health) {
+        synchronized (ServerEndpointSelector.class) {
+            health.probeScheduled = false;
+            if (!health.isDown()) {
+                // Recovered by a regular request
+                return;
+            }
+        }
+        Log.d(Const.LOG_TAG, "Probing server " + host);
+        // The result is recorded by intercept(), a failure schedules the next probe
+        Request request = new Request.Builder().url(host + "/").head().build();
+        try {
+            SharedHttpClient.getClient().newCall(request).execute().close();
+        } catch (Exception e) {
+            // Already recorded
+        }
+    }
+
+    private static Health getHealth(String host) {
+        Health health = hosts.get(host);
+        if (health == null) {
+            health = new Health();
+            hosts.put(host, health);
+        }
+        return health;
+    }
+
+    private static String getHostKey(HttpUrl url) {
+        if (url == null) {
+            return null;
+        }
+        return url.scheme() + "://" + url.host() + ":" + url.port();
+    }
+}
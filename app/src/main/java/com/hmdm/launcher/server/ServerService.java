@@ -20,6 +20,7 @@
 package com.hmdm.launcher.server;
 
 
+import com.hmdm.launcher.Const;
 import com.hmdm.launcher.db.LocationTable;
 import com.hmdm.launcher.json.DetailedInfo;
 import com.hmdm.launcher.json.DetailedInfoConfigResponse;
@@ -27,11 +28,11 @@ import com.hmdm.launcher.json.DeviceEnrollOptions;
 import com.hmdm.launcher.json.DeviceInfo;
 import com.hmdm.launcher.json.PushResponse;
 import com.hmdm.launcher.json.RemoteLogConfigResponse;
-import com.hmdm.launcher.json.RemoteLogItem;
 import com.hmdm.launcher.json.ServerConfigResponse;
 
 import java.util.List;
 
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
@@ -46,6 +47,11 @@ public interface ServerService {
 
     static final String REQUEST_SIGNATURE_HEADER = "X-Request-Signature";
     static final String CPU_ARCH_HEADER = "X-CPU-Arch";
+    static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    // Marks the request body as compressible, the value is the endpoint name for traffic counters
+    // (see RequestCompressionInterceptor)
+    static final String COMPRESSIBLE_HEADER = "X-Compressible";
+    static final String CONFIG_DELTA_HEADER = Const.HEADER_CONFIG_DELTA;
 
     @POST("{project}/rest/public/sync/configuration/{number}")
     Call<ResponseBody> enrollAndGetServerConfigRaw(@Path("project") String project,
@@ -58,7 +64,9 @@ public interface ServerService {
     Call<ResponseBody> getServerConfigRaw(@Path("project") String project,
                                           @Path("number") String number,
                                           @Header(REQUEST_SIGNATURE_HEADER) String signature,
-                                          @Header(CPU_ARCH_HEADER) String cpuArch);
+                                          @Header(CPU_ARCH_HEADER) String cpuArch,
+                                          @Header(IF_NONE_MATCH_HEADER) String configHash,
+                                          @Header(CONFIG_DELTA_HEADER) String deltaFormat);
 
     @POST("{project}/rest/public/sync/configuration/{number}")
     Call<ServerConfigResponse> enrollAndGetServerConfig(@Path("project") String project,
@@ -71,10 +79,11 @@ public interface ServerService {
     Call<ServerConfigResponse> getServerConfig(@Path("project") String project,
                                                @Path("number") String number,
                                                @Header(REQUEST_SIGNATURE_HEADER) String signature,
-                                               @Header(CPU_ARCH_HEADER) String cpuArch);
+                                               @Header(CPU_ARCH_HEADER) String cpuArch,
+                                               @Header(IF_NONE_MATCH_HEADER) String configHash);
 
     @POST("{project}/rest/public/sync/info")
-    @Headers("Content-Type: application/json")
+    @Headers({"Content-Type: application/json", COMPRESSIBLE_HEADER + ": device"})
     Call<ResponseBody> sendDevice(@Path("project") String project, @Body DeviceInfo deviceInfo);
 
     @GET("{project}/rest/notifications/device/{number}")
@@ -90,18 +99,27 @@ public interface ServerService {
     @GET( "{project}/rest/plugins/devicelog/log/rules/{number}" )
     Call<RemoteLogConfigResponse> getRemoteLogConfig(@Path("project") String project, @Path("number") String number);
 
+    // The log items are streamed from the database (see CursorJsonRequestBody)
     @POST("{project}/rest/plugins/devicelog/log/list/{number}")
-    @Headers("Content-Type: application/json")
-    Call<ResponseBody> sendLogs(@Path("project") String project, @Path("number") String number, @Body List<RemoteLogItem> logItems);
+    @Headers(COMPRESSIBLE_HEADER + ": logs")
+    Call<ResponseBody> sendLogsRaw(@Path("project") String project, @Path("number") String number, @Body RequestBody logItems);
 
     @PUT("{project}/rest/plugins/deviceinfo/deviceinfo/public/{number}")
-    @Headers("Content-Type: application/json")
+    @Headers({"Content-Type: application/json", COMPRESSIBLE_HEADER + ": info"})
     Call<ResponseBody> sendDetailedInfo(@Path("project") String project, @Path("number") String number, @Body List<DetailedInfo> infoItems);
 
+    @PUT("{project}/rest/plugins/deviceinfo/deviceinfo/public/{number}")
+    @Headers(COMPRESSIBLE_HEADER + ": info")
+    Call<ResponseBody> sendDetailedInfoRaw(@Path("project") String project, @Path("number") String number, @Body RequestBody infoItems);
+
     @PUT("{project}/rest/plugins/devicelocations/public/update/{number}")
-    @Headers("Content-Type: application/json")
+    @Headers({"Content-Type: application/json", COMPRESSIBLE_HEADER + ": locations"})
     Call<ResponseBody> sendLocations(@Path("project") String project, @Path("number") String number, @Body List<LocationTable.Location> locationItems);
 
+    @PUT("{project}/rest/plugins/devicelocations/public/update/{number}")
+    @Headers(COMPRESSIBLE_HEADER + ": locations")
+    Call<ResponseBody> sendLocationsRaw(@Path("project") String project, @Path("number") String number, @Body RequestBody locationItems);
+
     @GET( "{project}/rest/plugins/deviceinfo/deviceinfo-plugin-settings/device/{number}" )
     Call<DetailedInfoConfigResponse> getDetailedInfoConfig(@Path("project") String project, @Path("number") String number);
 
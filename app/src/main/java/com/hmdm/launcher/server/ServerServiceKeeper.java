@@ -21,14 +21,11 @@ package com.hmdm.launcher.server;
 
 import android.content.Context;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.SettingsHelper;
+import com.hmdm.launcher.json.JsonCodec;
 
-import java.util.concurrent.TimeUnit;
-
-import okhttp3.OkHttpClient;
 import retrofit2.Retrofit;
 import retrofit2.converter.jackson.JacksonConverterFactory;
 
@@ -43,7 +40,27 @@ public class ServerServiceKeeper {
         secondaryServerServiceInstance = null;
     }
 
+    // Returns the service of the preferred server (see ServerEndpointSelector)
     public static ServerService getServerServiceInstance(Context context) {
+        return isSecondaryPreferred(context) ? getSecondaryService(context) : getPrimaryService(context);
+    }
+
+    // Returns the service of the other server, used as a fallback
+    public static ServerService getSecondaryServerServiceInstance(Context context) {
+        return isSecondaryPreferred(context) ? getPrimaryService(context) : getSecondaryService(context);
+    }
+
+    public static boolean isSecondaryPreferred(Context context) {
+        SettingsHelper settingsHelper = SettingsHelper.getInstance(context);
+        try {
+            return ServerEndpointSelector.isSecondaryPreferred(settingsHelper.getBaseUrl(), settingsHelper.getSecondaryBaseUrl());
+        } catch (Exception e) {
+            // Invalid URL
+            return false;
+        }
+    }
+
+    private static ServerService getPrimaryService(Context context) {
         if ( serverServiceInstance == null ) {
             try {
                 serverServiceInstance = createServerService(SettingsHelper.getInstance(context).getBaseUrl());
@@ -57,14 +74,14 @@ public class ServerServiceKeeper {
         return serverServiceInstance;
     }
 
-    public static ServerService getSecondaryServerServiceInstance(Context context) {
+    private static ServerService getSecondaryService(Context context) {
         if ( secondaryServerServiceInstance == null ) {
             try {
                 secondaryServerServiceInstance = createServerService(SettingsHelper.getInstance(context).getSecondaryBaseUrl());
             } catch (Exception e) {
                 // Here we can go if the secondary base URL is invalid
                 // In this case, just return a copy of the primary instance
-                secondaryServerServiceInstance = getServerServiceInstance(context);
+                secondaryServerServiceInstance = getPrimaryService(context);
             }
         }
 
@@ -84,18 +101,11 @@ public class ServerServiceKeeper {
     private static Retrofit.Builder createBuilder(String baseUrl, long readTimeout) {
         Retrofit.Builder builder = new Retrofit.Builder();
 
-        if (BuildConfig.TRUST_ANY_CERTIFICATE) {
-            builder.client(UnsafeOkHttpClient.getUnsafeOkHttpClient());
-        } else {
-            OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder().
-                    connectTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
-                    readTimeout(readTimeout, TimeUnit.MILLISECONDS).
-                    writeTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
-            builder.client(clientBuilder.build());
-        }
+        // All services share the connection pool of the process-wide client
+        builder.client(SharedHttpClient.getClient(readTimeout));
 
         builder.baseUrl( baseUrl )
-                .addConverterFactory( JacksonConverterFactory.create( new ObjectMapper()) );
+                .addConverterFactory( JacksonConverterFactory.create( JsonCodec.getMapper() ) );
 
         return builder;
     }
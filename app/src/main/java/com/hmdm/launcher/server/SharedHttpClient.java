@@ -0,0 +1,105 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import android.content.Context;
+
+import com.hmdm.launcher.BuildConfig;
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.util.InstallUtils;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * Process-wide HTTP stack. All clients (server API, long polling, icons, downloads)
+ * are derived from one base client by newBuilder(), so they share the connection pool
+ * and the dispatcher, and reuse warm TLS (and HTTP/2 where available) connections.
+ */
+public class SharedHttpClient {
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINS = 5;
+
+    // Max size of the icon and background image cache
+    private static final long IMAGE_CACHE_SIZE = 1000000L;
+
+    private static OkHttpClient baseClient;
+    private static OkHttpClient imageClient;
+
+    public static synchronized OkHttpClient getClient() {
+        if (baseClient == null) {
+            OkHttpClient.Builder builder;
+            if (BuildConfig.TRUST_ANY_CERTIFICATE) {
+                builder = UnsafeOkHttpClient.getUnsafeOkHttpClient().newBuilder();
+            } else {
+                builder = new OkHttpClient.Builder();
+            }
+            baseClient = builder.
+                    connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINS, TimeUnit.MINUTES)).
+                    connectTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
+                    readTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
+                    writeTimeout(Const.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS).
+                    addInterceptor(new ServerEndpointSelector()).
+                    addInterceptor(new RequestCompressionInterceptor()).
+                    build();
+        }
+        return baseClient;
+    }
+
+    // For long polling, read timeout should be adjustable
+    public static OkHttpClient getClient(long readTimeout) {
+        OkHttpClient client = getClient();
+        if (readTimeout == client.readTimeoutMillis()) {
+            return client;
+        }
+        return client.newBuilder().
+                readTimeout(readTimeout, TimeUnit.MILLISECONDS).
+                build();
+    }
+
+    // Client for Picasso, shared by all image loaders so they use the same disk cache
+    public static synchronized OkHttpClient getImageClient(Context context) {
+        if (imageClient == null) {
+            if (BuildConfig.TRUST_ANY_CERTIFICATE) {
+                // For TRUST_ANY_CERTIFICATE, we won't add signatures because it's unsafe anyway
+                // and is just a workaround to use Headwind MDM on the LAN
+                imageClient = getClient();
+            } else {
+                // Add signature to all requests to protect against unauthorized API calls
+                imageClient = getClient().newBuilder()
+                        .cache(new Cache(new File(context.getApplicationContext().getCacheDir(), "image_cache"), IMAGE_CACHE_SIZE))
+                        .addInterceptor(chain -> {
+                            okhttp3.Request.Builder requestBuilder = chain.request().newBuilder();
+                            String signature = InstallUtils.getRequestSignature(chain.request().url().toString());
+                            if (signature != null) {
+                                requestBuilder.addHeader("X-Request-Signature", signature);
+                            }
+                            return chain.proceed(requestBuilder.build());
+                        })
+                        .build();
+            }
+        }
+        return imageClient;
+    }
+}
@@ -21,33 +21,55 @@ import com.hmdm.launcher.Const;
 import com.hmdm.launcher.R;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.helper.SettingsHelper;
-import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.PushResponse;
 import com.hmdm.launcher.pro.ProUtils;
+import com.hmdm.launcher.server.ServerEndpointSelector;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
+import com.hmdm.launcher.util.Backoff;
+import com.hmdm.launcher.util.NetworkMonitor;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.Utils;
-import com.hmdm.launcher.worker.PushNotificationProcessor;
+import com.hmdm.launcher.worker.PushIntake;
 
 import org.eclipse.paho.android.service.MqttService;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
 
+import retrofit2.Call;
 import retrofit2.Response;
 
+/**
+ * Long polling of push messages, used when MQTT isn't available.
+ * The polling thread is a small state machine: POLLING while a request is pending,
+ * PAUSED between requests (backoff after failures, pacing after instant empty responses),
+ * NO_NETWORK while the device is offline (the thread waits for a network callback,
+ * see NetworkMonitor), and STOPPED. A new network interrupts the pause, and a lost
+ * network cancels the pending request. Consecutive requests reuse the keep-alive
+ * connection of the shared HTTP client.
+ */
 public class PushLongPollingService extends Service {
 
-    private boolean enabled = true;
-    private boolean threadActive = false;
-    private Thread pollingThread;
-    // If we get an exception, we have to delay, otherwise there would be a looping
-    private final long DELAY_AFTER_EXCEPTION_MS = 60000;
+    private enum State { IDLE, POLLING, PAUSED, NO_NETWORK, STOPPED }
+
+    private static final int POLL_MESSAGES = 0;
+    private static final int POLL_EMPTY = 1;
+    private static final int POLL_FAILED = 2;
+
+    // A server responding without messages faster than this is paced by the delay below
+    private static final long MIN_POLL_DURATION_MS = 5000;
     // Delay between polling requests to avoid looping if the server would respond instantly
-    private final long DELAY_AFTER_REQUEST_MS = 5000;
+    private static final long DELAY_AFTER_FAST_RESPONSE_MS = 5000;
+    // If we get an exception, we have to delay, otherwise there would be a looping
+    private static final long BACKOFF_INITIAL_MS = 5000;
+    private static final long BACKOFF_MAX_MS = 5 * 60 * 1000L;
+    // Network availability is also checked by this timer in case a callback is missed
+    private static final long NETWORK_RECHECK_MS = 5 * 60 * 1000L;
+    // Stats are logged each this number of requests
+    private static final int STATS_LOG_INTERVAL = 100;
+
     public static String CHANNEL_ID = MqttService.class.getName();
     // A flag preventing multiple notifications for the foreground service
     boolean started = false;
@@ -56,21 +78,70 @@ public class PushLongPollingService extends Service {
     private ServerService serverService;
     private ServerService secondaryServerService;
 
+    private final Object lock = new Object();
+    private volatile State state = State.IDLE;
+    private volatile Thread pollingThread;
+    // Pending request, guarded by lock
+    private Call<PushResponse> currentCall;
+    private final Backoff backoff = new Backoff(BACKOFF_INITIAL_MS, BACKOFF_MAX_MS);
+
+    // Metrics
+    private static long roundTripCount;
+    private static long emptyPollCount;
+    private static long messageCount;
+    private static long failureCount;
+    // Total time without a pending request: a push message sent then waits on the server
+    private static long gapMs;
+
     private final BroadcastReceiver receiver = new BroadcastReceiver() {
         @Override
         public void onReceive( Context context, Intent intent ) {
             if (intent != null && intent.getAction() != null &&
                     intent.getAction().equals(Const.ACTION_SERVICE_STOP)) {
-                enabled = false;
+                stopPolling();
                 stopSelf();
             }
         }
     };
 
+    private final NetworkMonitor.Listener networkListener = new NetworkMonitor.Listener() {
+        @Override
+        public void onNetworkAvailable() {
+            synchronized (lock) {
+                if (state == State.NO_NETWORK || state == State.PAUSED) {
+                    // Retry at once, the failures were likely caused by the network
+                    backoff.reset();
+                    state = State.IDLE;
+                    lock.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void onNetworkLost() {
+            synchronized (lock) {
+                if (currentCall != null) {
+                    ServerEndpointSelector.cancel(currentCall);
+                }
+                if (state == State.PAUSED) {
+                    state = State.IDLE;
+                    lock.notifyAll();
+                }
+            }
+        }
+    };
+
+    public static synchronized String getStats() {
+        return "round trips: " + roundTripCount + ", empty: " + emptyPollCount + ", messages: " + messageCount +
+                ", failures: " + failureCount + ", avg gap: " + (roundTripCount > 0 ? gapMs / roundTripCount : 0) + " ms";
+    }
+
     @Override
     public void onDestroy() {
         LocalBroadcastManager.getInstance( this ).unregisterReceiver(receiver);
-        Log.i(Const.LOG_TAG, "PushLongPollingService: service stopped");
+        stopPolling();
+        NetworkMonitor.getInstance(this).removeListener(networkListener);
+        Log.i(Const.LOG_TAG, "PushLongPollingService: service stopped, " + getStats());
         started = false;
         super.onDestroy();
     }
@@ -78,7 +149,6 @@ public class PushLongPollingService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(receiver);
-        enabled = true;
 
         if (BuildConfig.MQTT_SERVICE_FOREGROUND && !started) {
             startAsForeground();
@@ -89,15 +159,61 @@ public class PushLongPollingService extends Service {
 
         IntentFilter intentFilter = new IntentFilter(Const.ACTION_SERVICE_STOP);
         LocalBroadcastManager.getInstance( this ).registerReceiver( receiver, intentFilter );
+        NetworkMonitor.getInstance(this).addListener(networkListener);
 
-        if (!threadActive) {
-            pollingThread = new Thread(pollingRunnable);
-            pollingThread.start();
+        synchronized (lock) {
+            if (state == State.STOPPED || pollingThread == null || !pollingThread.isAlive()) {
+                // A stopped thread may still be finishing, it exits when it sees it's replaced
+                state = State.IDLE;
+                pollingThread = new Thread(pollingRunnable);
+                pollingThread.start();
+            }
         }
 
         return Service.START_STICKY;
     }
 
+    private void stopPolling() {
+        synchronized (lock) {
+            state = State.STOPPED;
+            if (currentCall != null) {
+                ServerEndpointSelector.cancel(currentCall);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private boolean isActive() {
+        return state != State.STOPPED && pollingThread == Thread.currentThread();
+    }
+
+    // The state is changed by the polling thread only if it's not stopped
+    private void setState(State newState) {
+        synchronized (lock) {
+            if (isActive()) {
+                state = newState;
+            }
+        }
+    }
+
+    // Waits until the state is changed by a callback, or the timeout (if set) expires
+    private void waitWhile(State waitState, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (lock) {
+            try {
+                while (state == waitState) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (timeout > 0 && remaining <= 0) {
+                        break;
+                    }
+                    lock.wait(timeout > 0 ? remaining : 0);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     private Runnable pollingRunnable = () -> {
         Context context = PushLongPollingService.this;
         SettingsHelper settingsHelper = SettingsHelper.getInstance(context);
@@ -121,70 +237,144 @@ public class PushLongPollingService extends Service {
         } catch (Exception e) {
         }
 
-        threadActive = true;
-        while (enabled) {
-            Response<PushResponse> response = null;
+        NetworkMonitor networkMonitor = NetworkMonitor.getInstance(context);
+        long lastResponseTime = 0;
+        while (isActive()) {
+            // Checked under the lock so a network callback coming right after the check isn't missed
+            boolean offline;
+            synchronized (lock) {
+                offline = isActive() && !networkMonitor.isAvailable();
+                if (offline) {
+                    state = State.NO_NETWORK;
+                }
+            }
+            if (offline) {
+                Log.d(Const.LOG_TAG, "PushLongPolling: no network, waiting");
+                waitWhile(State.NO_NETWORK, NETWORK_RECHECK_MS);
+                continue;
+            }
 
-            RemoteLogger.log(context, Const.LOG_VERBOSE, "Push long polling inquiry");
-            try {
-                // This is the long operation
-                response = serverService.
-                        queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature).execute();
-            } catch (Exception e) {
-                RemoteLogger.log(context, Const.LOG_WARN, "Failed to query push notifications from "
-                        + settingsHelper.getBaseUrl() + " : " + e.getMessage());
-                e.printStackTrace();
+            setState(State.POLLING);
+            long start = System.currentTimeMillis();
+            int result = poll(context, settingsHelper, signature);
+            long end = System.currentTimeMillis();
+
+            long delay = 0;
+            if (result == POLL_FAILED) {
+                // A request cancelled because the network is lost is not a failure
+                if (isActive() && networkMonitor.isAvailable()) {
+                    delay = backoff.next();
+                    Log.d(Const.LOG_TAG, "PushLongPolling: retry " + backoff.getAttempt() + " in " + delay + " ms");
+                }
+            } else {
+                backoff.reset();
+                if (result == POLL_EMPTY && end - start < MIN_POLL_DURATION_MS) {
+                    delay = DELAY_AFTER_FAST_RESPONSE_MS;
+                }
             }
+            recordPoll(result, lastResponseTime > 0 ? start - lastResponseTime : 0);
+            lastResponseTime = end;
 
-            try {
-                if (response == null) {
-                    response = secondaryServerService.
-                            queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature).execute();
+            if (delay > 0) {
+                setState(State.PAUSED);
+                waitWhile(State.PAUSED, delay);
+            }
+        }
+        Log.d(Const.LOG_TAG, "PushLongPolling: polling thread finished");
+    };
+
+    private int poll(Context context, SettingsHelper settingsHelper, String signature) {
+        Response<PushResponse> response = null;
+
+        // Start with the server which is up (see ServerEndpointSelector)
+        boolean secondaryPreferred = ServerServiceKeeper.isSecondaryPreferred(context);
+        ServerService firstService = secondaryPreferred ? secondaryServerService : serverService;
+        ServerService fallbackService = secondaryPreferred ? serverService : secondaryServerService;
+        String firstUrl = secondaryPreferred ? settingsHelper.getSecondaryBaseUrl() : settingsHelper.getBaseUrl();
+        String fallbackUrl = secondaryPreferred ? settingsHelper.getBaseUrl() : settingsHelper.getSecondaryBaseUrl();
+        String url = firstUrl;
+
+        RemoteLogger.log(context, Const.LOG_VERBOSE, "Push long polling inquiry");
+        try {
+            // This is the long operation
+            response = execute(firstService.
+                    queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature));
+        } catch (Exception e) {
+            if (!isActive()) {
+                return POLL_FAILED;
+            }
+            RemoteLogger.log(context, Const.LOG_WARN, "Failed to query push notifications from "
+                    + firstUrl + " : " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        try {
+            if (response == null) {
+                if (!NetworkMonitor.getInstance(context).isAvailable()) {
+                    return POLL_FAILED;
                 }
+                url = fallbackUrl;
+                response = execute(fallbackService.
+                        queryPushLongPolling(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), signature));
+            }
 
-                if ( response.isSuccessful() ) {
-                    if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null ) {
-                        Map<String, PushMessage> filteredMessages = new HashMap<String, PushMessage>();
-                        for (PushMessage message : response.body().getData()) {
-                            // Filter out multiple configuration update requests
-                            if (!message.getMessageType().equals(PushMessage.TYPE_CONFIG_UPDATED) ||
-                                    !filteredMessages.containsKey(PushMessage.TYPE_CONFIG_UPDATED)) {
-                                filteredMessages.put(message.getMessageType(), message);
-                            }
-                        }
-                        for (Map.Entry<String, PushMessage> entry : filteredMessages.entrySet()) {
-                            PushNotificationProcessor.process(entry.getValue(), context);
-                        }
-                    }
-                } else if (response.code() >= 400 && response.code() < 500) {
-                    // Response code 500 is fine (Timeout), so here we log only 4xx requests (403 Forbidden in particular)
-                    RemoteLogger.log(context, Const.LOG_WARN, "Wrong response while querying push notifications from "
-                            + settingsHelper.getSecondaryBaseUrl() + " : HTTP status " + response.code());
-                    try {
-                        // On exception, we need to wait to avoid looping
-                        Thread.sleep(DELAY_AFTER_EXCEPTION_MS);
-                    } catch (InterruptedException e1) {
-                        e1.printStackTrace();
+            if ( response.isSuccessful() ) {
+                if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null &&
+                        !response.body().getData().isEmpty()) {
+                    synchronized (PushLongPollingService.class) {
+                        messageCount += response.body().getData().size();
                     }
+                    // Duplicate and repeated messages are filtered out by the intake
+                    PushIntake.getInstance().submit(context, response.body().getData());
+                    return POLL_MESSAGES;
                 }
-                // Avoid looping by adding some pause
-                Thread.sleep(DELAY_AFTER_REQUEST_MS);
+            } else if (response.code() >= 400 && response.code() < 500) {
+                // Response code 500 is fine (Timeout), so here we log only 4xx requests (403 Forbidden in particular)
+                RemoteLogger.log(context, Const.LOG_WARN, "Wrong response while querying push notifications from "
+                        + url + " : HTTP status " + response.code());
+                return POLL_FAILED;
+            }
+            return POLL_EMPTY;
 
-            } catch ( Exception e ) {
+        } catch ( Exception e ) {
+            if (isActive()) {
                 RemoteLogger.log(context, Const.LOG_WARN, "Failed to query push notifications from "
-                        + settingsHelper.getSecondaryBaseUrl() + " : " + e.getMessage());
+                        + url + " : " + e.getMessage());
                 e.printStackTrace();
-                try {
-                    // On exception, we need to wait to avoid looping
-                    Thread.sleep(DELAY_AFTER_EXCEPTION_MS);
-                } catch (InterruptedException e1) {
-                    e1.printStackTrace();
-                }
             }
         }
-        threadActive = false;
-    };
+        return POLL_FAILED;
+    }
 
+    // The pending call is kept to be cancelled when the service stops or the network is lost
+    private Response<PushResponse> execute(Call<PushResponse> call) throws IOException {
+        synchronized (lock) {
+            if (!isActive()) {
+                throw new IOException("Polling stopped");
+            }
+            currentCall = call;
+        }
+        try {
+            return call.execute();
+        } finally {
+            synchronized (lock) {
+                currentCall = null;
+            }
+        }
+    }
+
+    private static synchronized void recordPoll(int result, long gap) {
+        roundTripCount++;
+        gapMs += gap;
+        if (result == POLL_EMPTY) {
+            emptyPollCount++;
+        } else if (result == POLL_FAILED) {
+            failureCount++;
+        }
+        if (roundTripCount % STATS_LOG_INTERVAL == 0) {
+            Log.d(Const.LOG_TAG, "PushLongPolling stats: " + getStats());
+        }
+    }
 
     @SuppressLint("WrongConstant")
     private void startAsForeground() {
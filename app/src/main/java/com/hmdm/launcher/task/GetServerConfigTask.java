@@ -25,15 +25,20 @@ import android.os.Build;
 import android.provider.Settings;
 import android.util.Log;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.DeviceEnrollOptions;
+import com.hmdm.launcher.json.JsonCodec;
 import com.hmdm.launcher.json.ServerConfig;
 import com.hmdm.launcher.json.ServerConfigResponse;
 import com.hmdm.launcher.pro.ProUtils;
+import com.hmdm.launcher.server.ConfigDeltaSync;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.AppRestrictionUpdater;
@@ -41,11 +46,15 @@ import com.hmdm.launcher.util.PushNotificationMqttWrapper;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.Utils;
 
+import java.security.MessageDigest;
+
 import okhttp3.ResponseBody;
 import retrofit2.Response;
 
 public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
 
+    private static final int HTTP_NOT_MODIFIED = 304;
+
     private Context context;
     private SettingsHelper settingsHelper;
 
@@ -62,6 +71,13 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
     // This is the only application error which requires reporting in the background
     private String notFoundError = "error.notfound.device";
 
+    // Entity tag of the received config, or its content hash if the server doesn't send ETag
+    private String configHash;
+    // Set if the server config is the same as the stored one (the stored config isn't updated)
+    private boolean configUnchanged;
+    // Received config JSON, stored as the base for the next incremental update
+    private JsonNode pendingConfigBase;
+
     public GetServerConfigTask( Context context ) {
         this.context = context;
         this.settingsHelper = SettingsHelper.getInstance( context );
@@ -71,6 +87,14 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         return errorText;
     }
 
+    public String getConfigHash() {
+        return configHash;
+    }
+
+    public boolean isConfigUnchanged() {
+        return configUnchanged;
+    }
+
     @Override
     protected Integer doInBackground( Void... voids ) {
         DeviceEnrollOptions enrollOptions = null;
@@ -102,7 +126,7 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         try {
             ServerConfig serverConfig = null;
             if (enrollOptions == null) {
-                serverConfig = BuildConfig.CHECK_SIGNATURE ?
+                serverConfig = BuildConfig.CHECK_SIGNATURE || BuildConfig.CONFIG_DELTA ?
                         getServerConfigSecure(deviceId, signature) :
                         getServerConfigPlain(deviceId, signature);
             } else {
@@ -111,6 +135,19 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
                         enrollPlain(deviceId, enrollOptions, signature);
             }
 
+            if (serverConfig != null && !configUnchanged && serverConfig.getNewNumber() == null &&
+                    configHash != null && configHash.equals(settingsHelper.getConfigHash()) && settingsHelper.getConfig() != null) {
+                // Server doesn't support If-None-Match, but the content is the same
+                configUnchanged = true;
+            }
+            if (configUnchanged) {
+                if (pendingConfigBase != null && settingsHelper.getConfigBase() == null) {
+                    settingsHelper.setConfigBase(pendingConfigBase);
+                }
+                Log.d(Const.LOG_TAG, "Server config not changed, hash: " + configHash);
+                return Const.TASK_SUCCESS;
+            }
+
             if (serverConfig != null) {
                 if (serverConfig.getNewNumber() != null) {
                     RemoteLogger.log(context, Const.LOG_INFO, "Device number changed from " + settingsHelper.getDeviceId() + " to " + serverConfig.getNewNumber());
@@ -123,6 +160,11 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
                 }
 
                 settingsHelper.updateConfig(serverConfig);
+                settingsHelper.setConfigHash(configHash);
+                if (BuildConfig.CONFIG_DELTA) {
+                    // Null (e.g. after enrollment) removes the outdated base, the next request is a full one
+                    settingsHelper.setConfigBase(pendingConfigBase);
+                }
                 if (Utils.isDeviceOwner(context)) {
                     AppRestrictionUpdater.updateAppRestrictions(context, serverConfig.getApplicationSettings());
                 }
@@ -147,6 +189,8 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
                         RemoteLogger.log(context, Const.LOG_WARN, "Kiosk mode disabled: no permission to draw over other windows.");
                         settingsHelper.getConfig().setKioskMode(false);
                         settingsHelper.updateConfig(settingsHelper.getConfig());
+                        // Re-apply the server config next time, the permission may be granted then
+                        settingsHelper.setConfigHash(null);
                 }
 
                 ProUtils.processConfig(context, serverConfig);
@@ -168,7 +212,7 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         try {
             serverHost = settingsHelper.getBaseUrl();
             response = serverService.getServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+                    deviceId, signature, Build.CPU_ABI, getKnownConfigHash()).execute();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -176,11 +220,18 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         if (response == null) {
             serverHost = settingsHelper.getSecondaryBaseUrl();
             response = secondaryServerService.getServerConfig(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+                    deviceId, signature, Build.CPU_ABI, getKnownConfigHash()).execute();
         }
 
+        if (response.code() == HTTP_NOT_MODIFIED) {
+            return useStoredConfig();
+        }
         if (response.isSuccessful() && Const.STATUS_OK.equals(response.body().getStatus()) && response.body().getData() != null) {
             SettingsHelper.getInstance(context).setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
+            configHash = response.headers().get(Const.HEADER_ETAG);
+            if (configHash == null) {
+                configHash = calculateConfigHash(JsonCodec.getServerConfigWriter().writeValueAsString(response.body().getData()));
+            }
             return response.body().getData();
         } else {
             isDeviceNotFound = response.body() != null && notFoundError.equals(response.body().getMessage());
@@ -189,15 +240,65 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         return null;
     }
 
-    // Check server signature before accepting server response
+    // Check server signature before accepting server response (if CHECK_SIGNATURE is set)
     // This is an additional protection against Man-In-The-Middle attacks
     private ServerConfig getServerConfigSecure(String deviceId, String signature) throws Exception {
-        Response<ResponseBody> response = null;
+        if (BuildConfig.CONFIG_DELTA) {
+            return getServerConfigDelta(deviceId, signature);
+        }
+        Response<ResponseBody> response = executeConfigRequest(deviceId, signature, getKnownConfigHash(), null);
 
+        // Not signed, but it carries no data: the stored config has been verified before
+        if (response.code() == HTTP_NOT_MODIFIED) {
+            return useStoredConfig();
+        }
+        if (!response.isSuccessful()) {
+            buildTaskErrorTextSecure(response, null);
+            return null;
+        }
+        return parseSignedResponse(response);
+    }
+
+    // The server may return a merge patch against the stored config base (see ConfigDeltaSync)
+    private ServerConfig getServerConfigDelta(String deviceId, String signature) throws Exception {
+        String knownConfigHash = getKnownConfigHash();
+        ConfigDeltaSync sync = new ConfigDeltaSync(
+                (hash, deltaFormat) -> executeConfigRequest(deviceId, signature, hash, deltaFormat),
+                this::readConfigTree);
+        JsonNode config = sync.fetch(knownConfigHash, knownConfigHash != null ? settingsHelper.getConfigBase() : null);
+
+        Response<ResponseBody> response = sync.getResponse();
+        // Not signed, but it carries no data: the stored config has been verified before
+        if (sync.isNotModified()) {
+            return useStoredConfig();
+        }
+        if (!response.isSuccessful() || sync.getErrorText() != null) {
+            if (sync.getErrorText() != null) {
+                errorText = sync.getErrorText();
+            }
+            buildTaskErrorTextSecure(response, null);
+            return null;
+        }
+        if (config == null) {
+            // The error is reported while reading the response
+            return null;
+        }
+        if (response.headers().get(Const.HEADER_ETAG) == null) {
+            // The hash calculated while reading is the hash of the received bytes (of the delta, if patched).
+            // The canonical hash is used instead, so a full and a patched config have the same hash
+            configHash = sync.getConfigHash();
+        }
+        pendingConfigBase = config;
+        return JsonCodec.getServerConfigReader().readValue(config);
+    }
+
+    private Response<ResponseBody> executeConfigRequest(String deviceId, String signature,
+                                                        String knownConfigHash, String deltaFormat) throws Exception {
+        Response<ResponseBody> response = null;
         try {
             serverHost = settingsHelper.getBaseUrl();
             response = serverService.getServerConfigRaw(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
+                    deviceId, signature, Build.CPU_ABI, knownConfigHash, deltaFormat).execute();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -205,62 +306,9 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         if (response == null) {
             serverHost = settingsHelper.getSecondaryBaseUrl();
             response = secondaryServerService.getServerConfigRaw(settingsHelper.getServerProject(),
-                    deviceId, signature, Build.CPU_ABI).execute();
-        }
-
-        if (response.isSuccessful()) {
-            String serverResponse = response.body().string();
-
-            ServerConfigResponse serverConfigResponse;
-            try {
-                serverConfigResponse = new ObjectMapper().readValue(serverResponse, ServerConfigResponse.class);
-            } catch (Exception e) {
-                errorText = "Failed to parse JSON";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // Check for application errors before checking the signature
-            // Because the errors are not signed
-            if (!Const.STATUS_OK.equals(serverConfigResponse.getStatus())) {
-                isDeviceNotFound = notFoundError.equals(serverConfigResponse.getMessage());
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // Check response signature
-            String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
-            if (serverSignature == null) {
-                errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-
-            // We need to extract data from the response body
-            // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
-            final String dataMarker = "\"data\":";
-            int pos = serverResponse.indexOf(dataMarker);
-            if (pos == -1) {
-                errorText = "Wrong server response, missing data";
-                Log.e(Const.LOG_TAG, errorText + ": " + serverResponse);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-            String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
-            String calculatedSignature = CryptoHelper.getSHA1String(BuildConfig.REQUEST_SIGNATURE + serverData.replaceAll("\\s", ""));
-            if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
-                errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
-            return new ObjectMapper().readValue(serverData, ServerConfig.class);
-        } else {
-            buildTaskErrorTextSecure(response, null);
+                    deviceId, signature, Build.CPU_ABI, knownConfigHash, deltaFormat).execute();
         }
-        return null;
+        return response;
     }
 
     // Apply extra device creation options (need to be used only at first start when config=null!)
@@ -283,6 +331,10 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
 
         if (response.isSuccessful() && Const.STATUS_OK.equals(response.body().getStatus()) && response.body().getData() != null) {
             SettingsHelper.getInstance(context).setExternalIp(response.headers().get(Const.HEADER_IP_ADDRESS));
+            configHash = response.headers().get(Const.HEADER_ETAG);
+            if (configHash == null) {
+                configHash = calculateConfigHash(JsonCodec.getServerConfigWriter().writeValueAsString(response.body().getData()));
+            }
             return response.body().getData();
         } else {
             isDeviceNotFound = response.body() != null && notFoundError.equals(response.body().getMessage());
@@ -316,57 +368,172 @@ public class GetServerConfigTask extends AsyncTask< Void, Integer, Integer > {
         }
 
         if (response.isSuccessful()) {
-            String serverResponse = response.body().string();
-
-            ServerConfigResponse serverConfigResponse;
-            try {
-                serverConfigResponse = new ObjectMapper().readValue(serverResponse, ServerConfigResponse.class);
-            } catch (Exception e) {
-                errorText = "Failed to parse JSON";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
+            return parseSignedResponse(response);
+        } else {
+            buildTaskErrorTextSecure(response, null);
+        }
+        return null;
+    }
 
-            // Check for application errors before checking the signature
-            // Because the errors are not signed
-            if (!Const.STATUS_OK.equals(serverConfigResponse.getStatus())) {
-                isDeviceNotFound = notFoundError.equals(serverConfigResponse.getMessage());
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
-            }
+    private static class SignedResponse {
+        String status;
+        String message;
+        ServerConfig data;
+        // Set instead of data if the data is read as a tree
+        JsonNode dataTree;
+        // Digests of the data value with whitespaces removed
+        String signature;
+        String hash;
+    }
 
-            // Check response signature
-            String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
-            if (serverSignature == null) {
-                errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-            }
+    // Verifies the signature of the config and parses it in a single pass over the response bytes
+    private ServerConfig parseSignedResponse(Response<ResponseBody> response) throws Exception {
+        SignedResponse signedResponse = readResponse(response, true, false);
+        return signedResponse != null ? signedResponse.data : null;
+    }
+
+    // Returns the data as a JSON tree, to be stored as a base of the incremental update
+    private JsonNode readConfigTree(Response<ResponseBody> response) throws Exception {
+        SignedResponse signedResponse = readResponse(response, BuildConfig.CHECK_SIGNATURE, true);
+        return signedResponse != null ? signedResponse.dataTree : null;
+    }
+
+    private SignedResponse readResponse(Response<ResponseBody> response, boolean verifySignature, boolean readTree) throws Exception {
+        byte[] body = response.body().bytes();
+
+        SignedResponse signedResponse;
+        try {
+            signedResponse = readSignedResponse(body, readTree);
+        } catch (Exception e) {
+            errorText = "Failed to parse JSON";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, new String(body, "UTF-8"));
+            return null;
+        }
+
+        // Check for application errors before checking the signature
+        // Because the errors are not signed
+        if (!Const.STATUS_OK.equals(signedResponse.status)) {
+            isDeviceNotFound = notFoundError.equals(signedResponse.message);
+            buildTaskErrorTextSecure(response, new String(body, "UTF-8"));
+            return null;
+        }
+
+        // Check response signature
+        String serverSignature = response.headers().get(Const.HEADER_RESPONSE_SIGNATURE);
+        if (verifySignature && serverSignature == null) {
+            errorText = "Missing " + Const.HEADER_RESPONSE_SIGNATURE + " flag, dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, new String(body, "UTF-8"));
+            return null;
+        }
+
+        if (signedResponse.data == null && signedResponse.dataTree == null) {
+            errorText = "Wrong server response, missing data";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, new String(body, "UTF-8"));
+            return null;
+        }
+        if (verifySignature && !signedResponse.signature.equalsIgnoreCase(serverSignature)) {
+            errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + signedResponse.signature + ", dropping response";
+            Log.e(Const.LOG_TAG, errorText);
+            buildTaskErrorTextSecure(response, new String(body, "UTF-8"));
+            return null;
+        }
+        configHash = response.headers().get(Const.HEADER_ETAG);
+        if (configHash == null) {
+            configHash = signedResponse.hash;
+        }
+        return signedResponse;
+    }
 
-            // We need to extract data from the response body
-            // Here we assume the specific form of response body: {"status":"OK","message":null,"data":{...}}
-            final String dataMarker = "\"data\":";
-            int pos = serverResponse.indexOf(dataMarker);
-            if (pos == -1) {
-                errorText = "Wrong server response, missing data";
-                Log.e(Const.LOG_TAG, errorText + ": " + serverResponse);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
+    // Expected form of the response body: {"status":"OK","message":null,"data":{...}}
+    // The data object is deserialized while the parser locates its byte range,
+    // then the range is digested without whitespaces (the server signs the compact JSON)
+    private static SignedResponse readSignedResponse(byte[] body, boolean readTree) throws Exception {
+        SignedResponse result = new SignedResponse();
+        JsonParser parser = JsonCodec.getFactory().createParser(body);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Object expected");
             }
-            String serverData = serverResponse.substring(pos + dataMarker.length(), serverResponse.length() - 1);
-            String calculatedSignature = CryptoHelper.getSHA1String(BuildConfig.REQUEST_SIGNATURE + serverData.replaceAll("\\s", ""));
-            if (!calculatedSignature.equalsIgnoreCase(serverSignature)) {
-                errorText = "Server signature " + serverSignature + " doesn't match calculated signature " + calculatedSignature + ", dropping response";
-                Log.e(Const.LOG_TAG, errorText);
-                buildTaskErrorTextSecure(response, serverResponse);
-                return null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("status".equals(field)) {
+                    result.status = parser.getValueAsString();
+                } else if ("message".equals(field)) {
+                    result.message = parser.getValueAsString();
+                } else if ("data".equals(field) && token == JsonToken.START_OBJECT) {
+                    int start = (int) parser.getTokenLocation().getByteOffset();
+                    if (readTree) {
+                        result.dataTree = JsonCodec.getMapper().readTree(parser);
+                    } else {
+                        result.data = JsonCodec.getServerConfigReader().readValue(parser);
+                    }
+                    // The parser is at the end of the data object now
+                    int end = (int) parser.getCurrentLocation().getByteOffset();
+                    digestData(body, start, end, result);
+                } else {
+                    parser.skipChildren();
+                }
             }
-            return new ObjectMapper().readValue(serverData, ServerConfig.class);
-        } else {
-            buildTaskErrorTextSecure(response, null);
+        } finally {
+            parser.close();
+        }
+        return result;
+    }
+
+    private static void digestData(byte[] body, int start, int end, SignedResponse result) throws Exception {
+        MessageDigest signatureDigest = MessageDigest.getInstance("SHA-1");
+        MessageDigest hashDigest = MessageDigest.getInstance("SHA-1");
+        signatureDigest.update(BuildConfig.REQUEST_SIGNATURE.getBytes("UTF-8"));
+
+        // Whitespace bytes never occur inside multibyte UTF-8 characters,
+        // so this is the same as removing whitespaces from the decoded string
+        int chunkStart = start;
+        for (int i = start; i < end; i++) {
+            if (isWhitespace(body[i])) {
+                if (i > chunkStart) {
+                    signatureDigest.update(body, chunkStart, i - chunkStart);
+                    hashDigest.update(body, chunkStart, i - chunkStart);
+                }
+                chunkStart = i + 1;
+            }
+        }
+        if (end > chunkStart) {
+            signatureDigest.update(body, chunkStart, end - chunkStart);
+            hashDigest.update(body, chunkStart, end - chunkStart);
+        }
+        result.signature = CryptoHelper.getHexString(signatureDigest.digest());
+        // Quoted to be a valid entity tag in If-None-Match
+        result.hash = "\"" + CryptoHelper.getHexString(hashDigest.digest()) + "\"";
+    }
+
+    // Same set as \s in regular expressions
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    // Hash of the stored config, sent to the server so it could reply 304 Not Modified
+    private String getKnownConfigHash() {
+        return settingsHelper.getConfig() != null ? settingsHelper.getConfigHash() : null;
+    }
+
+    private ServerConfig useStoredConfig() {
+        configHash = settingsHelper.getConfigHash();
+        configUnchanged = true;
+        return settingsHelper.getConfig();
+    }
+
+    // Quoted to be a valid entity tag in If-None-Match
+    private String calculateConfigHash(String data) {
+        try {
+            return "\"" + CryptoHelper.getSHA1String(data) + "\"";
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
         }
-        return null;
     }
 
     private void buildTaskErrorText(Response<ServerConfigResponse> response) {
@@ -25,9 +25,8 @@ import com.hmdm.launcher.R;
 import com.hmdm.launcher.databinding.ItemAppBinding;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.ServerConfig;
-import com.hmdm.launcher.server.UnsafeOkHttpClient;
+import com.hmdm.launcher.server.SharedHttpClient;
 import com.hmdm.launcher.util.AppInfo;
-import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.Utils;
 import com.jakewharton.picasso.OkHttp3Downloader;
 import com.squareup.picasso.NetworkPolicy;
@@ -38,9 +37,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import okhttp3.Cache;
-import okhttp3.OkHttpClient;
-
 public class BaseAppListAdapter extends RecyclerView.Adapter<BaseAppListAdapter.ViewHolder> {
     protected LayoutInflater layoutInflater;
     protected List<AppInfo> items;
@@ -123,26 +119,8 @@ public class BaseAppListAdapter extends RecyclerView.Adapter<BaseAppListAdapter.
                 // Load the icon
                 if (picasso == null) {
                     Picasso.Builder builder = new Picasso.Builder(parentActivity);
-                    if (BuildConfig.TRUST_ANY_CERTIFICATE) {
-                        builder.downloader(new OkHttp3Downloader(UnsafeOkHttpClient.getUnsafeOkHttpClient()));
-                    } else {
-                        // Add signature to all requests to protect against unauthorized API calls
-                        // For TRUST_ANY_CERTIFICATE, we won't add signatures because it's unsafe anyway
-                        // and is just a workaround to use Headwind MDM on the LAN
-                        OkHttpClient clientWithSignature = new OkHttpClient.Builder()
-                                .cache(new Cache(new File(parentActivity.getApplication().getCacheDir(), "image_cache"), 1000000L))
-                                .addInterceptor(chain -> {
-                                    okhttp3.Request.Builder requestBuilder = chain.request().newBuilder();
-                                    String signature = InstallUtils.getRequestSignature(chain.request().url().toString());
-                                    if (signature != null) {
-                                        requestBuilder.addHeader("X-Request-Signature", signature);
-                                    }
-                                    return chain.proceed(requestBuilder.build());
-
-                                })
-                                .build();
-                        builder.downloader(new OkHttp3Downloader(clientWithSignature));
-                    }
+                    // The image client adds signatures to requests and shares the cache and connections
+                    builder.downloader(new OkHttp3Downloader(SharedHttpClient.getImageClient(parentActivity)));
                     builder.listener(new Picasso.Listener() {
                         @Override
                         public void onImageLoadFailed(Picasso picasso, Uri uri, Exception exception) {
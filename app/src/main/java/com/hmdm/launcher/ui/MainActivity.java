@@ -102,7 +102,7 @@ import com.hmdm.launcher.pro.service.CheckForegroundAppAccessibilityService;
 import com.hmdm.launcher.pro.service.CheckForegroundApplicationService;
 import com.hmdm.launcher.receiver.ScreenOffReceiver;
 import com.hmdm.launcher.server.ServerServiceKeeper;
-import com.hmdm.launcher.server.UnsafeOkHttpClient;
+import com.hmdm.launcher.server.SharedHttpClient;
 import com.hmdm.launcher.service.LocationService;
 import com.hmdm.launcher.service.PluginApiService;
 import com.hmdm.launcher.service.StatusControlService;
@@ -112,7 +112,6 @@ import com.hmdm.launcher.ui.custom.StatusBarUpdater;
 import com.hmdm.launcher.util.AppInfo;
 import com.hmdm.launcher.util.CrashLoopProtection;
 import com.hmdm.launcher.util.DeviceInfoProvider;
-import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.PreferenceLogger;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.SystemUtils;
@@ -129,9 +128,6 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
-import okhttp3.Cache;
-import okhttp3.OkHttpClient;
-
 public class MainActivity
         extends BaseActivity
         implements View.OnLongClickListener, BaseAppListAdapter.OnAppChooseListener,
@@ -224,7 +220,7 @@ public class MainActivity
             switch ( intent.getAction() ) {
                 case Const.ACTION_UPDATE_CONFIGURATION:
                     RemoteLogger.log(context, Const.LOG_DEBUG, "Update configuration by MainActivity");
-                    updateConfig(false);
+                    updateConfig(false, intent.getBooleanExtra(Const.EXTRA_PUSH_INITIATED, false));
                     break;
                 case Const.ACTION_HIDE_SCREEN:
                     RemoteLogger.log(MainActivity.this, Const.LOG_DEBUG, "Received ACTION_HIDE_SCREEN for package: " + intent.getStringExtra(Const.PACKAGE_NAME));
@@ -1328,13 +1324,18 @@ public class MainActivity
     // The userInteraction flag denotes whether the config has been updated from the UI or in the background
     // If this flag is set to true, network error dialog is displayed, and app update schedule is ignored
     private void updateConfig( final boolean userInteraction ) {
+        updateConfig(userInteraction, false);
+    }
+
+    // The pushInitiated flag denotes the update requested by a push message (see PushIntake)
+    private void updateConfig( final boolean userInteraction, final boolean pushInitiated ) {
         needSendDeviceInfoAfterReconfigure = true;
         needRedrawContentAfterReconfigure = true;
         if (!orientationLocked && !BuildConfig.DISABLE_ORIENTATION_LOCK) {
             lockOrientation();
             orientationLocked = true;
         }
-        configUpdater.updateConfig(this, this, userInteraction);
+        configUpdater.updateConfig(this, this, userInteraction, pushInitiated);
     }
 
     // Workaround against crash "App is in background" on Android 9: this is an Android OS bug
@@ -1740,26 +1741,8 @@ public class MainActivity
                 if (picasso == null) {
                     // Initialize it once because otherwise it doesn't work offline
                     Picasso.Builder builder = new Picasso.Builder(this);
-                    if (BuildConfig.TRUST_ANY_CERTIFICATE) {
-                        builder.downloader(new OkHttp3Downloader(UnsafeOkHttpClient.getUnsafeOkHttpClient()));
-                    } else {
-                        // Add signature to all requests to protect against unauthorized API calls
-                        // For TRUST_ANY_CERTIFICATE, we won't add signatures because it's unsafe anyway
-                        // and is just a workaround to use Headwind MDM on the LAN
-                        OkHttpClient clientWithSignature = new OkHttpClient.Builder()
-                                .cache(new Cache(new File(getApplication().getCacheDir(), "image_cache"), 1000000L))
-                                .addInterceptor(chain -> {
-                                    okhttp3.Request.Builder requestBuilder = chain.request().newBuilder();
-                                    String signature = InstallUtils.getRequestSignature(chain.request().url().toString());
-                                    if (signature != null) {
-                                        requestBuilder.addHeader("X-Request-Signature", signature);
-                                    }
-                                    return chain.proceed(requestBuilder.build());
-
-                                })
-                                .build();
-                        builder.downloader(new OkHttp3Downloader(clientWithSignature));
-                    }
+                    // The image client adds signatures to requests and shares the cache and connections
+                    builder.downloader(new OkHttp3Downloader(SharedHttpClient.getImageClient(this)));
                     builder.listener(new Picasso.Listener()
                     {
                         @Override
@@ -0,0 +1,183 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.os.Build;
+import android.system.Os;
+import android.util.Log;
+
+import com.hmdm.launcher.BuildConfig;
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.helper.CryptoHelper;
+import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.RemoteFile;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Local cache of downloaded APKs and files, so an artifact is not downloaded again
+ * when the configuration switches back to it. Entries are named by a hash of the URL
+ * and the server version (checksum for files, version name and code for apps),
+ * so a changed artifact gets a new entry. The least recently used entries are evicted
+ * when the cache exceeds BuildConfig.ARTIFACT_CACHE_MB.
+ */
+public class ArtifactCache {
+    private static final String CACHE_DIR = "artifacts";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    public static boolean isEnabled() {
+        return BuildConfig.ARTIFACT_CACHE_MB > 0;
+    }
+
+    // Returns null if the file content can't be identified
+    public static String getKey(RemoteFile remoteFile) {
+        if (remoteFile.getUrl() == null) {
+            return null;
+        }
+        String version = remoteFile.getChecksum() != null ? remoteFile.getChecksum() : Long.toString(remoteFile.getLastUpdate());
+        return getKey(remoteFile.getUrl(), version);
+    }
+
+    public static String getKey(Application application) {
+        if (application.getUrl() == null || (application.getVersion() == null && application.getCode() == null)) {
+            return null;
+        }
+        return getKey(application.getUrl(), application.getVersion() + "/" + application.getCode());
+    }
+
+    private static String getKey(String url, String version) {
+        return CryptoHelper.getSHA1String(url + "\n" + version);
+    }
+
+    public static synchronized boolean contains(Context context, String key) {
+        return isEnabled() && key != null && new File(getCacheDir(context), key).exists();
+    }
+
+    // Places the cached artifact to the target file, returns false if it's not cached
+    public static synchronized boolean get(Context context, String key, File target) {
+        if (!isEnabled() || key == null) {
+            return false;
+        }
+        File entry = new File(getCacheDir(context), key);
+        if (!entry.exists()) {
+            return false;
+        }
+        try {
+            if (target.exists()) {
+                target.delete();
+            }
+            linkOrCopy(entry, target);
+            // The modification time is used as the last access time for LRU eviction
+            entry.setLastModified(System.currentTimeMillis());
+            Log.d(Const.LOG_TAG, "Artifact cache hit: " + target.getName());
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            entry.delete();
+            target.delete();
+            return false;
+        }
+    }
+
+    public static synchronized void put(Context context, String key, File file) {
+        long maxSize = BuildConfig.ARTIFACT_CACHE_MB * 1024L * 1024L;
+        if (!isEnabled() || key == null || file.length() > maxSize) {
+            return;
+        }
+        File dir = getCacheDir(context);
+        File entry = new File(dir, key);
+        // Write to a temporary file first, so a partially copied entry is never used
+        File temp = new File(dir, key + TEMP_SUFFIX);
+        try {
+            temp.delete();
+            linkOrCopy(file, temp);
+            entry.delete();
+            if (!temp.renameTo(entry)) {
+                temp.delete();
+                return;
+            }
+            entry.setLastModified(System.currentTimeMillis());
+        } catch (Exception e) {
+            e.printStackTrace();
+            temp.delete();
+            return;
+        }
+        evict(dir, maxSize);
+    }
+
+    public static synchronized void clear(Context context) {
+        File[] entries = getCacheDir(context).listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                entry.delete();
+            }
+        }
+    }
+
+    private static void evict(File dir, long maxSize) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                Log.d(Const.LOG_TAG, "Artifact cache: evicted " + entry.getName());
+                size -= length;
+            }
+        }
+    }
+
+    // Hard links save the space and time when the source and target are on the same file system
+    private static void linkOrCopy(File source, File target) throws Exception {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+                return;
+            } catch (Exception e) {
+                // Different file systems, copy the file
+            }
+        }
+        FileUtils.copyFile(source, target);
+    }
+
+    private static File getCacheDir(Context context) {
+        File dir = new File(context.getFilesDir(), CACHE_DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+}
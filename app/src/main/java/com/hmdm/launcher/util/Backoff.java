@@ -0,0 +1,54 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import java.util.Random;
+
+/**
+ * Capped exponential backoff with jitter. The delay doubles after each failure up to
+ * the max, and the returned value is random between half of the delay and the delay,
+ * so the devices which failed at the same time (server restart, network outage) don't retry in sync.
+ */
+public class Backoff {
+    private final long initialMs;
+    private final long maxMs;
+    private final Random random = new Random();
+    private int attempt;
+
+    public Backoff(long initialMs, long maxMs) {
+        this.initialMs = initialMs;
+        this.maxMs = maxMs;
+    }
+
+    // Returns the delay before the next attempt
+    public synchronized long next() {
+        long delay = Math.min(maxMs, initialMs << Math.min(attempt, 20));
+        attempt++;
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    public synchronized void reset() {
+        attempt = 0;
+    }
+
+    public synchronized int getAttempt() {
+        return attempt;
+    }
+}
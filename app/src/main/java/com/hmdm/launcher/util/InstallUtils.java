@@ -37,32 +37,40 @@ import androidx.core.content.FileProvider;
 import com.hmdm.launcher.BuildConfig;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.db.DownloadTable;
 import com.hmdm.launcher.db.RemoteFileTable;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.json.Application;
+import com.hmdm.launcher.json.Download;
 import com.hmdm.launcher.json.RemoteFile;
+import com.hmdm.launcher.server.ServerEndpointSelector;
+import com.hmdm.launcher.server.SharedHttpClient;
 
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
 public class InstallUtils {
 
     public static void generateApplicationsForInstallList(Context context, List<Application> applications,
@@ -296,85 +304,264 @@ public class InstallUtils {
     }
 
 
-        public interface DownloadProgress {
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+    // Partial download length is saved each DOWNLOAD_CHECKPOINT_BYTES
+    private static final long DOWNLOAD_CHECKPOINT_BYTES = 1024 * 1024;
+    // Progress is reported when the percentage changes, but at least once per this period
+    private static final long DOWNLOAD_PROGRESS_INTERVAL_MS = 1000;
+
+    public interface DownloadProgress {
         void onDownloadProgress(final int progress, final long total, final long current);
     }
 
+    // Locks of the temp files, see downloadFile()
+    private static final Map<String, Object> downloadLocks = new HashMap<>();
+
+    // The app temp path is also the DownloadTable key of the app download
     public static String getAppTempPath(Context context, String strUrl) {
-        File tempFile = new File(context.getExternalFilesDir(null), getFileName(strUrl));
+        File tempFile = new File(context.getExternalFilesDir(null), getTempFileName(strUrl, strUrl));
         return tempFile.getAbsolutePath();
     }
 
-    public static File downloadFile(Context context, String strUrl, DownloadProgress progressHandler ) throws Exception {
-        File tempFile = new File(context.getExternalFilesDir(null), getFileName(strUrl));
-        if (tempFile.exists()) {
-            tempFile.delete();
+    // Downloads running in parallel must not share the temp file, so it's named by the DownloadTable path
+    // The original file name is kept at the end because the extension matters (see silentInstallApplication())
+    private static File getTempFile(Context context, String strUrl, String downloadPath) {
+        if (downloadPath != null && downloadPath.equals(getAppTempPath(context, strUrl))) {
+            return new File(downloadPath);
         }
+        return new File(context.getExternalFilesDir(null),
+                getTempFileName(downloadPath != null ? downloadPath : strUrl, strUrl));
+    }
 
-        try {
-            try {
-                tempFile.createNewFile();
-            } catch (Exception e) {
-                e.printStackTrace();
+    private static String getTempFileName(String key, String strUrl) {
+        String fileName = getFileName(strUrl);
+        if (fileName.startsWith("/")) {
+            fileName = fileName.substring(1);
+        }
+        return CryptoHelper.getSHA1String(key).substring(0, 16) + "_" + fileName;
+    }
 
-                tempFile = File.createTempFile(getFileName(strUrl), "temp");
+    private static Object getDownloadLock(File tempFile) {
+        synchronized (downloadLocks) {
+            Object lock = downloadLocks.get(tempFile.getAbsolutePath());
+            if (lock == null) {
+                lock = new Object();
+                downloadLocks.put(tempFile.getAbsolutePath(), lock);
             }
+            return lock;
+        }
+    }
 
-            URL url = new URL(strUrl);
+    // Downloads the file to the temporary path. If downloadPath is set, the partially downloaded file
+    // and its length are saved in DownloadTable under this path, and the next attempt resumes the download
+    // by a Range request (If-Range makes the server send the whole file if it has been changed).
+    // If cacheKey is set (see ArtifactCache), the file is taken from the artifact cache when possible
+    public static File downloadFile(Context context, String strUrl, String downloadPath, String cacheKey, DownloadProgress progressHandler ) throws Exception {
+        File tempFile = getTempFile(context, strUrl, downloadPath);
+        // A download interrupted by the end of the update flow may still be finishing,
+        // the next download to the same file must wait for it
+        synchronized (getDownloadLock(tempFile)) {
+            return downloadFile(context, strUrl, tempFile, downloadPath, cacheKey, progressHandler);
+        }
+    }
 
-            HttpURLConnection connection;
-            if (BuildConfig.TRUST_ANY_CERTIFICATE && url.getProtocol().toLowerCase().equals("https")) {
-                connection = (HttpsURLConnection) url.openConnection();
-                ((HttpsURLConnection) connection).setHostnameVerifier(DO_NOT_VERIFY);
-            } else {
-                connection = (HttpURLConnection) url.openConnection();
+    private static File downloadFile(Context context, String strUrl, File tempFile, String downloadPath, String cacheKey, DownloadProgress progressHandler ) throws Exception {
+        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+
+        if (ArtifactCache.get(context, cacheKey, tempFile)) {
+            // The partial file (if any) has been replaced
+            saveDownloadCheckpoint(dbHelper, downloadPath, strUrl, 0, null);
+            progressHandler.onDownloadProgress(100, tempFile.length(), tempFile.length());
+            return tempFile;
+        }
+        Download download = downloadPath != null ? DownloadTable.selectByPath(dbHelper.getReadableDatabase(), downloadPath) : null;
+
+        long offset = 0;
+        String validator = null;
+        if (download != null && strUrl.equals(download.getUrl()) && download.getValidator() != null &&
+                download.getPartialLength() > 0 && tempFile.length() >= download.getPartialLength()) {
+            offset = download.getPartialLength();
+            validator = download.getValidator();
+        } else if (tempFile.exists()) {
+            tempFile.delete();
+        }
+
+        try {
+            if (offset == 0) {
+                try {
+                    tempFile.createNewFile();
+                } catch (Exception e) {
+                    e.printStackTrace();
+
+                    // The fallback file name is random, so it can't be resumed
+                    tempFile = File.createTempFile(getFileName(strUrl), "temp");
+                    downloadPath = null;
+                }
             }
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("Accept-Encoding", "identity");
-            connection.setConnectTimeout((int) Const.CONNECTION_TIMEOUT);
-            connection.setReadTimeout((int) Const.CONNECTION_TIMEOUT);
+
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(strUrl)
+                    .tag(ServerEndpointSelector.UNTRACKED)
+                    .header("Accept-Encoding", "identity");
             String signature = getRequestSignature(strUrl);
             if (signature != null) {
-                connection.setRequestProperty("X-Request-Signature", signature);
+                requestBuilder.header("X-Request-Signature", signature);
             }
-            connection.connect();
-
-            if (connection.getResponseCode() != 200) {
-                throw new Exception("Bad server response for " + strUrl + ": " + connection.getResponseCode());
+            if (offset > 0) {
+                Log.d(Const.LOG_TAG, "Resuming download of " + strUrl + " from " + offset);
+                requestBuilder.header("Range", "bytes=" + offset + "-");
+                requestBuilder.header("If-Range", validator);
             }
+            // The shared client reuses the connections to the server opened by the API calls
+            Response response = SharedHttpClient.getClient().newCall(requestBuilder.build()).execute();
+            ResponseBody body = response.body();
 
-            int lengthOfFile = connection.getContentLength();
-
-            progressHandler.onDownloadProgress(0, lengthOfFile, 0);
-
-            InputStream is = connection.getInputStream();
-            DataInputStream dis = new DataInputStream(is);
+            try {
+                if (response.code() == HTTP_RANGE_NOT_SATISFIABLE ||
+                        (response.code() == HTTP_PARTIAL_CONTENT && !isRangeStart(response, offset))) {
+                    // Broken partial file, start from scratch next time
+                    saveDownloadCheckpoint(dbHelper, downloadPath, strUrl, 0, null);
+                    downloadPath = null;
+                    throw new Exception("Failed to resume download of " + strUrl + ": " + response.code());
+                }
+                if (response.code() == 200) {
+                    // The file has been changed on the server, or ranges aren't supported
+                    offset = 0;
+                } else if (response.code() != HTTP_PARTIAL_CONTENT) {
+                    throw new Exception("Bad server response for " + strUrl + ": " + response.code());
+                }
+                if (body == null) {
+                    throw new Exception("Empty server response for " + strUrl);
+                }
 
-            byte[] buffer = new byte[1024];
-            int length;
-            long total = 0;
+                validator = response.header("ETag");
+                if (validator == null || validator.startsWith("W/")) {
+                    // Weak ETags can't be used in If-Range
+                    validator = response.header("Last-Modified");
+                }
+                if (validator == null) {
+                    downloadPath = null;
+                }
 
-            FileOutputStream fos = new FileOutputStream(tempFile);
-            while ((length = dis.read(buffer)) > 0) {
-                total += length;
-                progressHandler.onDownloadProgress(
-                        (int) ((total * 100.0f) / lengthOfFile),
-                        lengthOfFile,
-                        total);
-                fos.write(buffer, 0, length);
+                long lengthOfFile = body.contentLength() >= 0 ? offset + body.contentLength() : -1;
+                long total = offset;
+
+                progressHandler.onDownloadProgress(getPercent(total, lengthOfFile), lengthOfFile, total);
+
+                FileOutputStream fos = new FileOutputStream(tempFile, offset > 0);
+                FileChannel fileChannel = fos.getChannel();
+                ReadableByteChannel inChannel = Channels.newChannel(body.byteStream());
+                try {
+                    // Drop the bytes after the saved length, they may be incomplete
+                    fileChannel.truncate(offset);
+                    fileChannel.position(offset);
+
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(DOWNLOAD_BUFFER_SIZE);
+                    long checkpoint = total;
+                    long lastProgressTime = System.currentTimeMillis();
+                    int lastPercent = getPercent(total, lengthOfFile);
+                    try {
+                        while (inChannel.read(buffer) != -1) {
+                            // Socket reads don't react to interruption (see DownloadScheduler.shutdown())
+                            if (Thread.currentThread().isInterrupted()) {
+                                throw new InterruptedIOException("Download of " + strUrl + " interrupted");
+                            }
+                            buffer.flip();
+                            while (buffer.hasRemaining()) {
+                                total += fileChannel.write(buffer);
+                            }
+                            buffer.clear();
+
+                            if (total - checkpoint >= DOWNLOAD_CHECKPOINT_BYTES) {
+                                saveDownloadCheckpoint(dbHelper, downloadPath, strUrl, total, validator);
+                                checkpoint = total;
+                            }
+                            long now = System.currentTimeMillis();
+                            int percent = getPercent(total, lengthOfFile);
+                            if (percent != lastPercent || now - lastProgressTime >= DOWNLOAD_PROGRESS_INTERVAL_MS) {
+                                progressHandler.onDownloadProgress(percent, lengthOfFile, total);
+                                lastPercent = percent;
+                                lastProgressTime = now;
+                            }
+                        }
+                    } catch (Exception e) {
+                        // Keep the downloaded part for the next attempt
+                        saveDownloadCheckpoint(dbHelper, downloadPath, strUrl, total, validator);
+                        throw e;
+                    }
+                    progressHandler.onDownloadProgress(getPercent(total, lengthOfFile), lengthOfFile, total);
+                } finally {
+                    inChannel.close();
+                    fos.close();
+                }
+                if (lengthOfFile >= 0 && total != lengthOfFile) {
+                    saveDownloadCheckpoint(dbHelper, downloadPath, strUrl, total, validator);
+                    throw new Exception("Incomplete download of " + strUrl + ": " + total + " of " + lengthOfFile + " bytes");
+                }
+                // The file is complete, do not resume it
+                saveDownloadCheckpoint(dbHelper, downloadPath, strUrl, 0, null);
+            } finally {
+                response.close();
             }
-            fos.flush();
-            fos.close();
-
-            dis.close();
         } catch (Exception e) {
-            tempFile.delete();
+            if (downloadPath == null || !tempFile.exists() || tempFile.length() == 0) {
+                tempFile.delete();
+            }
             throw e;
         }
 
+        ArtifactCache.put(context, cacheKey, tempFile);
         return tempFile;
     }
 
+    private static boolean isRangeStart(Response response, long offset) {
+        // Content-Range: bytes <start>-<end>/<length>
+        String contentRange = response.header("Content-Range");
+        return contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+    }
+
+    private static int getPercent(long current, long total) {
+        return total > 0 ? (int) ((current * 100.0f) / total) : 0;
+    }
+
+    // Saves the partial file length, keeping the attempt counters of the download entry.
+    // The checkpoint of an interrupted download is saved as well, so the downloaded part is not lost
+    private static void saveDownloadCheckpoint(DatabaseHelper dbHelper, String downloadPath, String strUrl,
+                                               long partialLength, String validator) {
+        if (downloadPath == null) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        boolean saved;
+        try {
+            saved = dbHelper.write(db -> {
+                Download download = DownloadTable.selectByPath(db, downloadPath);
+                if (download == null) {
+                    if (partialLength == 0) {
+                        return;
+                    }
+                    download = new Download();
+                    download.setUrl(strUrl);
+                    download.setPath(downloadPath);
+                }
+                download.setPartialLength(partialLength);
+                download.setValidator(validator);
+                DownloadTable.insert(db, download);
+            });
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!saved) {
+            // The previous checkpoint is still valid: the file is truncated to it on resume
+            Log.w(Const.LOG_TAG, "Failed to save the download checkpoint of " + strUrl);
+        }
+    }
+
     public static String getRequestSignature(String strUrl) {
         int index = strUrl.indexOf("/files/", 0);
         if (index == -1) {
@@ -533,13 +720,6 @@ public class InstallUtils {
         return "UNKNOWN";
     }
 
-    // always verify the host - dont check for certificate
-    final static HostnameVerifier DO_NOT_VERIFY = new HostnameVerifier() {
-        public boolean verify(String hostname, SSLSession session) {
-            return true;
-        }
-    };
-
     /**
      * Trust every server - dont check for any certificate
      * This should be called at the app start if TRUST_ANY_CERTIFICATE is set to true
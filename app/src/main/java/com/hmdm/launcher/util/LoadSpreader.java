@@ -0,0 +1,55 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+
+import com.hmdm.launcher.helper.CryptoHelper;
+import com.hmdm.launcher.helper.SettingsHelper;
+
+/**
+ * Spreads the server load caused by a push message sent to many devices at once.
+ * Each device delays its reaction by an offset within the window set by the server.
+ * The offset is derived from a hash of the device ID, so it's uniformly distributed
+ * over the fleet, and a device takes the same place each time.
+ */
+public class LoadSpreader {
+    // Stages are spread independently
+    public static final String STAGE_CONFIG = "config";
+    public static final String STAGE_DOWNLOAD = "download";
+
+    // Returns the delay in milliseconds, 0 if the window is not set
+    public static long getDelay(Context context, String stage, Integer windowSec) {
+        if (windowSec == null || windowSec <= 0) {
+            return 0;
+        }
+        String deviceId = SettingsHelper.getInstance(context).getDeviceId();
+        if (deviceId == null) {
+            return 0;
+        }
+        String hash = CryptoHelper.getSHA1String(stage + ":" + deviceId);
+        if (hash == null) {
+            return 0;
+        }
+        // 60 bits of the hash are enough for any window
+        long value = Long.parseLong(hash.substring(0, 15), 16);
+        return value % (windowSec * 1000L);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.json.RemoteLogConfig;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Immutable in-memory index of the remote log rules.
+ * A message matches if there's a rule for its package with the level not less
+ * than the message level, and the rule filter is either empty or is a substring
+ * of the message (case-insensitive for ASCII, like the SQLite LIKE operator).
+ * Filters of a package are compiled into an Aho-Corasick automaton, so a message
+ * is scanned once whatever the number of filters is, without allocations.
+ */
+public class LogRuleMatcher {
+    public static final LogRuleMatcher EMPTY = new LogRuleMatcher(new HashMap<>());
+
+    private final Map<String, PackageRules> packages;
+
+    private LogRuleMatcher(Map<String, PackageRules> packages) {
+        this.packages = packages;
+    }
+
+    public static LogRuleMatcher compile(List<RemoteLogConfig> rules) {
+        Map<String, List<RemoteLogConfig>> rulesByPackage = new HashMap<>();
+        for (RemoteLogConfig rule : rules) {
+            if (rule.getPackageId() == null) {
+                continue;
+            }
+            List<RemoteLogConfig> packageRules = rulesByPackage.get(rule.getPackageId());
+            if (packageRules == null) {
+                packageRules = new ArrayList<>();
+                rulesByPackage.put(rule.getPackageId(), packageRules);
+            }
+            packageRules.add(rule);
+        }
+
+        Map<String, PackageRules> packages = new HashMap<>();
+        for (Map.Entry<String, List<RemoteLogConfig>> entry : rulesByPackage.entrySet()) {
+            packages.put(entry.getKey(), new PackageRules(entry.getValue()));
+        }
+        return new LogRuleMatcher(packages);
+    }
+
+    public boolean match(RemoteLogItem item) {
+        if (item.getPackageId() == null) {
+            return false;
+        }
+        PackageRules packageRules = packages.get(item.getPackageId());
+        return packageRules != null && packageRules.match(item.getLogLevel(), item.getMessage());
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private static class PackageRules {
+        // Max level of all rules: more verbose messages are rejected at once
+        private int levelThreshold = Integer.MIN_VALUE;
+        // Max level of the rules without a filter
+        private int unfilteredLevel = Integer.MIN_VALUE;
+
+        // Automaton: per state, sorted transition chars and target states,
+        // failure links, and the max level of filters ending in this state
+        private char[][] keys;
+        private int[][] targets;
+        private int[] fail;
+        private int[] outLevel;
+
+        PackageRules(List<RemoteLogConfig> rules) {
+            List<char[]> trieKeys = new ArrayList<>();
+            List<int[]> trieTargets = new ArrayList<>();
+            List<Integer> trieOut = new ArrayList<>();
+            trieKeys.add(new char[0]);
+            trieTargets.add(new int[0]);
+            trieOut.add(Integer.MIN_VALUE);
+
+            for (RemoteLogConfig rule : rules) {
+                int level = rule.getLogLevel();
+                levelThreshold = Math.max(levelThreshold, level);
+                String filter = rule.getFilter();
+                if (filter == null || filter.isEmpty()) {
+                    unfilteredLevel = Math.max(unfilteredLevel, level);
+                    continue;
+                }
+                int state = 0;
+                for (int i = 0; i < filter.length(); i++) {
+                    char c = toLowerAscii(filter.charAt(i));
+                    int next = find(trieKeys.get(state), trieTargets.get(state), c);
+                    if (next < 0) {
+                        next = trieKeys.size();
+                        trieKeys.add(new char[0]);
+                        trieTargets.add(new int[0]);
+                        trieOut.add(Integer.MIN_VALUE);
+                        addTransition(trieKeys, trieTargets, state, c, next);
+                    }
+                    state = next;
+                }
+                trieOut.set(state, Math.max(trieOut.get(state), level));
+            }
+
+            int size = trieKeys.size();
+            keys = trieKeys.toArray(new char[size][]);
+            targets = trieTargets.toArray(new int[size][]);
+            outLevel = new int[size];
+            for (int i = 0; i < size; i++) {
+                outLevel[i] = trieOut.get(i);
+            }
+            buildFailureLinks();
+        }
+
+        // Breadth-first traversal; the output of a state also includes
+        // the outputs of its failure chain (filters which are suffixes)
+        private void buildFailureLinks() {
+            fail = new int[keys.length];
+            Queue<Integer> queue = new LinkedList<>();
+            for (int child : targets[0]) {
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int i = 0; i < keys[state].length; i++) {
+                    char c = keys[state][i];
+                    int child = targets[state][i];
+                    int f = fail[state];
+                    int next;
+                    while ((next = find(keys[f], targets[f], c)) < 0 && f != 0) {
+                        f = fail[f];
+                    }
+                    fail[child] = next >= 0 && next != child ? next : 0;
+                    outLevel[child] = Math.max(outLevel[child], outLevel[fail[child]]);
+                    queue.add(child);
+                }
+            }
+        }
+
+        boolean match(int level, String message) {
+            if (level > levelThreshold) {
+                return false;
+            }
+            if (level <= unfilteredLevel) {
+                return true;
+            }
+            if (message == null) {
+                return false;
+            }
+            int state = 0;
+            for (int i = 0; i < message.length(); i++) {
+                char c = toLowerAscii(message.charAt(i));
+                int next;
+                while ((next = find(keys[state], targets[state], c)) < 0 && state != 0) {
+                    state = fail[state];
+                }
+                state = next >= 0 ? next : 0;
+                if (outLevel[state] >= level) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int find(char[] stateKeys, int[] stateTargets, char c) {
+            int index = Arrays.binarySearch(stateKeys, c);
+            return index >= 0 ? stateTargets[index] : -1;
+        }
+
+        private static void addTransition(List<char[]> trieKeys, List<int[]> trieTargets, int state, char c, int target) {
+            char[] oldKeys = trieKeys.get(state);
+            int[] oldTargets = trieTargets.get(state);
+            int pos = -(Arrays.binarySearch(oldKeys, c) + 1);
+            char[] newKeys = new char[oldKeys.length + 1];
+            int[] newTargets = new int[oldTargets.length + 1];
+            System.arraycopy(oldKeys, 0, newKeys, 0, pos);
+            System.arraycopy(oldTargets, 0, newTargets, 0, pos);
+            newKeys[pos] = c;
+            newTargets[pos] = target;
+            System.arraycopy(oldKeys, pos, newKeys, pos + 1, oldKeys.length - pos);
+            System.arraycopy(oldTargets, pos, newTargets, pos + 1, oldTargets.length - pos);
+            trieKeys.set(state, newKeys);
+            trieTargets.set(state, newTargets);
+        }
+    }
+}
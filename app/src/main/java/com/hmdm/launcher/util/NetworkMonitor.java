@@ -0,0 +1,150 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Tracks the network availability by ConnectivityManager callbacks (connectivity broadcasts
+ * on Android 4), so the push transports could pause while the device is offline
+ * and resume as soon as a network appears instead of waiting for a retry timer.
+ * Listeners are called on a background thread.
+ */
+public class NetworkMonitor {
+
+    public interface Listener {
+        // Called each time a network becomes available, even if there's another one
+        void onNetworkAvailable();
+        // Called when no networks are left
+        void onNetworkLost();
+    }
+
+    private static NetworkMonitor instance;
+
+    private final Context context;
+    private final Set<Listener> listeners = new CopyOnWriteArraySet<>();
+    // Networks with the Internet capability (Android 5+)
+    private final Set<Network> networks = new HashSet<>();
+    private volatile boolean available;
+    private volatile boolean registered;
+
+    public static synchronized NetworkMonitor getInstance(Context context) {
+        if (instance == null) {
+            instance = new NetworkMonitor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NetworkMonitor(Context context) {
+        this.context = context;
+    }
+
+    public boolean isAvailable() {
+        return registered ? available : ConnectionWaiter.isNetworkAvailable(context);
+    }
+
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        if (!registered) {
+            register();
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // The monitor stays registered for the process lifetime, it's cheap
+    private void register() {
+        available = ConnectionWaiter.isNetworkAvailable(context);
+        try {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                NetworkRequest request = new NetworkRequest.Builder()
+                        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                        .build();
+                cm.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+                    @Override
+                    public void onAvailable(Network network) {
+                        synchronized (networks) {
+                            networks.add(network);
+                        }
+                        setAvailable(true, true);
+                    }
+
+                    @Override
+                    public void onLost(Network network) {
+                        boolean empty;
+                        synchronized (networks) {
+                            networks.remove(network);
+                            empty = networks.isEmpty();
+                        }
+                        if (empty) {
+                            setAvailable(false, false);
+                        }
+                    }
+                });
+            } else {
+                context.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        boolean isAvailable = ConnectionWaiter.isNetworkAvailable(context);
+                        // The receiver runs on the main thread
+                        new Thread(() -> setAvailable(isAvailable, false)).start();
+                    }
+                }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+            }
+            registered = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void setAvailable(boolean isAvailable, boolean notifyAlways) {
+        boolean changed = available != isAvailable;
+        available = isAvailable;
+        if (!changed && !notifyAlways) {
+            return;
+        }
+        Log.d(Const.LOG_TAG, "Network " + (isAvailable ? "available" : "lost"));
+        for (Listener listener : listeners) {
+            if (isAvailable) {
+                listener.onNetworkAvailable();
+            } else {
+                listener.onNetworkLost();
+            }
+        }
+    }
+}
@@ -41,7 +41,7 @@ import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.json.PushMessageJson;
 import com.hmdm.launcher.json.ServerConfig;
-import com.hmdm.launcher.worker.PushNotificationProcessor;
+import com.hmdm.launcher.worker.PushIntake;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
 import org.eclipse.paho.android.service.MqttAndroidConnectOptions;
@@ -55,8 +55,6 @@ import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.json.JSONObject;
 
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class PushNotificationMqttWrapper {
@@ -70,13 +68,24 @@ public class PushNotificationMqttWrapper {
     private boolean needProcessConnectExtended;
 
     private static final String WORKER_TAG_MQTT_RECONNECT = "com.hmdm.launcher.WORK_TAG_MQTT_RECONNECT";
+    // Reconnection job in case the process is killed while waiting for the reconnection timer
     private static final int MQTT_RECONNECT_INTERVAL_SEC = 900;
 
+    // Reconnection after failure: the delay grows while the network is up but the broker is unreachable,
+    // the reconnection is done at once when a network becomes available
+    private static final long RECONNECT_INITIAL_MS = 10000;
+    private static final long RECONNECT_MAX_MS = MQTT_RECONNECT_INTERVAL_SEC * 1000L;
+    private final Backoff reconnectBackoff = new Backoff(RECONNECT_INITIAL_MS, RECONNECT_MAX_MS);
+    private Runnable pendingReconnect;
+    private boolean networkListenerAdded;
+
     // If more than 20 connections per minute, we are stopping:
     // this is a sign that two devices with the same ID are registered
-    private List<Long> connectionLoopProtectionArray = new LinkedList<>();
     private static final int CONNECTION_LOOP_PROTECTION_TIME_MS = 60000;
     private static final int CONNECTION_LOOP_CRITICAL_COUNT = 15;
+    // Times of the last connections, a ring buffer
+    private final long[] connectionTimes = new long[CONNECTION_LOOP_CRITICAL_COUNT + 1];
+    private int connectionTimeIndex;
 
     private PushNotificationMqttWrapper() {
     }
@@ -178,6 +187,7 @@ public class PushNotificationMqttWrapper {
                 public void onSuccess(IMqttToken asyncActionToken) {
                     // We believe that if connect is successful, subscribe() won't hang up
                     connectHangupMonitorHandler.removeCallbacksAndMessages(null);
+                    reconnectBackoff.reset();
                     subscribe(context, deviceId, onSuccess, onFailure);
                 }
 
@@ -207,36 +217,28 @@ public class PushNotificationMqttWrapper {
         }
     }
 
-    private boolean checkConnectionLoop() {
-        Long now = System.currentTimeMillis();
-        // Remove old items
-        for (int n = 0; n < connectionLoopProtectionArray.size(); n++) {
-            if (connectionLoopProtectionArray.get(n) < now - CONNECTION_LOOP_PROTECTION_TIME_MS) {
-                connectionLoopProtectionArray.remove(n);
-                n--;
-            }
-        }
-        connectionLoopProtectionArray.add(now);
-        return connectionLoopProtectionArray.size() <= CONNECTION_LOOP_CRITICAL_COUNT;
+    private synchronized boolean checkConnectionLoop() {
+        long now = System.currentTimeMillis();
+        connectionTimes[connectionTimeIndex] = now;
+        connectionTimeIndex = (connectionTimeIndex + 1) % connectionTimes.length;
+        // The next slot holds the oldest of the last CONNECTION_LOOP_CRITICAL_COUNT + 1 connections
+        long oldest = connectionTimes[connectionTimeIndex];
+        return oldest == 0 || oldest < now - CONNECTION_LOOP_PROTECTION_TIME_MS;
     }
 
     private IMqttMessageListener mqttMessageListener = new IMqttMessageListener() {
         @Override
         public void messageArrived(String topic, final MqttMessage message) throws Exception {
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        JSONObject obj = new JSONObject(new String(message.getPayload()));
-                        String messageType = obj.getString("messageType");
-                        PushMessageJson msg = new PushMessageJson(messageType, obj.optJSONObject("payload"));
-                        PushNotificationProcessor.process(msg, context);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
-
+            // The processor executes the command asynchronously, so the MQTT thread is not blocked
+            try {
+                JSONObject obj = new JSONObject(new String(message.getPayload()));
+                String messageType = obj.getString("messageType");
+                PushMessageJson msg = new PushMessageJson(messageType, obj.optJSONObject("payload"));
+                msg.setId(obj.has("id") ? obj.optString("id") : null);
+                PushIntake.getInstance().submit(context, msg);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     };
 
@@ -285,13 +287,84 @@ public class PushNotificationMqttWrapper {
         debugReceiver = null;
     }
 
-    private void cancelReconnectionAfterFailure(Context context) {
+    private synchronized void cancelReconnectionAfterFailure(Context context) {
+        if (pendingReconnect != null) {
+            handler.removeCallbacks(pendingReconnect);
+            pendingReconnect = null;
+        }
         WorkManager.getInstance(context.getApplicationContext()).cancelUniqueWork(WORKER_TAG_MQTT_RECONNECT);
     }
 
     private void scheduleReconnectionAfterFailure(Context context, String host, int port,
                                                   String pushType, int keepaliveTime, final String deviceId) {
-        RemoteLogger.log(context, Const.LOG_INFO, "Scheduling MQTT reconnection in " + MQTT_RECONNECT_INTERVAL_SEC + " sec");
+        scheduleReconnect(context, host, port, pushType, keepaliveTime, deviceId, reconnectBackoff.next());
+    }
+
+    // Connects after the delay, or earlier if a network becomes available
+    public synchronized void scheduleReconnect(final Context context, final String host, final int port,
+                                               final String pushType, final int keepaliveTime, final String deviceId,
+                                               long delayMs) {
+        if (pendingReconnect != null) {
+            handler.removeCallbacks(pendingReconnect);
+        }
+        pendingReconnect = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PushNotificationMqttWrapper.this) {
+                    if (pendingReconnect != this) {
+                        return;
+                    }
+                    pendingReconnect = null;
+                }
+                connect(context, host, port, pushType, keepaliveTime, deviceId, null, null);
+            }
+        };
+        NetworkMonitor networkMonitor = NetworkMonitor.getInstance(context);
+        if (!networkListenerAdded) {
+            networkMonitor.addListener(networkListener);
+            networkListenerAdded = true;
+        }
+        if (networkMonitor.isAvailable()) {
+            RemoteLogger.log(context, Const.LOG_INFO, "Scheduling MQTT reconnection in " + (delayMs / 1000) + " sec");
+            handler.postDelayed(pendingReconnect, delayMs);
+        } else {
+            RemoteLogger.log(context, Const.LOG_INFO, "MQTT reconnection is waiting for network");
+        }
+        scheduleReconnectionWork(context, host, port, pushType, keepaliveTime, deviceId);
+    }
+
+    private final NetworkMonitor.Listener networkListener = new NetworkMonitor.Listener() {
+        @Override
+        public void onNetworkAvailable() {
+            handler.post(() -> {
+                synchronized (PushNotificationMqttWrapper.this) {
+                    if (pendingReconnect == null) {
+                        return;
+                    }
+                    // The failures were likely caused by the network, start over
+                    Log.d(Const.LOG_TAG, "Network available, reconnecting MQTT");
+                    reconnectBackoff.reset();
+                    handler.removeCallbacks(pendingReconnect);
+                    handler.post(pendingReconnect);
+                }
+            });
+        }
+
+        @Override
+        public void onNetworkLost() {
+            handler.post(() -> {
+                synchronized (PushNotificationMqttWrapper.this) {
+                    if (pendingReconnect != null) {
+                        // No use to retry without network, wait for onNetworkAvailable()
+                        handler.removeCallbacks(pendingReconnect);
+                    }
+                }
+            });
+        }
+    };
+
+    private void scheduleReconnectionWork(Context context, String host, int port,
+                                          String pushType, int keepaliveTime, final String deviceId) {
         Data data = new Data.Builder()
                 .putString("host", host)
                 .putInt("port", port)
@@ -0,0 +1,190 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.db.LogTable;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-behind pipeline for remote logs.
+ * Callers (including the UI thread and binder threads of the plugin API) only put
+ * the item into a bounded lock-free queue. A single writer thread filters the items
+ * by the log rules and stores them in SQLite in batches, one transaction per batch.
+ * When the queue is full, the oldest items are dropped and the writer stores a record
+ * with the amount of suppressed items; this record is not filtered by the log rules.
+ */
+public class RemoteLogWriter {
+    // Max amount of log items waiting to be stored
+    public static final int QUEUE_CAPACITY = 1000;
+
+    // Max amount of log items stored in one transaction
+    public static final int BATCH_SIZE = 50;
+
+    // The writer thread wakes up at least once per this period
+    private static final long IDLE_WAIT_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private static RemoteLogWriter instance;
+
+    private final Context context;
+    private final ConcurrentLinkedQueue<RemoteLogItem> queue = new ConcurrentLinkedQueue<>();
+    // ConcurrentLinkedQueue.size() is O(n), so the size is tracked separately
+    private final AtomicInteger queueSize = new AtomicInteger();
+    private final AtomicInteger suppressedCount = new AtomicInteger();
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+
+    private final Thread writerThread;
+
+    public static synchronized RemoteLogWriter getInstance(Context context) {
+        if (instance == null) {
+            instance = new RemoteLogWriter(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private RemoteLogWriter(Context context) {
+        this.context = context;
+        writerThread = new Thread(this::writerLoop, "RemoteLogWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Non-blocking, may be called from any thread
+    public void enqueue(RemoteLogItem item) {
+        queue.offer(item);
+        enqueuedCount.incrementAndGet();
+        if (queueSize.incrementAndGet() > QUEUE_CAPACITY) {
+            // Overflow: drop the oldest item
+            if (queue.poll() != null) {
+                queueSize.decrementAndGet();
+                droppedCount.incrementAndGet();
+                suppressedCount.incrementAndGet();
+            }
+        }
+        LockSupport.unpark(writerThread);
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getFlushedCount() {
+        return flushedCount.get();
+    }
+
+    public int getQueueSize() {
+        return queueSize.get();
+    }
+
+    private void writerLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        List<RemoteLogItem> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                int suppressed = suppressedCount.getAndSet(0);
+                RemoteLogItem suppressedItem = suppressed > 0 ? createSuppressedItem(suppressed) : null;
+                RemoteLogItem item;
+                while (batch.size() < BATCH_SIZE && (item = queue.poll()) != null) {
+                    queueSize.decrementAndGet();
+                    batch.add(item);
+                }
+                if (batch.isEmpty() && suppressedItem == null) {
+                    LockSupport.parkNanos(this, IDLE_WAIT_NS);
+                    continue;
+                }
+                writeBatch(batch, suppressedItem);
+            } catch (Exception e) {
+                // Do not let the writer thread die on a database error
+                e.printStackTrace();
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // The suppressed item (if any) is stored regardless of the log rules: it's reported
+    // by the launcher itself, so it would be usually filtered out as a non-error message
+    private void writeBatch(List<RemoteLogItem> batch, RemoteLogItem suppressedItem) {
+        LogRuleMatcher matcher = RemoteLogger.getRuleMatcher(context);
+        List<RemoteLogItem> matched = new ArrayList<>(batch.size() + 1);
+        if (suppressedItem != null) {
+            matched.add(suppressedItem);
+        }
+        for (RemoteLogItem item : batch) {
+            if (matcher.match(item)) {
+                matched.add(item);
+            }
+        }
+        if (matched.isEmpty()) {
+            return;
+        }
+        // The insert statement is compiled once and cached by the database writer thread
+        boolean written = DatabaseHelper.instance(context).write(db -> {
+            db.beginTransaction();
+            try {
+                for (RemoteLogItem item : matched) {
+                    LogTable.insert(db, item);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        });
+        if (!written) {
+            // Not retried, so a failing database does not stall the queue
+            Log.w(Const.LOG_TAG, "Failed to store " + matched.size() + " remote log items");
+            droppedCount.addAndGet(matched.size());
+            return;
+        }
+        flushedCount.addAndGet(matched.size());
+        RemoteLogger.sendLogsToServer(context);
+    }
+
+    private RemoteLogItem createSuppressedItem(int suppressed) {
+        String message = "Remote log queue overflow, " + suppressed + " messages dropped";
+        Log.w(Const.LOG_TAG, message);
+        RemoteLogItem item = new RemoteLogItem();
+        item.setTimestamp(System.currentTimeMillis());
+        item.setLogLevel(Const.LOG_WARN);
+        item.setPackageId(context.getPackageName());
+        item.setMessage(message);
+        return item;
+    }
+}
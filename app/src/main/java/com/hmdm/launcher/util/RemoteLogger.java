@@ -20,13 +20,11 @@
 package com.hmdm.launcher.util;
 
 import android.content.Context;
-import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.db.DatabaseHelper;
 import com.hmdm.launcher.db.LogConfigTable;
-import com.hmdm.launcher.db.LogTable;
 import com.hmdm.launcher.json.RemoteLogConfig;
 import com.hmdm.launcher.json.RemoteLogItem;
 import com.hmdm.launcher.worker.RemoteLogWorker;
@@ -35,13 +33,32 @@ import java.util.List;
 
 /**
  * Remote logging engine which uses SQLite for configuration
- * and storing unsent logs
+ * and storing unsent logs (see RemoteLogWriter)
  */
 public class RemoteLogger {
-    public static long lastLogRemoval = 0;
+    // Compiled log rules, swapped as a whole when the rules are updated
+    // Null means the rules are not yet loaded from the database
+    private static volatile LogRuleMatcher ruleMatcher;
 
     public static void updateConfig(Context context, List<RemoteLogConfig> rules) {
-        LogConfigTable.replaceAll(DatabaseHelper.instance(context).getWritableDatabase(), rules);
+        DatabaseHelper.instance(context).write(db -> LogConfigTable.replaceAll(db, rules));
+        ruleMatcher = LogRuleMatcher.compile(rules);
+    }
+
+    // Loads the rules from the database at first call, so do not call this in the UI thread
+    public static LogRuleMatcher getRuleMatcher(Context context) {
+        LogRuleMatcher matcher = ruleMatcher;
+        if (matcher == null) {
+            synchronized (RemoteLogger.class) {
+                matcher = ruleMatcher;
+                if (matcher == null) {
+                    matcher = LogRuleMatcher.compile(LogConfigTable.selectAll(
+                            DatabaseHelper.instance(context).getReadableDatabase()));
+                    ruleMatcher = matcher;
+                }
+            }
+        }
+        return matcher;
     }
 
     public static void log(Context context, int level, String message) {
@@ -71,22 +88,16 @@ public class RemoteLogger {
         postLog(context, item);
     }
 
+    // Storing is done asynchronously by RemoteLogWriter
+    // so this method is safe to call from the UI and binder threads
     public static void postLog(Context context, RemoteLogItem item) {
-        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-        if (LogConfigTable.match(db, item)) {
-            db = dbHelper.getWritableDatabase();
-            LogTable.insert(db, item);
-            sendLogsToServer(context);
-        }
-
-        // Remove old logs once per hour
-        long now = System.currentTimeMillis();
-        if (now > lastLogRemoval + 3600000L) {
-            db = dbHelper.getWritableDatabase();
-            LogTable.deleteOldItems(db);
-            lastLogRemoval = now;
+        LogRuleMatcher matcher = ruleMatcher;
+        if (matcher != null && !matcher.match(item)) {
+            // Not matching items are dropped at once. If the rules are not loaded yet,
+            // the item is checked by the writer thread
+            return;
         }
+        RemoteLogWriter.getInstance(context).enqueue(item);
     }
 
     public static void resetState() {
@@ -50,7 +50,7 @@ public class SystemUtils {
     public static String executeShellCommand(String command, boolean useShell) {
         StringBuffer output = new StringBuffer();
 
-        Process p;
+        Process p = null;
         try {
             if (useShell) {
                 String[] cmdArray = {"sh", "-c", command};
@@ -73,6 +73,10 @@ public class SystemUtils {
                     output.append(line + "\n");
                 }
             }
+        } catch (InterruptedException e) {
+            // Push command timeout: do not leave the process running
+            p.destroy();
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,277 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.hmdm.launcher.BuildConfig;
+import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.db.LocationTable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trajectory compression of location updates before they are stored to LocationTable.
+ *
+ * A fix first passes a gate: inaccurate fixes, fixes older than the last one, and fixes
+ * less accurate than a recent better one (GPS vs network) are dropped. Then the route is
+ * simplified by an online variant of the Douglas-Peucker algorithm: the points received
+ * after the last stored point (the anchor) are kept while they all lie within the tolerance
+ * of the segment from the anchor to the newest point. When a new point breaks this,
+ * the previous point is stored and becomes the new anchor. A stationary device therefore
+ * stores one point per HEARTBEAT_MS.
+ *
+ * When a moving device stops (the fixes stay within the tolerance for STOP_MS, or no fixes
+ * are received for STOP_MS), the stop point is stored, so the last known location
+ * is not delayed until the heartbeat.
+ */
+public class TrajectoryFilter {
+    // Fixes with a worse accuracy are dropped, in meters
+    public static final float MAX_ACCURACY = 200;
+
+    // A less accurate fix is dropped if a better one is received within this period
+    private static final long BETTER_FIX_VALIDITY_MS = 2 * 60 * 1000L;
+
+    // Max period without stored points, even if the device doesn't move
+    public static final long HEARTBEAT_MS = 60 * 60 * 1000L;
+
+    // Stationary or idle period after which the stop point of a moving device is stored
+    public static final long STOP_MS = 5 * 60 * 1000L;
+
+    // Max amount of points pending between the anchor and the newest point
+    private static final int MAX_PENDING_POINTS = 100;
+
+    private static final double EARTH_RADIUS = 6371000;
+
+    private static TrajectoryFilter instance;
+
+    private final float tolerance;
+
+    private Location anchor;
+    private final List<Location> pending = new ArrayList<>();
+    // First pending point of the fixes around which the device may have stopped
+    private Location stopCandidate;
+    private Location lastFix;
+
+    private Handler handler;
+
+    private long receivedCount;
+    private long storedCount;
+
+    public static synchronized TrajectoryFilter getInstance() {
+        if (instance == null) {
+            instance = new TrajectoryFilter(BuildConfig.LOCATION_TOLERANCE);
+        }
+        return instance;
+    }
+
+    public TrajectoryFilter(float tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    // Filters the location update and stores the selected points in the background
+    public void process(Context context, Location location) {
+        store(context, offer(location));
+        scheduleIdleFlush(context.getApplicationContext());
+    }
+
+    // Location updates may stop: the last pending point is stored if no fixes follow it
+    private synchronized void scheduleIdleFlush(final Context context) {
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        handler.removeCallbacksAndMessages(null);
+        if (!pending.isEmpty()) {
+            handler.postDelayed(() -> store(context, flushIdle(System.currentTimeMillis())), STOP_MS);
+        }
+    }
+
+    private static void store(Context context, List<Location> points) {
+        if (points.isEmpty()) {
+            return;
+        }
+        DatabaseHelper.instance(context).post(db -> {
+            for (Location point : points) {
+                LocationTable.insert(db, new LocationTable.Location(point));
+            }
+        });
+    }
+
+    // Returns the points to be stored (usually none or one)
+    public synchronized List<Location> offer(Location location) {
+        List<Location> result = new ArrayList<>();
+        receivedCount++;
+        if (tolerance <= 0) {
+            result.add(location);
+            storedCount++;
+            return result;
+        }
+        if (!passesGate(location)) {
+            return result;
+        }
+        lastFix = location;
+
+        if (anchor == null) {
+            anchor = location;
+            result.add(location);
+            storedCount++;
+            return result;
+        }
+
+        if (!pending.isEmpty()) {
+            Location last = pending.get(pending.size() - 1);
+            if (location.getTime() - last.getTime() >= STOP_MS) {
+                // No fixes for a while: the device has stopped at the last point
+                stop(last, result);
+            } else if (stopCandidate != null &&
+                    distance(stopCandidate, location) <= Math.max(tolerance, location.getAccuracy())) {
+                if (location.getTime() - stopCandidate.getTime() >= STOP_MS) {
+                    // The device has stopped: the fixes since the stop point are within its tolerance
+                    stop(stopCandidate, result);
+                    return result;
+                }
+            } else {
+                stopCandidate = location;
+            }
+        }
+
+        if (pending.isEmpty()) {
+            // Stationary device: the fix is within the tolerance of the stored point
+            if (distance(anchor, location) <= Math.max(tolerance, location.getAccuracy())) {
+                if (location.getTime() - anchor.getTime() >= HEARTBEAT_MS) {
+                    commit(location, result);
+                }
+                return result;
+            }
+            pending.add(location);
+            stopCandidate = location;
+            return result;
+        }
+
+        if (pending.size() >= MAX_PENDING_POINTS || !fitsSegment(location)) {
+            // The route turns: the previous point is a vertex of the simplified route
+            commit(pending.get(pending.size() - 1), result);
+        }
+        pending.add(location);
+
+        if (location.getTime() - anchor.getTime() >= HEARTBEAT_MS) {
+            commit(location, result);
+        }
+        return result;
+    }
+
+    // Stores the last pending point if no fixes were received after it for STOP_MS
+    public synchronized List<Location> flushIdle(long now) {
+        List<Location> result = new ArrayList<>();
+        if (!pending.isEmpty()) {
+            Location last = pending.get(pending.size() - 1);
+            if (now - last.getTime() >= STOP_MS) {
+                stop(last, result);
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized long getStoredCount() {
+        return storedCount;
+    }
+
+    private boolean passesGate(Location location) {
+        if (location.hasAccuracy() && location.getAccuracy() > MAX_ACCURACY) {
+            return false;
+        }
+        if (lastFix == null) {
+            return true;
+        }
+        if (location.getTime() <= lastFix.getTime()) {
+            return false;
+        }
+        // Network fixes coming between GPS fixes would add a zigzag to the route
+        if (location.hasAccuracy() && lastFix.hasAccuracy() &&
+                location.getAccuracy() > lastFix.getAccuracy() * 2 &&
+                location.getTime() - lastFix.getTime() < BETTER_FIX_VALIDITY_MS) {
+            return false;
+        }
+        return true;
+    }
+
+    // Checks if all pending points are within the tolerance of the segment from anchor to the location
+    private boolean fitsSegment(Location location) {
+        for (Location point : pending) {
+            if (distanceToSegment(point, anchor, location) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void commit(Location point, List<Location> result) {
+        result.add(point);
+        storedCount++;
+        anchor = point;
+        // The points before the new anchor are dropped
+        int index = pending.indexOf(point);
+        int candidateIndex = pending.indexOf(stopCandidate);
+        if (candidateIndex >= 0 && candidateIndex <= index) {
+            stopCandidate = null;
+        }
+        pending.subList(0, index + 1).clear();
+    }
+
+    // The stop point becomes the anchor, the points after it are within its tolerance
+    private void stop(Location point, List<Location> result) {
+        commit(point, result);
+        pending.clear();
+        stopCandidate = null;
+    }
+
+    private static double distance(Location a, Location b) {
+        double[] xy = project(b, a);
+        return Math.hypot(xy[0], xy[1]);
+    }
+
+    // Distances are small, so an equirectangular projection around the segment start is used
+    private static double distanceToSegment(Location point, Location start, Location end) {
+        double[] p = project(point, start);
+        double[] e = project(end, start);
+        double lengthSquared = e[0] * e[0] + e[1] * e[1];
+        if (lengthSquared == 0) {
+            return Math.hypot(p[0], p[1]);
+        }
+        double t = Math.max(0, Math.min(1, (p[0] * e[0] + p[1] * e[1]) / lengthSquared));
+        return Math.hypot(p[0] - t * e[0], p[1] - t * e[1]);
+    }
+
+    // Returns x, y of the location in meters relative to the origin
+    private static double[] project(Location location, Location origin) {
+        double latRad = Math.toRadians(origin.getLatitude());
+        double x = Math.toRadians(location.getLongitude() - origin.getLongitude()) * Math.cos(latRad) * EARTH_RADIUS;
+        double y = Math.toRadians(location.getLatitude() - origin.getLatitude()) * EARTH_RADIUS;
+        return new double[] { x, y };
+    }
+}
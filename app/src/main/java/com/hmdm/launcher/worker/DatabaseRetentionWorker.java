@@ -0,0 +1,86 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.worker;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.db.DatabaseHelper;
+import com.hmdm.launcher.db.DatabaseRetention;
+
+import java.util.concurrent.TimeUnit;
+
+public class DatabaseRetentionWorker extends Worker {
+
+    public static final int FIRE_PERIOD_MINS = 60;
+
+    private static final String WORK_TAG_DATABASE_RETENTION = "com.hmdm.launcher.WORK_TAG_DATABASE_RETENTION";
+
+    public static void schedule(Context context) {
+        Log.d(Const.LOG_TAG, "Database retention worker runs each " + FIRE_PERIOD_MINS + " mins");
+        PeriodicWorkRequest request =
+                new PeriodicWorkRequest.Builder(DatabaseRetentionWorker.class, FIRE_PERIOD_MINS, TimeUnit.MINUTES)
+                        .addTag(Const.WORK_TAG_COMMON)
+                        .build();
+        // KEEP: do not postpone the next run each time the launcher starts
+        WorkManager.getInstance(context.getApplicationContext()).enqueueUniquePeriodicWork(WORK_TAG_DATABASE_RETENTION,
+                ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    private Context context;
+
+    public DatabaseRetentionWorker(
+            @NonNull final Context context,
+            @NonNull WorkerParameters params) {
+        super(context, params);
+        this.context = context;
+    }
+
+    @Override
+    // This is running in a background thread by WorkManager
+    public Result doWork() {
+        try {
+            DatabaseHelper helper = DatabaseHelper.instance(context);
+            int removed = DatabaseRetention.enforce(helper);
+            if (!DatabaseRetention.isIncrementalVacuumEnabled(helper.getReadableDatabase())) {
+                // One-time conversion of an old database, done after the rows are removed
+                helper.write(DatabaseRetention::enableIncrementalVacuum);
+            } else {
+                helper.write(DatabaseRetention::incrementalVacuum);
+            }
+            SQLiteDatabase db = helper.getReadableDatabase();
+            Log.d(Const.LOG_TAG, "Database retention: removed " + removed + " rows, rows per table: " +
+                    DatabaseRetention.getTableSizes(db) + ", used size: " + DatabaseRetention.getUsedSize(db));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Result.failure();
+        }
+        return Result.success();
+    }
+}
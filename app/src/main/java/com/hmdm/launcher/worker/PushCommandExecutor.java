@@ -0,0 +1,282 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.worker;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.PushMessage;
+import com.hmdm.launcher.util.RemoteLogger;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes push commands off the main thread. Commands of the same message type run
+ * one by one in the order of arrival (a lane per type), different types run in parallel
+ * on a small thread pool. A command running longer than its timeout is interrupted
+ * and the next command of its type is started. If the command ignores the interrupt,
+ * its thread is replaced by an extra one until the command returns, so stuck commands
+ * don't take over the pool. Commands which deal with the UI are declared as main thread
+ * commands and are posted to the main looper instead.
+ *
+ * The queues are bounded: a push arriving to a full lane is dropped and logged, and a lane
+ * which can't be submitted to a saturated pool waits until some command completes.
+ */
+public class PushCommandExecutor {
+
+    public interface Action {
+        void run(Context context, PushMessage message);
+    }
+
+    public static class Command {
+        private final boolean mainThread;
+        private final long timeoutMs;
+        private final Action action;
+
+        public Command(boolean mainThread, long timeoutMs, Action action) {
+            this.mainThread = mainThread;
+            this.timeoutMs = timeoutMs;
+            this.action = action;
+        }
+    }
+
+    private static final int POOL_SIZE = 3;
+    private static final long IDLE_TIMEOUT_SEC = 30;
+    // Commands waiting for a thread; there is at most one per lane
+    private static final int POOL_QUEUE_CAPACITY = 16;
+    // Commands waiting in a lane
+    private static final int LANE_CAPACITY = 20;
+    // Max threads added in place of the threads held by timed out commands
+    private static final int MAX_STUCK_THREADS = POOL_SIZE;
+
+    private static PushCommandExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Lane> lanes = new HashMap<>();
+    // Lanes whose next command was rejected by the saturated pool
+    private final Set<String> waitingLanes = new LinkedHashSet<>();
+    private int stuckThreads;
+
+    private static class Task {
+        final Context context;
+        final PushMessage message;
+        final Command command;
+        Future<?> future;
+        Runnable timeoutRunnable;
+        // Set while the command is running on a pool thread
+        volatile boolean running;
+        // Set if the command ignored the interrupt after the timeout
+        boolean stuck;
+
+        Task(Context context, PushMessage message, Command command) {
+            this.context = context;
+            this.message = message;
+            this.command = command;
+        }
+    }
+
+    private static class Lane {
+        final ArrayDeque<Task> queue = new ArrayDeque<>();
+        Task active;
+    }
+
+    public static synchronized PushCommandExecutor getInstance() {
+        if (instance == null) {
+            instance = new PushCommandExecutor();
+        }
+        return instance;
+    }
+
+    private PushCommandExecutor() {
+        // Rejected commands stay in their lanes (see startNext())
+        executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                IDLE_TIMEOUT_SEC, TimeUnit.SECONDS, new ArrayBlockingQueue<>(POOL_QUEUE_CAPACITY),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void execute(Context context, PushMessage message, Command command) {
+        final Context appContext = context.getApplicationContext();
+        if (command.mainThread) {
+            mainHandler.post(() -> {
+                try {
+                    command.action.run(appContext, message);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            return;
+        }
+
+        synchronized (this) {
+            Lane lane = lanes.get(message.getMessageType());
+            if (lane == null) {
+                lane = new Lane();
+                lanes.put(message.getMessageType(), lane);
+            }
+            if (lane.queue.size() >= LANE_CAPACITY) {
+                RemoteLogger.log(appContext, Const.LOG_WARN, "Push command " + message.getMessageType() +
+                        " dropped: " + LANE_CAPACITY + " commands of this type are waiting");
+                return;
+            }
+            lane.queue.add(new Task(appContext, message, command));
+            if (lane.active == null && !waitingLanes.contains(message.getMessageType())) {
+                startNext(message.getMessageType(), lane);
+            }
+        }
+    }
+
+    // Removes the queued commands of this type and interrupts the running one
+    public synchronized void cancel(String messageType) {
+        waitingLanes.remove(messageType);
+        Lane lane = lanes.remove(messageType);
+        if (lane == null) {
+            return;
+        }
+        lane.queue.clear();
+        if (lane.active != null) {
+            stop(lane.active);
+            lane.active = null;
+        }
+    }
+
+    public synchronized void cancelAll() {
+        for (String messageType : lanes.keySet().toArray(new String[0])) {
+            cancel(messageType);
+        }
+    }
+
+    // Must be called while holding the lock
+    private void startNext(final String messageType, final Lane lane) {
+        final Task task = lane.queue.poll();
+        lane.active = task;
+        if (task == null) {
+            lanes.remove(messageType);
+            return;
+        }
+        try {
+            task.future = executor.submit(() -> {
+                task.running = true;
+                try {
+                    task.command.action.run(task.context, task.message);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    task.running = false;
+                    onComplete(messageType, lane, task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The pool is saturated: the command is started when some other command completes
+            if (waitingLanes.isEmpty()) {
+                RemoteLogger.log(task.context, Const.LOG_WARN, "Push command executor saturated, " +
+                        messageType + " is waiting");
+            }
+            lane.queue.addFirst(task);
+            lane.active = null;
+            waitingLanes.add(messageType);
+            return;
+        }
+        if (task.command.timeoutMs > 0) {
+            task.timeoutRunnable = () -> onTimeout(messageType, lane, task);
+            mainHandler.postDelayed(task.timeoutRunnable, task.command.timeoutMs);
+        }
+    }
+
+    private synchronized void onComplete(String messageType, Lane lane, Task task) {
+        if (task.timeoutRunnable != null) {
+            mainHandler.removeCallbacks(task.timeoutRunnable);
+        }
+        if (task.stuck) {
+            setStuckThreads(stuckThreads - 1);
+        }
+        // A command interrupted by timeout or cancelled may complete after the next one is started
+        if (lane.active == task) {
+            startNext(messageType, lane);
+        }
+        startWaitingLanes();
+    }
+
+    // Must be called while holding the lock
+    private void startWaitingLanes() {
+        // A lane rejected again is added back to the set
+        for (String messageType : waitingLanes.toArray(new String[0])) {
+            if (executor.getQueue().remainingCapacity() == 0) {
+                return;
+            }
+            waitingLanes.remove(messageType);
+            Lane lane = lanes.get(messageType);
+            if (lane != null && lane.active == null) {
+                startNext(messageType, lane);
+            }
+        }
+    }
+
+    // The pool size is increased by the number of threads held by timed out commands
+    // Must be called while holding the lock
+    private void setStuckThreads(int count) {
+        if (count > stuckThreads) {
+            executor.setMaximumPoolSize(POOL_SIZE + count);
+            executor.setCorePoolSize(POOL_SIZE + count);
+        } else {
+            executor.setCorePoolSize(POOL_SIZE + count);
+            executor.setMaximumPoolSize(POOL_SIZE + count);
+        }
+        stuckThreads = count;
+    }
+
+    private synchronized void onTimeout(String messageType, Lane lane, Task task) {
+        if (lane.active != task) {
+            return;
+        }
+        RemoteLogger.log(task.context, Const.LOG_WARN, "Push command " + messageType +
+                " timed out after " + task.command.timeoutMs + " ms, interrupting");
+        stop(task);
+        if (task.running && !task.stuck && stuckThreads < MAX_STUCK_THREADS) {
+            // The thread is released when the command returns, see onComplete()
+            task.stuck = true;
+            setStuckThreads(stuckThreads + 1);
+        }
+        startNext(messageType, lane);
+    }
+
+    private void stop(Task task) {
+        Log.d(Const.LOG_TAG, "Stopping push command " + task.message.getMessageType());
+        if (task.timeoutRunnable != null) {
+            mainHandler.removeCallbacks(task.timeoutRunnable);
+        }
+        if (task.future != null) {
+            task.future.cancel(true);
+        }
+    }
+}
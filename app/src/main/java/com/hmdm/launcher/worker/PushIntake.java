@@ -0,0 +1,188 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.worker;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.hmdm.launcher.BuildConfig;
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.helper.SettingsHelper;
+import com.hmdm.launcher.json.PushMessage;
+import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.util.LoadSpreader;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Entry point of push messages from all transports (MQTT, long polling, polling worker).
+ * Messages with an id are delivered once even if they come by several transports.
+ * Repeated messages of idempotent types (same type and payload) are coalesced: the first one
+ * is processed at once, the ones arriving within PUSH_COALESCE_WINDOW_MS after it are collapsed
+ * into a single message processed at the end of the window. At most one config update is running,
+ * and at most one more is queued behind it. Config updates are delayed by the device's
+ * offset within the server window, see LoadSpreader.
+ */
+public class PushIntake {
+    // Types which have the same effect if repeated
+    private static final Set<String> COALESCED_TYPES = new HashSet<>(Arrays.asList(
+            PushMessage.TYPE_CONFIG_UPDATED,
+            PushMessage.TYPE_CLEAR_DOWNLOADS,
+            PushMessage.TYPE_GRANT_PERMISSIONS));
+
+    // Ids of the recently received messages
+    private static final int MAX_RECENT_IDS = 200;
+
+    // If the update flow stops without notifying (e.g. waits for the user), the next update is allowed after this time
+    private static final long CONFIG_UPDATE_MAX_MS = 10 * 60 * 1000L;
+
+    private static PushIntake instance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Long> recentIds = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_RECENT_IDS;
+        }
+    };
+    private final Map<String, Long> lastProcessed = new HashMap<>();
+    private final Map<String, PushMessage> coalesced = new HashMap<>();
+
+    private boolean configUpdateRunning;
+    private PushMessage queuedConfigUpdate;
+    private Context queuedContext;
+    private final Runnable configUpdateWatchdog = () -> {
+        Log.w(Const.LOG_TAG, "Config update not completed in " + CONFIG_UPDATE_MAX_MS + " ms, allowing the next one");
+        onConfigUpdateFinished();
+    };
+
+    private long receivedCount;
+    private long duplicateCount;
+    private long coalescedCount;
+
+    public static synchronized PushIntake getInstance() {
+        if (instance == null) {
+            instance = new PushIntake();
+        }
+        return instance;
+    }
+
+    public void submit(Context context, List<PushMessage> messages) {
+        for (PushMessage message : messages) {
+            submit(context, message);
+        }
+    }
+
+    public synchronized void submit(Context context, PushMessage message) {
+        receivedCount++;
+        String id = message.getId();
+        if (id != null) {
+            if (recentIds.containsKey(id)) {
+                duplicateCount++;
+                Log.d(Const.LOG_TAG, "Duplicate push message " + id + ", type " + message.getMessageType() + ", skipping");
+                return;
+            }
+            recentIds.put(id, System.currentTimeMillis());
+        }
+
+        if (BuildConfig.PUSH_COALESCE_WINDOW_MS > 0 && COALESCED_TYPES.contains(message.getMessageType())) {
+            final String key = getCoalescingKey(message);
+            long now = System.currentTimeMillis();
+            Long last = lastProcessed.get(key);
+            if (last != null && now - last < BuildConfig.PUSH_COALESCE_WINDOW_MS) {
+                coalescedCount++;
+                final Context appContext = context.getApplicationContext();
+                if (coalesced.put(key, message) == null) {
+                    handler.postDelayed(() -> flush(appContext, key), last + BuildConfig.PUSH_COALESCE_WINDOW_MS - now);
+                }
+                return;
+            }
+            lastProcessed.put(key, now);
+        }
+        dispatch(context, message);
+    }
+
+    // Must be called by the config update flow started by a push message (and only by it) when it's completed or failed
+    public synchronized void onConfigUpdateFinished() {
+        if (!configUpdateRunning) {
+            return;
+        }
+        configUpdateRunning = false;
+        handler.removeCallbacks(configUpdateWatchdog);
+        if (queuedConfigUpdate != null) {
+            PushMessage message = queuedConfigUpdate;
+            queuedConfigUpdate = null;
+            Log.d(Const.LOG_TAG, "Starting queued config update");
+            dispatch(queuedContext, message);
+        }
+    }
+
+    public synchronized String getStats() {
+        return "received: " + receivedCount + ", duplicates: " + duplicateCount + ", coalesced: " + coalescedCount;
+    }
+
+    private synchronized void flush(Context context, String key) {
+        PushMessage message = coalesced.remove(key);
+        if (message != null) {
+            lastProcessed.put(key, System.currentTimeMillis());
+            dispatch(context, message);
+        }
+    }
+
+    // Messages are repeated only if the payload is the same, e.g. grantPermissions for the same package
+    private static String getCoalescingKey(PushMessage message) {
+        return message.getPayload() != null ? message.getMessageType() + "\n" + message.getPayload() : message.getMessageType();
+    }
+
+    // Must be called while holding the lock
+    private void dispatch(Context context, final PushMessage message) {
+        if (PushMessage.TYPE_CONFIG_UPDATED.equals(message.getMessageType())) {
+            if (configUpdateRunning) {
+                // Any number of updates requested while running is done by one update
+                Log.d(Const.LOG_TAG, "Config update is running, queueing the next one");
+                queuedConfigUpdate = message;
+                queuedContext = context.getApplicationContext();
+                return;
+            }
+            configUpdateRunning = true;
+            ServerConfig config = SettingsHelper.getInstance(context).getConfig();
+            long delay = config != null ?
+                    LoadSpreader.getDelay(context, LoadSpreader.STAGE_CONFIG, config.getPushReactionWindow()) : 0;
+            handler.postDelayed(configUpdateWatchdog, delay + CONFIG_UPDATE_MAX_MS);
+            if (delay > 0) {
+                // Devices receiving the same push message don't request the server at once
+                Log.d(Const.LOG_TAG, "Config update is delayed by " + delay + " ms");
+                final Context appContext = context.getApplicationContext();
+                handler.postDelayed(() -> PushNotificationProcessor.process(message, appContext), delay);
+                return;
+            }
+        }
+        PushNotificationProcessor.process(message, context);
+    }
+}
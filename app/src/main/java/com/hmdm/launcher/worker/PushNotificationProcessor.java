@@ -21,9 +21,7 @@ package com.hmdm.launcher.worker;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Environment;
 import android.util.Log;
 
@@ -39,6 +37,7 @@ import com.hmdm.launcher.json.Application;
 import com.hmdm.launcher.json.Download;
 import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.ServerConfig;
+import com.hmdm.launcher.util.ArtifactCache;
 import com.hmdm.launcher.util.InstallUtils;
 import com.hmdm.launcher.util.RemoteLogger;
 import com.hmdm.launcher.util.SystemUtils;
@@ -48,80 +47,92 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class PushNotificationProcessor {
+    private static final long DEFAULT_TIMEOUT_MS = 30000;
+    private static final long COMMAND_TIMEOUT_MS = 2 * 60 * 1000L;
+    private static final long FILE_OPERATION_TIMEOUT_MS = 5 * 60 * 1000L;
+
+    // Message handlers. UI related handlers are declared to run on the main thread,
+    // the rest run in the background, one by one per message type (see PushCommandExecutor)
+    private static final Map<String, PushCommandExecutor.Command> commands = new HashMap<>();
+
+    static {
+        // Update local configuration
+        // The configUpdated should be broadcasted after the configuration update is completed
+        register(PushMessage.TYPE_CONFIG_UPDATED, true, 0,
+                (context, message) -> ConfigUpdater.notifyConfigUpdate(context, true));
+        // Run application
+        // Do not broadcast this message to other apps
+        register(PushMessage.TYPE_RUN_APP, true, 0,
+                (context, message) -> runApplication(context, message.getPayloadJSON()));
+        // Send broadcast
+        register(PushMessage.TYPE_BROADCAST, false, DEFAULT_TIMEOUT_MS,
+                (context, message) -> sendBroadcast(context, message.getPayloadJSON()));
+        // Uninstall application
+        register(PushMessage.TYPE_UNINSTALL_APP, false, COMMAND_TIMEOUT_MS,
+                (context, message) -> uninstallApplication(context, message.getPayloadJSON()));
+        // Delete file
+        register(PushMessage.TYPE_DELETE_FILE, false, DEFAULT_TIMEOUT_MS,
+                (context, message) -> deleteFile(context, message.getPayloadJSON()));
+        // Delete directory recursively
+        register(PushMessage.TYPE_DELETE_DIR, false, FILE_OPERATION_TIMEOUT_MS,
+                (context, message) -> deleteDir(context, message.getPayloadJSON()));
+        // Purge directory (delete all files recursively)
+        register(PushMessage.TYPE_PURGE_DIR, false, FILE_OPERATION_TIMEOUT_MS,
+                (context, message) -> purgeDir(context, message.getPayloadJSON()));
+        // Turn on permissive mode
+        register(PushMessage.TYPE_PERMISSIVE_MODE, true, 0,
+                (context, message) -> LocalBroadcastManager.getInstance(context).
+                        sendBroadcast(new Intent(Const.ACTION_PERMISSIVE_MODE)));
+        // Run a command-line script
+        register(PushMessage.TYPE_RUN_COMMAND, false, COMMAND_TIMEOUT_MS,
+                (context, message) -> runCommand(context, message.getPayloadJSON()));
+        // Reboot a device
+        register(PushMessage.TYPE_REBOOT, false, DEFAULT_TIMEOUT_MS,
+                (context, message) -> reboot(context));
+        // Temporarily exit kiosk mode
+        register(PushMessage.TYPE_EXIT_KIOSK, true, 0,
+                (context, message) -> LocalBroadcastManager.getInstance(context).
+                        sendBroadcast(new Intent(Const.ACTION_EXIT_KIOSK)));
+        register(PushMessage.TYPE_ADMIN_PANEL, true, 0,
+                (context, message) -> LocalBroadcastManager.getInstance(context).
+                        sendBroadcast(new Intent(Const.ACTION_ADMIN_PANEL)));
+        // Clear download history
+        register(PushMessage.TYPE_CLEAR_DOWNLOADS, false, FILE_OPERATION_TIMEOUT_MS,
+                (context, message) -> clearDownloads(context));
+        // Run a system intent (like settings or ACTION_VIEW)
+        register(PushMessage.TYPE_INTENT, true, 0,
+                (context, message) -> callIntent(context, message.getPayloadJSON()));
+        // Grant permissions to apps
+        register(PushMessage.TYPE_GRANT_PERMISSIONS, false, COMMAND_TIMEOUT_MS,
+                (context, message) -> grantPermissions(context, message.getPayloadJSON()));
+    }
+
+    // Other messages are broadcasted to all plugins
+    private static final PushCommandExecutor.Command PLUGIN_BROADCAST = new PushCommandExecutor.Command(
+            false, DEFAULT_TIMEOUT_MS, PushNotificationProcessor::broadcastToPlugins);
+
+    private static void register(String messageType, boolean mainThread, long timeoutMs, PushCommandExecutor.Action action) {
+        commands.put(messageType, new PushCommandExecutor.Command(mainThread, timeoutMs, action));
+    }
+
+    // Can be called from any thread, the message is handled asynchronously
     public static void process(PushMessage message, Context context) {
         RemoteLogger.log(context, Const.LOG_INFO, "Got Push Message, type " + message.getMessageType());
-        if (message.getMessageType().equals(PushMessage.TYPE_CONFIG_UPDATED)) {
-            // Update local configuration
-            ConfigUpdater.notifyConfigUpdate(context);
-            // The configUpdated should be broadcasted after the configuration update is completed
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_RUN_APP)) {
-            // Run application
-            runApplication(context, message.getPayloadJSON());
-            // Do not broadcast this message to other apps
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_BROADCAST)) {
-            // Send broadcast
-            sendBroadcast(context, message.getPayloadJSON());
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_UNINSTALL_APP)) {
-            // Uninstall application
-            AsyncTask.execute(() -> uninstallApplication(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_DELETE_FILE)) {
-            // Delete file
-            AsyncTask.execute(() -> deleteFile(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_DELETE_DIR)) {
-            // Delete directory recursively
-            AsyncTask.execute(() -> deleteDir(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_PURGE_DIR)) {
-            // Purge directory (delete all files recursively)
-            AsyncTask.execute(() -> purgeDir(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_PERMISSIVE_MODE)) {
-            // Turn on permissive mode
-            LocalBroadcastManager.getInstance(context).
-                    sendBroadcast(new Intent(Const.ACTION_PERMISSIVE_MODE));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_RUN_COMMAND)) {
-            // Run a command-line script
-            AsyncTask.execute(() -> runCommand(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_REBOOT)) {
-            // Reboot a device
-            AsyncTask.execute(() -> reboot(context));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_EXIT_KIOSK)) {
-            // Temporarily exit kiosk mode
-            LocalBroadcastManager.getInstance(context).
-                sendBroadcast(new Intent(Const.ACTION_EXIT_KIOSK));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_ADMIN_PANEL)) {
-            LocalBroadcastManager.getInstance(context).
-                    sendBroadcast(new Intent(Const.ACTION_ADMIN_PANEL));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_CLEAR_DOWNLOADS)) {
-            // Clear download history
-            AsyncTask.execute(() -> clearDownloads(context));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_INTENT)) {
-            // Run a system intent (like settings or ACTION_VIEW)
-            AsyncTask.execute(() -> callIntent(context, message.getPayloadJSON()));
-            return;
-        } else if (message.getMessageType().equals(PushMessage.TYPE_GRANT_PERMISSIONS)) {
-            // Grant permissions to apps
-            AsyncTask.execute(() -> grantPermissions(context, message.getPayloadJSON()));
-            return;
+        PushCommandExecutor.Command command = commands.get(message.getMessageType());
+        if (command == null) {
+            command = PLUGIN_BROADCAST;
         }
+        PushCommandExecutor.getInstance().execute(context, message, command);
+    }
 
-        // Send broadcast to all plugins
+    private static void broadcastToPlugins(Context context, PushMessage message) {
         Intent intent = new Intent(Const.INTENT_PUSH_NOTIFICATION_PREFIX + message.getMessageType());
         JSONObject jsonObject = message.getPayloadJSON();
         if (jsonObject != null) {
@@ -269,6 +280,10 @@ public class PushNotificationProcessor {
         if (fileOrDirectory.isDirectory()) {
             File[] childFiles = fileOrDirectory.listFiles();
             for (File child : childFiles) {
+                // Stop if the command is interrupted by timeout
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
                 deleteRecursive(child);
             }
         }
@@ -308,6 +323,10 @@ public class PushNotificationProcessor {
             String recursive = payload.optString("recursive");
             File[] childFiles = file.listFiles();
             for (File child : childFiles) {
+                if (Thread.currentThread().isInterrupted()) {
+                    RemoteLogger.log(context, Const.LOG_WARN, "Directory purge interrupted: " + path);
+                    return;
+                }
                 if (recursive == null || !recursive.equals("1")) {
                     if (!child.isDirectory()) {
                         child.delete();
@@ -362,8 +381,7 @@ public class PushNotificationProcessor {
     private static void clearDownloads(Context context) {
         RemoteLogger.log(context, Const.LOG_WARN, "Clear download history by a Push message");
         DatabaseHelper dbHelper = DatabaseHelper.instance(context);
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        List<Download> downloads = DownloadTable.selectAll(db);
+        List<Download> downloads = DownloadTable.selectAll(dbHelper.getReadableDatabase());
         for (Download d: downloads) {
             File file = new File(d.getPath());
             try {
@@ -372,7 +390,10 @@ public class PushNotificationProcessor {
                 e.printStackTrace();
             }
         }
-        DownloadTable.deleteAll(db);
+        if (!dbHelper.write(DownloadTable::deleteAll)) {
+            RemoteLogger.log(context, Const.LOG_WARN, "Failed to clear the download history");
+        }
+        ArtifactCache.clear(context);
     }
 
     private static void callIntent(Context context, JSONObject payload) {
@@ -33,7 +33,6 @@ import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.ConfigUpdater;
 import com.hmdm.launcher.helper.CryptoHelper;
 import com.hmdm.launcher.helper.SettingsHelper;
-import com.hmdm.launcher.json.PushMessage;
 import com.hmdm.launcher.json.PushResponse;
 import com.hmdm.launcher.json.ServerConfig;
 import com.hmdm.launcher.server.ServerService;
@@ -44,8 +43,6 @@ import com.hmdm.launcher.util.RemoteLogger;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import retrofit2.Response;
@@ -58,6 +55,9 @@ public class PushNotificationWorker extends Worker {
     // Interval to update configuration to avoid losing device due to push failure
     public static final long CONFIG_UPDATE_INTERVAL = 3600000l;
 
+    // Delay between MQTT disconnection and connection after a ping death
+    private static final long RECONNECT_DELAY_MS = 5000;
+
     private static final String WORK_TAG_PERIODIC = "com.hmdm.launcher.WORK_TAG_PUSH_PERIODIC";
 
     public static void schedule(Context context) {
@@ -142,17 +142,8 @@ public class PushNotificationWorker extends Worker {
 
             if ( response.isSuccessful() ) {
                 if ( Const.STATUS_OK.equals( response.body().getStatus() ) && response.body().getData() != null ) {
-                    Map<String, PushMessage> filteredMessages = new HashMap<String, PushMessage>();
-                    for (PushMessage message : response.body().getData()) {
-                        // Filter out multiple configuration update requests
-                        if (!message.getMessageType().equals(PushMessage.TYPE_CONFIG_UPDATED) ||
-                                !filteredMessages.containsKey(PushMessage.TYPE_CONFIG_UPDATED)) {
-                            filteredMessages.put(message.getMessageType(), message);
-                        }
-                    }
-                    for (Map.Entry<String, PushMessage> entry : filteredMessages.entrySet()) {
-                        PushNotificationProcessor.process(entry.getValue(), context);
-                    }
+                    // Duplicate and repeated messages are filtered out by the intake
+                    PushIntake.getInstance().submit(context, response.body().getData());
                     return Result.success();
                 } else {
                     return Result.failure();
@@ -208,10 +199,10 @@ public class PushNotificationWorker extends Worker {
         }
         try {
             PushNotificationMqttWrapper.getInstance().disconnect(context);
-            Thread.sleep(5000);
             URL url = new URL(settingsHelper.getBaseUrl());
-            PushNotificationMqttWrapper.getInstance().connect(context, url.getHost(), BuildConfig.MQTT_PORT,
-                    pushOptions, keepaliveTime, settingsHelper.getDeviceId(), null, null);
+            // Disconnection is asynchronous, so connect a bit later without blocking the worker thread
+            PushNotificationMqttWrapper.getInstance().scheduleReconnect(context, url.getHost(), BuildConfig.MQTT_PORT,
+                    pushOptions, keepaliveTime, settingsHelper.getDeviceId(), RECONNECT_DELAY_MS);
         } catch (Exception e) {
             RemoteLogger.log(context, Const.LOG_DEBUG, "Reconnection failure: " + e.getMessage());
             e.printStackTrace();
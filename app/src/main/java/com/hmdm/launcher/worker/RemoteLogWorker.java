@@ -20,6 +20,7 @@
 package com.hmdm.launcher.worker;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -33,13 +34,12 @@ import com.hmdm.launcher.Const;
 import com.hmdm.launcher.db.DatabaseHelper;
 import com.hmdm.launcher.db.LogTable;
 import com.hmdm.launcher.helper.SettingsHelper;
-import com.hmdm.launcher.json.RemoteLogItem;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 
-import java.util.List;
 import java.util.concurrent.TimeUnit;
 
+import okhttp3.RequestBody;
 import okhttp3.ResponseBody;
 import retrofit2.Response;
 
@@ -94,28 +94,38 @@ public class RemoteLogWorker extends Worker {
     @Override
     // This is running in a background thread by WorkManager
     public Result doWork() {
+        DatabaseHelper dbHelper = DatabaseHelper.instance(context);
+        // Max _id of uploaded items in this run. It's not persisted: uploaded rows are deleted
+        // after each batch, so the next run starts from the first row left in the table
+        long watermark = 0;
         try {
-            DatabaseHelper dbHelper = DatabaseHelper.instance(context);
-
             while (true) {
-                List<RemoteLogItem> unsentItems = LogTable.select(dbHelper.getReadableDatabase(), MAX_UPLOADED_MESSAGES);
-                Log.i(Const.LOG_TAG, "Remote logger: unsent items: " + unsentItems.size());
-                if (unsentItems.size() == 0) {
+                SQLiteDatabase db = dbHelper.getReadableDatabase();
+                // Items are streamed from the database, so the batch is defined by its _id range
+                long batchEnd = LogTable.selectBatchEnd(db, watermark, MAX_UPLOADED_MESSAGES);
+                Log.i(Const.LOG_TAG, "Remote logger: unsent items: " + (batchEnd > 0 ? "up to " + batchEnd : "none"));
+                if (batchEnd == 0) {
                     uploadScheduled = false;
                     return Result.success();
                 }
-                if (!upload(unsentItems)) {
+                if (!upload(LogTable.createUploadBody(db, watermark, batchEnd))) {
                     // There was an error: retry!
                     // XXX: we do not use Result.retry() here because new logs may come
                     Log.i(Const.LOG_TAG, "Failed to upload logs: retry in " + FIRE_PERIOD_RETRY_MINS + " mins");
                     uploadScheduled = false;
                     scheduleUpload(context, FIRE_PERIOD_RETRY_MINS);
                     return Result.failure();
-                } else {
-                    Log.i(Const.LOG_TAG, "Logs are uploaded");
-                    // Mark items as sent and query next items
-                    LogTable.delete(DatabaseHelper.instance(context).getWritableDatabase(), unsentItems);
                 }
+                Log.i(Const.LOG_TAG, "Logs are uploaded");
+                // Uploaded items are deleted by a single statement after each batch,
+                // so they are not sent again if the worker is stopped
+                if (!dbHelper.write(d -> LogTable.deleteUpTo(d, batchEnd))) {
+                    Log.w(Const.LOG_TAG, "Failed to remove uploaded logs up to " + batchEnd + ", retry in " + FIRE_PERIOD_MINS + " mins");
+                    uploadScheduled = false;
+                    scheduleUpload(context, FIRE_PERIOD_MINS);
+                    return Result.failure();
+                }
+                watermark = batchEnd;
             }
         } catch (Exception e) {
             // Oops... WTF? We need to retry!
@@ -127,13 +137,13 @@ public class RemoteLogWorker extends Worker {
     }
 
     // Returns true on success and false on failure
-    public boolean upload(List<RemoteLogItem> logItems) {
+    public boolean upload(RequestBody logItems) {
         ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
         ServerService secondaryServerService = ServerServiceKeeper.getSecondaryServerServiceInstance(context);
         Response<ResponseBody> response = null;
 
         try {
-            response = serverService.sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
+            response = serverService.sendLogsRaw(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
             return response.isSuccessful();
         } catch (Exception e) {
             e.printStackTrace();
@@ -142,7 +152,7 @@ public class RemoteLogWorker extends Worker {
         try {
             if (response == null) {
                 response = secondaryServerService.
-                        sendLogs(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
+                        sendLogsRaw(settingsHelper.getServerProject(), settingsHelper.getDeviceId(), logItems).execute();
                 return response.isSuccessful();
             }
         } catch ( Exception e ) {
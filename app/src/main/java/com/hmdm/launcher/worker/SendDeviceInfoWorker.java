@@ -12,6 +12,7 @@ import androidx.work.WorkerParameters;
 import com.hmdm.launcher.Const;
 import com.hmdm.launcher.helper.SettingsHelper;
 import com.hmdm.launcher.json.DeviceInfo;
+import com.hmdm.launcher.server.RequestCompressionInterceptor;
 import com.hmdm.launcher.server.ServerService;
 import com.hmdm.launcher.server.ServerServiceKeeper;
 import com.hmdm.launcher.util.DeviceInfoProvider;
@@ -45,6 +46,8 @@ public class SendDeviceInfoWorker extends Worker {
             return Result.failure();
         }
 
+        RequestCompressionInterceptor.reportStats(context);
+
         DeviceInfo deviceInfo = DeviceInfoProvider.getDeviceInfo(context, true, true);
 
         ServerService serverService = ServerServiceKeeper.getServerServiceInstance(context);
@@ -19,17 +19,35 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of the {@link MessageStore} interface, using a SQLite database
- * 
+ * <p>
+ * The number of stored messages per client is kept in memory, so storing and
+ * discarding a message doesn't query the table. Discards of the messages stored
+ * by this instance are queued and applied in one transaction (when the queue is
+ * full, with the next stored message, before the messages are read, or after
+ * DISCARD_FLUSH_DELAY_MS at the latest, so a killed service doesn't redeliver many
+ * acknowledged messages). In the in-memory-first mode, only QoS 1 and 2
+ * messages are written to the database; QoS 0 messages may be lost anyway,
+ * so they are kept in memory until acknowledged.
  */
 class DatabaseMessageStore implements MessageStore {
 
@@ -43,6 +61,21 @@ class DatabaseMessageStore implements MessageStore {
 	// the name of the table in the database to which we will save messages
 	private static final String ARRIVED_MESSAGE_TABLE_NAME = "MqttArrivedMessageTable";
 
+	private static final String CREATE_CLIENT_HANDLE_INDEX = "CREATE INDEX IF NOT EXISTS "
+			+ ARRIVED_MESSAGE_TABLE_NAME + "_" + MqttServiceConstants.CLIENT_HANDLE
+			+ " ON " + ARRIVED_MESSAGE_TABLE_NAME + "("
+			+ MqttServiceConstants.CLIENT_HANDLE + ", " + MTIMESTAMP + ")";
+
+	private static final String DELETE_ARRIVED_MESSAGE = "DELETE FROM "
+			+ ARRIVED_MESSAGE_TABLE_NAME + " WHERE "
+			+ MqttServiceConstants.MESSAGE_ID + "=? AND "
+			+ MqttServiceConstants.CLIENT_HANDLE + "=?";
+
+	// Max amount of discarded messages waiting to be deleted from the database
+	private static final int DISCARD_BATCH_SIZE = 20;
+	// Max time a discarded message waits to be deleted from the database
+	private static final long DISCARD_FLUSH_DELAY_MS = 1000;
+
 	// the database
 	private SQLiteDatabase db = null;
 
@@ -52,6 +85,25 @@ class DatabaseMessageStore implements MessageStore {
 	// a place to send trace data
 	private MqttTraceHandler traceHandler = null;
 
+	// persist only QoS 1 and 2 messages
+	private final boolean inMemoryFirst;
+
+	// number of stored messages per client, loaded from the database once
+	private final Map<String, Integer> arrivedCounts = new HashMap<String, Integer>();
+
+	// QoS 0 messages in the in-memory-first mode, by message id
+	private final Map<String, DbStoredData> memoryMessages = new LinkedHashMap<String, DbStoredData>();
+
+	// discarded messages not yet deleted from the database: {messageId, clientHandle}
+	private final List<String[]> pendingDiscards = new ArrayList<String[]>();
+
+	// messages written to the database by this instance and not discarded yet: messageId -> clientHandle
+	private final Map<String, String> storedIds = new HashMap<String, String>();
+
+	// applies the pending discards after a delay
+	private final ScheduledExecutorService discardExecutor = Executors.newSingleThreadScheduledExecutor();
+	private boolean discardFlushScheduled;
+
 	/**
 	 * We need a SQLiteOpenHelper to handle database creation and updating
 	 * 
@@ -63,8 +115,8 @@ class DatabaseMessageStore implements MessageStore {
 		private static final String DATABASE_NAME = "mqttAndroidService.db";
 
 		// database version, used to recognise when we need to upgrade
-		// (delete and recreate)
-		private static final int DATABASE_VERSION = 1;
+		// Version 2: index by client handle
+		private static final int DATABASE_VERSION = 2;
 
 		// a place to send trace data
 		private MqttTraceHandler traceHandler = null;
@@ -101,6 +153,7 @@ class DatabaseMessageStore implements MessageStore {
 					+ createArrivedTableStatement + "}");
 			try {
 				database.execSQL(createArrivedTableStatement);
+				database.execSQL(CREATE_CLIENT_HANDLE_INDEX);
 				traceHandler.traceDebug(TAG, "created the table");
 			} catch (SQLException e) {
 				traceHandler.traceException(TAG, "onCreate", e);
@@ -109,12 +162,12 @@ class DatabaseMessageStore implements MessageStore {
 		}
 
 		/**
-		 * To upgrade the database, drop and recreate our table
+		 * To upgrade the database, add the missing indexes; the stored messages are kept
 		 * 
 		 * @param db
 		 *            the database
 		 * @param oldVersion
-		 *            ignored
+		 *            the version of the existing database
 		 * @param newVersion
 		 *            ignored
 		 */
@@ -123,14 +176,30 @@ class DatabaseMessageStore implements MessageStore {
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 			traceHandler.traceDebug(TAG, "onUpgrade");
 			try {
-				db.execSQL("DROP TABLE IF EXISTS " + ARRIVED_MESSAGE_TABLE_NAME);
+				if (oldVersion < 2) {
+					db.execSQL(CREATE_CLIENT_HANDLE_INDEX);
+				}
 			} catch (SQLException e) {
 				traceHandler.traceException(TAG, "onUpgrade", e);
 				throw e;
 			}
-			onCreate(db);
 			traceHandler.traceDebug(TAG, "onUpgrade complete");
 		}
+
+		/**
+		 * Downgrade is not supported, so drop and recreate our table
+		 */
+		@Override
+		public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			traceHandler.traceDebug(TAG, "onDowngrade");
+			try {
+				db.execSQL("DROP TABLE IF EXISTS " + ARRIVED_MESSAGE_TABLE_NAME);
+			} catch (SQLException e) {
+				traceHandler.traceException(TAG, "onDowngrade", e);
+				throw e;
+			}
+			onCreate(db);
+		}
 	}
 
 	/**
@@ -140,9 +209,12 @@ class DatabaseMessageStore implements MessageStore {
 	 *            our parent MqttService
 	 * @param context
 	 *            a context to use for android calls
+	 * @param inMemoryFirst
+	 *            if true, QoS 0 messages are not written to the database
 	 */
-	public DatabaseMessageStore(MqttService service, Context context) {
+	public DatabaseMessageStore(MqttService service, Context context, boolean inMemoryFirst) {
 		this.traceHandler = service;
+		this.inMemoryFirst = inMemoryFirst;
 
 		// Open message database
 		mqttDb = new MQTTDatabaseHelper(traceHandler, context);
@@ -166,7 +238,7 @@ class DatabaseMessageStore implements MessageStore {
 	 * @return an identifier for the message, so that it can be removed when appropriate
 	 */
 	@Override
-	public String storeArrived(String clientHandle, String topic,
+	public synchronized String storeArrived(String clientHandle, String topic,
 			MqttMessage message) {
 		
 		db = mqttDb.getWritableDatabase();
@@ -179,23 +251,39 @@ class DatabaseMessageStore implements MessageStore {
 		boolean retained = message.isRetained();
 		boolean duplicate = message.isDuplicate();
 
-		ContentValues values = new ContentValues();
 		String id = java.util.UUID.randomUUID().toString();
-		values.put(MqttServiceConstants.MESSAGE_ID, id);
-		values.put(MqttServiceConstants.CLIENT_HANDLE, clientHandle);
-		values.put(MqttServiceConstants.DESTINATION_NAME, topic);
-		values.put(MqttServiceConstants.PAYLOAD, payload);
-		values.put(MqttServiceConstants.QOS, qos);
-		values.put(MqttServiceConstants.RETAINED, retained);
-		values.put(MqttServiceConstants.DUPLICATE, duplicate);
-		values.put(MTIMESTAMP, System.currentTimeMillis());
-		try {
-			db.insertOrThrow(ARRIVED_MESSAGE_TABLE_NAME, null, values);
-		} catch (SQLException e) {
-			traceHandler.traceException(TAG, "onUpgrade", e);
-			throw e;
+		int count = getArrivedCount(clientHandle);
+		if (inMemoryFirst && qos == 0) {
+			MqttMessageHack copy = new MqttMessageHack(payload);
+			copy.setQos(qos);
+			copy.setRetained(retained);
+			copy.setDuplicate(duplicate);
+			memoryMessages.put(id, new DbStoredData(id, clientHandle, topic, copy));
+		} else {
+			ContentValues values = new ContentValues();
+			values.put(MqttServiceConstants.MESSAGE_ID, id);
+			values.put(MqttServiceConstants.CLIENT_HANDLE, clientHandle);
+			values.put(MqttServiceConstants.DESTINATION_NAME, topic);
+			values.put(MqttServiceConstants.PAYLOAD, payload);
+			values.put(MqttServiceConstants.QOS, qos);
+			values.put(MqttServiceConstants.RETAINED, retained);
+			values.put(MqttServiceConstants.DUPLICATE, duplicate);
+			values.put(MTIMESTAMP, System.currentTimeMillis());
+			// The queued discards are applied in the same transaction
+			db.beginTransaction();
+			try {
+				deletePendingDiscards();
+				db.insertOrThrow(ARRIVED_MESSAGE_TABLE_NAME, null, values);
+				db.setTransactionSuccessful();
+				storedIds.put(id, clientHandle);
+			} catch (SQLException e) {
+				traceHandler.traceException(TAG, "storeArrived", e);
+				throw e;
+			} finally {
+				db.endTransaction();
+			}
 		}
-		int count = getArrivedRowCount(clientHandle);
+		arrivedCounts.put(clientHandle, ++count);
 		traceHandler
 				.traceDebug(
 						TAG,
@@ -206,69 +294,139 @@ class DatabaseMessageStore implements MessageStore {
 		return id;
 	}
 
-	private int getArrivedRowCount(String clientHandle) {
-        int count = 0;
-        String[] projection = {
-                MqttServiceConstants.MESSAGE_ID,
-        };
-  		String selection =  MqttServiceConstants.CLIENT_HANDLE + "=?";
-        String[] selectionArgs = new String[1];
-        selectionArgs[0] = clientHandle;
-		Cursor c = db.query(
-                ARRIVED_MESSAGE_TABLE_NAME, // Table Name
-                projection, // The columns to return;
-                selection, // Columns for WHERE Clause
-                selectionArgs , // The values for the WHERE Cause
-				null,  //Don't group the rows
-                null,  // Don't filter by row groups
-                null   // The sort order
-        );
-
-		if (c.moveToFirst()) {
-			count = c.getInt(0);
+	// The count is queried only once per client, then it's tracked in memory
+	private int getArrivedCount(String clientHandle) {
+		Integer count = arrivedCounts.get(clientHandle);
+		if (count == null) {
+			count = (int) DatabaseUtils.queryNumEntries(db, ARRIVED_MESSAGE_TABLE_NAME,
+					MqttServiceConstants.CLIENT_HANDLE + "=?", new String[] { clientHandle });
+			arrivedCounts.put(clientHandle, count);
 		}
-		c.close();
 		return count;
 	}
 
+	// Must be called with a transaction started
+	private void deletePendingDiscards() {
+		if (pendingDiscards.isEmpty()) {
+			return;
+		}
+		SQLiteStatement statement = db.compileStatement(DELETE_ARRIVED_MESSAGE);
+		try {
+			for (String[] discard : pendingDiscards) {
+				statement.bindString(1, discard[0]);
+				statement.bindString(2, discard[1]);
+				statement.executeUpdateDelete();
+			}
+		} finally {
+			statement.close();
+		}
+		pendingDiscards.clear();
+	}
+
+	private void flushDiscards() {
+		if (pendingDiscards.isEmpty()) {
+			return;
+		}
+		db = mqttDb.getWritableDatabase();
+		db.beginTransaction();
+		try {
+			int size = pendingDiscards.size();
+			deletePendingDiscards();
+			db.setTransactionSuccessful();
+			traceHandler.traceDebug(TAG, "flushDiscards: deleted " + size + " messages");
+		} catch (SQLException e) {
+			traceHandler.traceException(TAG, "flushDiscards", e);
+			throw e;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	private void scheduleDiscardFlush() {
+		if (discardFlushScheduled) {
+			return;
+		}
+		if (discardExecutor.isShutdown()) {
+			// Closed store
+			flushDiscards();
+			return;
+		}
+		discardFlushScheduled = true;
+		discardExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (DatabaseMessageStore.this) {
+					discardFlushScheduled = false;
+					try {
+						flushDiscards();
+					} catch (SQLException e) {
+						// Traced by flushDiscards(), the discards are applied with the next stored message
+					}
+				}
+			}
+		}, DISCARD_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean isDiscardPending(String id) {
+		for (String[] discard : pendingDiscards) {
+			if (discard[0].equals(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Delete an MQTT message.
+	 * A message stored by this instance is deleted from the database with the next batch
+	 * of discards, other messages (stored before the restart) are deleted at once.
 	 * 
 	 * @param clientHandle
 	 *            identifier for the client which stored the message
 	 * @param id
 	 *            the identifying string returned when the message was stored
 	 * 
-	 * @return true if the message was found and deleted
+	 * @return true if the message was found and deleted (or queued for deletion)
 	 */
 	@Override
-	public boolean discardArrived(String clientHandle, String id) {
+	public synchronized boolean discardArrived(String clientHandle, String id) {
 		
 		db = mqttDb.getWritableDatabase();
 		
 		traceHandler.traceDebug(TAG, "discardArrived{" + clientHandle + "}, {"
 				+ id + "}");
-		int rows;
-        String[] selectionArgs = new String[2];
-        selectionArgs[0] = id;
-        selectionArgs[1] = clientHandle;
 
-		try {
-			rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
-					MqttServiceConstants.MESSAGE_ID + "=? AND "
-							+ MqttServiceConstants.CLIENT_HANDLE + "=?",
-                    selectionArgs);
-		} catch (SQLException e) {
-			traceHandler.traceException(TAG, "discardArrived", e);
-			throw e;
-		}
-		if (rows != 1) {
-			traceHandler.traceError(TAG,
-					"discardArrived - Error deleting message {" + id
-							+ "} from database: Rows affected = " + rows);
-			return false;
+		if (memoryMessages.remove(id) == null) {
+			if (storedIds.remove(id) != null) {
+				pendingDiscards.add(new String[] { id, clientHandle });
+				if (pendingDiscards.size() >= DISCARD_BATCH_SIZE) {
+					flushDiscards();
+				} else {
+					scheduleDiscardFlush();
+				}
+			} else {
+				int rows = 0;
+				if (!isDiscardPending(id)) {
+					try {
+						rows = db.delete(ARRIVED_MESSAGE_TABLE_NAME,
+								MqttServiceConstants.MESSAGE_ID + "=? AND "
+										+ MqttServiceConstants.CLIENT_HANDLE + "=?",
+								new String[] { id, clientHandle });
+					} catch (SQLException e) {
+						traceHandler.traceException(TAG, "discardArrived", e);
+						throw e;
+					}
+				}
+				if (rows != 1) {
+					traceHandler.traceError(TAG,
+							"discardArrived - Error deleting message {" + id
+									+ "} from database: Rows affected = " + rows);
+					return false;
+				}
+			}
 		}
-		int count = getArrivedRowCount(clientHandle);
+		int count = Math.max(0, getArrivedCount(clientHandle) - 1);
+		arrivedCounts.put(clientHandle, count);
 		traceHandler
 				.traceDebug(
 						TAG,
@@ -286,9 +444,17 @@ class DatabaseMessageStore implements MessageStore {
 	 * @return iterator of all the arrived MQTT messages
 	 */
 	@Override
-	public Iterator<StoredMessage> getAllArrivedMessages(
+	public synchronized Iterator<StoredMessage> getAllArrivedMessages(
 			final String clientHandle) {
-		return new Iterator<StoredMessage>() {
+		flushDiscards();
+		// Messages kept in memory are returned after the stored ones
+		final List<StoredMessage> memoryBacklog = new ArrayList<StoredMessage>();
+		for (DbStoredData stored : memoryMessages.values()) {
+			if (clientHandle == null || clientHandle.equals(stored.getClientHandle())) {
+				memoryBacklog.add(stored);
+			}
+		}
+		final Iterator<StoredMessage> dbBacklog = new Iterator<StoredMessage>() {
 			private Cursor c;
 			private boolean hasNext;
             private final String[] selectionArgs = {
@@ -371,6 +537,27 @@ class DatabaseMessageStore implements MessageStore {
       }
 
     };
+		if (memoryBacklog.isEmpty()) {
+			return dbBacklog;
+		}
+		return new Iterator<StoredMessage>() {
+			private final Iterator<StoredMessage> memoryIterator = memoryBacklog.iterator();
+
+			@Override
+			public boolean hasNext() {
+				return dbBacklog.hasNext() || memoryIterator.hasNext();
+			}
+
+			@Override
+			public StoredMessage next() {
+				return dbBacklog.hasNext() ? dbBacklog.next() : memoryIterator.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
   }
 
 	/**
@@ -381,11 +568,36 @@ class DatabaseMessageStore implements MessageStore {
 	 *            If null, all messages are deleted
 	 */
 	@Override
-	public void clearArrivedMessages(String clientHandle) {
+	public synchronized void clearArrivedMessages(String clientHandle) {
 		
 		db = mqttDb.getWritableDatabase();
         String[] selectionArgs = new String[1];
         selectionArgs[0] = clientHandle;
+
+		// Pending discards and memory messages of the client are cleared as well
+		Iterator<String[]> discards = pendingDiscards.iterator();
+		while (discards.hasNext()) {
+			if (clientHandle == null || clientHandle.equals(discards.next()[1])) {
+				discards.remove();
+			}
+		}
+		Iterator<String> stored = storedIds.values().iterator();
+		while (stored.hasNext()) {
+			if (clientHandle == null || clientHandle.equals(stored.next())) {
+				stored.remove();
+			}
+		}
+		Iterator<DbStoredData> memory = memoryMessages.values().iterator();
+		while (memory.hasNext()) {
+			if (clientHandle == null || clientHandle.equals(memory.next().getClientHandle())) {
+				memory.remove();
+			}
+		}
+		if (clientHandle == null) {
+			arrivedCounts.clear();
+		} else {
+			arrivedCounts.put(clientHandle, 0);
+		}
 		
 		int rows = 0;
 		if (clientHandle == null) {
@@ -414,6 +626,7 @@ class DatabaseMessageStore implements MessageStore {
 		DbStoredData(String messageId, String clientHandle, String topic,
 				MqttMessage message) {
 			this.messageId = messageId;
+			this.clientHandle = clientHandle;
 			this.topic = topic;
 			this.message = message;
 		}
@@ -455,7 +668,13 @@ class DatabaseMessageStore implements MessageStore {
 	}
 
 	@Override
-	public void close() {
+	public synchronized void close() {
+		discardExecutor.shutdownNow();
+		try {
+			flushDiscards();
+		} catch (SQLException e) {
+			traceHandler.traceException(TAG, "close", e);
+		}
 		if (this.db!=null)
 			this.db.close();
 		
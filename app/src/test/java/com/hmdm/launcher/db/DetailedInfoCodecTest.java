@@ -0,0 +1,186 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.db;
+
+import com.hmdm.launcher.json.DetailedInfo;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DetailedInfoCodecTest {
+
+    // In-memory replacement of the info_history_strings table
+    private static class MemoryDictionary implements DetailedInfoCodec.StringDictionary {
+        private final Map<String, Long> ids = new HashMap<>();
+        private final Map<Long, String> values = new HashMap<>();
+
+        @Override
+        public long getId(String value) {
+            Long id = ids.get(value);
+            if (id == null) {
+                id = (long) ids.size() + 1;
+                ids.put(value, id);
+                values.put(id, value);
+            }
+            return id;
+        }
+
+        @Override
+        public String getValue(long id) {
+            return values.get(id);
+        }
+    }
+
+    private final MemoryDictionary dictionary = new MemoryDictionary();
+
+    @Test
+    public void keyframeRoundTrip() {
+        Object[] values = DetailedInfoCodec.flatten(sample(85, -60, 1000L, 55.75));
+        byte[] data = DetailedInfoCodec.encode(values, null, dictionary);
+        assertArrayEquals(values, DetailedInfoCodec.decode(data, null, dictionary));
+    }
+
+    @Test
+    public void deltaRoundTrip() {
+        Object[] base = DetailedInfoCodec.flatten(sample(85, -60, 1000L, 55.75));
+        // Negative and positive deltas, a value becoming null and a null becoming a value
+        DetailedInfo next = sample(84, -75, 250000L, 55.7501);
+        next.getDevice().setIp(null);
+        next.getGps().setProvider("network");
+        Object[] values = DetailedInfoCodec.flatten(next);
+
+        byte[] delta = DetailedInfoCodec.encode(values, base, dictionary);
+        byte[] keyframe = DetailedInfoCodec.encode(values, null, dictionary);
+        assertTrue("Delta must be shorter than keyframe", delta.length < keyframe.length);
+        assertArrayEquals(values, DetailedInfoCodec.decode(delta, base, dictionary));
+    }
+
+    @Test
+    public void unchangedSampleIsTwoBytes() {
+        Object[] values = DetailedInfoCodec.flatten(sample(50, -60, 1000L, 55.75));
+        // Empty bitmaps of changed and null fields
+        assertEquals(2, DetailedInfoCodec.encode(values, values, dictionary).length);
+    }
+
+    @Test
+    public void extremeLongValues() {
+        Object[] base = DetailedInfoCodec.flatten(sample(50, -60, Long.MIN_VALUE + 1, 0.0));
+        Object[] values = DetailedInfoCodec.flatten(sample(50, -60, Long.MAX_VALUE, 0.0));
+        assertArrayEquals(values, DetailedInfoCodec.decode(DetailedInfoCodec.encode(values, base, dictionary), base, dictionary));
+        assertArrayEquals(base, DetailedInfoCodec.decode(DetailedInfoCodec.encode(base, values, dictionary), values, dictionary));
+    }
+
+    @Test
+    public void chainDecodableAfterKeyframeRewrite() {
+        // Rows 1..3: a keyframe and two deltas, each against the previous row
+        Object[] values1 = DetailedInfoCodec.flatten(sample(90, -50, 1000L, 55.75));
+        Object[] values2 = DetailedInfoCodec.flatten(sample(89, -55, 2000L, 55.76));
+        Object[] values3 = DetailedInfoCodec.flatten(sample(87, -52, 3500L, 55.77));
+        byte[] row1 = DetailedInfoCodec.encode(values1, null, dictionary);
+        byte[] row2 = DetailedInfoCodec.encode(values2, values1, dictionary);
+        byte[] row3 = DetailedInfoCodec.encode(values3, values2, dictionary);
+
+        // Row 1 is deleted: row 2 is rewritten as a keyframe, as InfoHistoryCompactTable.deleteUpTo() does
+        Object[] decoded2 = DetailedInfoCodec.decode(row2, DetailedInfoCodec.decode(row1, null, dictionary), dictionary);
+        byte[] rewritten2 = DetailedInfoCodec.encode(decoded2, null, dictionary);
+
+        Object[] keyframe2 = DetailedInfoCodec.decode(rewritten2, null, dictionary);
+        assertArrayEquals(values2, keyframe2);
+        assertArrayEquals(values3, DetailedInfoCodec.decode(row3, keyframe2, dictionary));
+    }
+
+    @Test
+    public void flattenRoundTrip() {
+        DetailedInfo item = sample(42, -70, 123456789L, -33.8688);
+        item.setMobile2(null);
+        DetailedInfo restored = DetailedInfoCodec.unflatten(7, 1000, DetailedInfoCodec.flatten(item));
+
+        assertEquals(7, restored.getId());
+        assertEquals(1000, restored.getTs());
+        assertEquals(Integer.valueOf(42), restored.getDevice().getBatteryLevel());
+        assertEquals("AC", restored.getDevice().getBatteryCharging());
+        assertEquals(Integer.valueOf(2048), restored.getDevice().getMemoryTotal());
+        assertEquals(Integer.valueOf(-70), restored.getWifi().getRssi());
+        assertEquals(Long.valueOf(123456789L), restored.getWifi().getTx());
+        assertEquals(-33.8688, restored.getGps().getLat(), 0);
+        assertEquals("gps", restored.getGps().getProvider());
+        assertEquals("Carrier", restored.getMobile().getCarrier());
+        assertNull(restored.getMobile2().getCarrier());
+        assertNull(restored.getMobile2().getRssi());
+    }
+
+    private static DetailedInfo sample(int batteryLevel, int rssi, long tx, double lat) {
+        DetailedInfo item = new DetailedInfo();
+
+        DetailedInfo.Device device = new DetailedInfo.Device();
+        device.setBatteryLevel(batteryLevel);
+        device.setBatteryCharging("AC");
+        device.setWifi(true);
+        device.setGps(true);
+        device.setIp("10.0.0.2");
+        device.setKeyguard(false);
+        device.setRingVolume(5);
+        device.setMobileData(false);
+        device.setBluetooth(false);
+        device.setUsbStorage(false);
+        device.setMemoryTotal(2048);
+        device.setMemoryAvailable(512);
+        item.setDevice(device);
+
+        DetailedInfo.Wifi wifi = new DetailedInfo.Wifi();
+        wifi.setRssi(rssi);
+        wifi.setSsid("Office");
+        wifi.setSecurity("WPA2");
+        wifi.setState("connected");
+        wifi.setIp("10.0.0.2");
+        wifi.setTx(tx);
+        wifi.setRx(tx * 3);
+        item.setWifi(wifi);
+
+        DetailedInfo.Gps gps = new DetailedInfo.Gps();
+        gps.setState("on");
+        gps.setProvider("gps");
+        gps.setLat(lat);
+        gps.setLon(37.61);
+        gps.setAlt(150.0);
+        gps.setSpeed(0.0);
+        gps.setCourse(90.0);
+        item.setGps(gps);
+
+        DetailedInfo.Mobile mobile = new DetailedInfo.Mobile();
+        mobile.setRssi(-90);
+        mobile.setCarrier("Carrier");
+        mobile.setData(false);
+        mobile.setState("idle");
+        mobile.setSimState("ready");
+        mobile.setTx(0L);
+        mobile.setRx(0L);
+        item.setMobile(mobile);
+        item.setMobile2(new DetailedInfo.Mobile());
+        return item;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.json;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class JsonCodecTest {
+
+    @Test
+    public void cachedReaderMatchesFreshMapper() throws Exception {
+        byte[] config = readConfig();
+        ServerConfig fresh = new ObjectMapper().readValue(config, ServerConfig.class);
+        ServerConfig cached = JsonCodec.getServerConfigReader().readValue(config);
+
+        assertEquals(7, cached.getApplications().size());
+        assertEquals("Documents/labels.pdf", cached.getFiles().get(1).getPath());
+        assertEquals(JsonCodec.getServerConfigWriter().writeValueAsString(fresh),
+                JsonCodec.getServerConfigWriter().writeValueAsString(cached));
+    }
+
+    // Recorded configuration data (the "data" field of the server response)
+    private static byte[] readConfig() throws Exception {
+        InputStream inputStream = JsonCodecTest.class.getClassLoader().getResourceAsStream("server_config.json");
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        inputStream.close();
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.json;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class JsonMergePatchTest {
+
+    @Test
+    public void nullRemovesKey() throws Exception {
+        assertEquals(json("{'a':'b'}"), JsonMergePatch.apply(json("{'a':'b','c':'d'}"), json("{'c':null}")));
+        // Removing a missing key is not an error
+        assertEquals(json("{'a':'b'}"), JsonMergePatch.apply(json("{'a':'b'}"), json("{'x':null}")));
+    }
+
+    @Test
+    public void arraysAreReplaced() throws Exception {
+        assertEquals(json("{'a':['c']}"), JsonMergePatch.apply(json("{'a':['b','c']}"), json("{'a':['c']}")));
+        // Objects in arrays are not merged
+        assertEquals(json("{'a':[{'c':1}]}"), JsonMergePatch.apply(json("{'a':[{'b':1,'c':2}]}"), json("{'a':[{'c':1}]}")));
+        assertEquals(json("{'a':{'b':'c'}}"), JsonMergePatch.apply(json("{'a':['b']}"), json("{'a':{'b':'c'}}")));
+    }
+
+    @Test
+    public void nonObjectPatchReplacesTarget() throws Exception {
+        assertEquals(json("['c']"), JsonMergePatch.apply(json("{'a':'b'}"), json("['c']")));
+        assertEquals(json("'bar'"), JsonMergePatch.apply(json("{'a':'b'}"), json("'bar'")));
+        assertEquals(json("{'a':'c'}"), JsonMergePatch.apply(json("['b']"), json("{'a':'c'}")));
+    }
+
+    @Test
+    public void nestedObjectsAreMerged() throws Exception {
+        // The example from RFC 7386, section 3
+        JsonNode target = json("{'title':'Goodbye!','author':{'givenName':'John','familyName':'Doe'}," +
+                "'tags':['example','sample'],'content':'This will be unchanged'}");
+        JsonNode patch = json("{'title':'Hello!','phoneNumber':'+01-123-456-7890'," +
+                "'author':{'familyName':null},'tags':['example']}");
+        JsonNode expected = json("{'title':'Hello!','author':{'givenName':'John'},'tags':['example']," +
+                "'content':'This will be unchanged','phoneNumber':'+01-123-456-7890'}");
+        assertEquals(expected, JsonMergePatch.apply(target, patch));
+        // A null in the patch of a missing object is removed from the result
+        assertEquals(json("{'a':{'bb':{}}}"), JsonMergePatch.apply(json("{}"), json("{'a':{'bb':{'ccc':null}}}")));
+    }
+
+    @Test
+    public void hashIgnoresKeyOrder() throws Exception {
+        String hash = JsonMergePatch.getHash(json("{'b':1,'a':{'y':[3,{'q':true,'p':null}],'x':'s'}}"));
+        assertEquals(hash, JsonMergePatch.getHash(json("{'a':{'x':'s','y':[3,{'p':null,'q':true}]},'b':1}")));
+        // The order of array items is significant
+        assertNotEquals(hash, JsonMergePatch.getHash(json("{'b':1,'a':{'y':[{'q':true,'p':null},3],'x':'s'}}")));
+    }
+
+    @Test
+    public void hashOfCanonicalJson() throws Exception {
+        // Compact JSON with sorted keys, SHA-1 in upper case hex
+        String canonical = "{\"a\":[1,\"\\\"q\\\"\"],\"b\":{\"c\":false,\"d\":null}}";
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(canonical.getBytes("UTF-8"));
+        StringBuilder expected = new StringBuilder();
+        for (byte b : digest) {
+            expected.append(String.format("%02X", b));
+        }
+        assertEquals(expected.toString(), JsonMergePatch.getHash(json("{ 'b': { 'd': null, 'c': false }, 'a': [ 1, '\\\"q\\\"' ] }")));
+    }
+
+    // Single quotes are used in the tests for readability
+    private static JsonNode json(String value) throws Exception {
+        return JsonCodec.getMapper().readTree(value.replace('\'', '"'));
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.server;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.JsonCodec;
+import com.hmdm.launcher.json.JsonMergePatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.jackson.JacksonConverterFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigDeltaSyncTest {
+    private static final String KNOWN_HASH = "\"0123456789ABCDEF0123456789ABCDEF01234567\"";
+    private static final String CONFIG_PATH = "/project/rest/public/sync/configuration/device";
+
+    private static final String BASE = "{'title':'Kiosk','backgroundColor':'#000000','kioskMode':false," +
+            "'applications':[{'pkg':'com.example.a','version':'1.0'}]}";
+    private static final String PATCH = "{'title':'Store','kioskMode':null," +
+            "'applications':[{'pkg':'com.example.b','version':'2.0'}]}";
+    private static final String FULL = "{'title':'Full','backgroundColor':'#FFFFFF','kioskMode':true," +
+            "'applications':[]}";
+
+    private MockWebServer server;
+    private ConfigDeltaSync sync;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        ServerService serverService = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addConverterFactory(JacksonConverterFactory.create(JsonCodec.getMapper()))
+                .build()
+                .create(ServerService.class);
+        // The signature is verified by GetServerConfigTask, here only the data is read
+        sync = new ConfigDeltaSync(
+                (hash, deltaFormat) -> serverService.getServerConfigRaw("project", "device",
+                        "signature", "arm64-v8a", hash, deltaFormat).execute(),
+                ConfigDeltaSyncTest::readData);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    @Test
+    public void deltaApplied() throws Exception {
+        JsonNode expected = JsonMergePatch.apply(json(BASE), json(PATCH));
+        String hash = JsonMergePatch.getHash(expected);
+        server.enqueue(delta(PATCH, hash));
+
+        assertEquals(expected, sync.fetch(KNOWN_HASH, json(BASE)));
+        assertTrue(sync.isPatched());
+        assertEquals(entityTag(expected), sync.getConfigHash());
+        assertEquals(1, server.getRequestCount());
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals(CONFIG_PATH, request.getPath());
+        assertEquals(KNOWN_HASH, request.getHeader(ServerService.IF_NONE_MATCH_HEADER));
+        assertEquals(Const.CONFIG_DELTA_FORMAT, request.getHeader(Const.HEADER_CONFIG_DELTA));
+    }
+
+    @Test
+    public void hashMismatchFallsBackToFullConfig() throws Exception {
+        server.enqueue(delta(PATCH, "0000000000000000000000000000000000000000"));
+        server.enqueue(full(FULL));
+
+        assertEquals(json(FULL), sync.fetch(KNOWN_HASH, json(BASE)));
+        assertFalse(sync.isPatched());
+        assertEquals(entityTag(json(FULL)), sync.getConfigHash());
+        assertEquals(2, server.getRequestCount());
+        server.takeRequest();
+        assertFullRequest(server.takeRequest());
+    }
+
+    @Test
+    public void fullThenDeltaThenNotModified() throws Exception {
+        // The server knows its config versions by the canonical hash only (no ETag)
+        JsonNode patched = JsonMergePatch.apply(json(BASE), json(PATCH));
+        server.enqueue(full(BASE));
+        server.enqueue(delta(PATCH, JsonMergePatch.getHash(patched)));
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        // First start: no stored config
+        JsonNode config = sync.fetch(null, null);
+        assertEquals(json(BASE), config);
+        String configHash = sync.getConfigHash();
+        assertEquals(entityTag(json(BASE)), configHash);
+        assertFullRequest(server.takeRequest());
+
+        // The hash of the full config is recognized by the server, which responds by a delta
+        config = sync.fetch(configHash, config);
+        assertEquals(patched, config);
+        assertTrue(sync.isPatched());
+        RecordedRequest request = server.takeRequest();
+        assertEquals(configHash, request.getHeader(ServerService.IF_NONE_MATCH_HEADER));
+        assertEquals(Const.CONFIG_DELTA_FORMAT, request.getHeader(Const.HEADER_CONFIG_DELTA));
+
+        // The hash of the patched config is recognized as well
+        configHash = sync.getConfigHash();
+        assertEquals(entityTag(patched), configHash);
+        assertNull(sync.fetch(configHash, config));
+        assertTrue(sync.isNotModified());
+        assertEquals(configHash, server.takeRequest().getHeader(ServerService.IF_NONE_MATCH_HEADER));
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void notModified() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(304));
+
+        assertNull(sync.fetch(KNOWN_HASH, json(BASE)));
+        assertTrue(sync.isNotModified());
+        assertNull(sync.getErrorText());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void unexpectedDeltaFallsBackToFullConfig() throws Exception {
+        // No config base stored: the delta is not requested, but the server sends it
+        server.enqueue(delta(PATCH, JsonMergePatch.getHash(json(PATCH))));
+        server.enqueue(full(FULL));
+
+        assertEquals(json(FULL), sync.fetch(KNOWN_HASH, null));
+        assertFalse(sync.isPatched());
+        assertEquals(entityTag(json(FULL)), sync.getConfigHash());
+        assertEquals(2, server.getRequestCount());
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals(KNOWN_HASH, request.getHeader(ServerService.IF_NONE_MATCH_HEADER));
+        assertNull(request.getHeader(Const.HEADER_CONFIG_DELTA));
+        assertFullRequest(server.takeRequest());
+    }
+
+    @Test
+    public void deltaToFullRequestIsError() throws Exception {
+        server.enqueue(delta(PATCH, null));
+        server.enqueue(delta(PATCH, null));
+
+        assertNull(sync.fetch(KNOWN_HASH, json(BASE)));
+        assertNotNull(sync.getErrorText());
+        assertFalse(sync.isNotModified());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    private static void assertFullRequest(RecordedRequest request) {
+        assertEquals(CONFIG_PATH, request.getPath());
+        assertNull(request.getHeader(ServerService.IF_NONE_MATCH_HEADER));
+        assertNull(request.getHeader(Const.HEADER_CONFIG_DELTA));
+    }
+
+    private static MockResponse full(String data) {
+        return new MockResponse().setBody("{\"status\":\"OK\",\"message\":null,\"data\":" + data.replace('\'', '"') + "}");
+    }
+
+    private static MockResponse delta(String patch, String hash) {
+        MockResponse response = full(patch).addHeader(Const.HEADER_CONFIG_DELTA, Const.CONFIG_DELTA_FORMAT);
+        return hash != null ? response.addHeader(Const.HEADER_CONFIG_HASH, hash) : response;
+    }
+
+    private static String entityTag(JsonNode config) throws Exception {
+        return "\"" + JsonMergePatch.getHash(config) + "\"";
+    }
+
+    private static JsonNode readData(Response<ResponseBody> response) throws Exception {
+        return JsonCodec.getMapper().readTree(response.body().bytes()).get("data");
+    }
+
+    // Single quotes are used in the tests for readability
+    private static JsonNode json(String value) throws Exception {
+        return JsonCodec.getMapper().readTree(value.replace('\'', '"'));
+    }
+}
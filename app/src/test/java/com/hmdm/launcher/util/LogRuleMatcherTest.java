@@ -0,0 +1,117 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import com.hmdm.launcher.Const;
+import com.hmdm.launcher.json.RemoteLogConfig;
+import com.hmdm.launcher.json.RemoteLogItem;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogRuleMatcherTest {
+    private static final String PKG = "com.example.app";
+
+    @Test
+    public void overlappingFiltersMatch() {
+        // "she", "he" and "hers" overlap in "ushers"; "his" doesn't occur
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Arrays.asList(
+                rule(PKG, Const.LOG_ERROR, "his"),
+                rule(PKG, Const.LOG_ERROR, "she"),
+                rule(PKG, Const.LOG_INFO, "he"),
+                rule(PKG, Const.LOG_WARN, "hers")));
+
+        assertTrue(matcher.match(item(PKG, Const.LOG_INFO, "ushers")));
+        assertTrue(matcher.match(item(PKG, Const.LOG_WARN, "ushers")));
+        assertTrue(matcher.match(item(PKG, Const.LOG_ERROR, "ushers")));
+        assertFalse(matcher.match(item(PKG, Const.LOG_DEBUG, "ushers")));
+    }
+
+    @Test
+    public void filterFoundThroughFailureLink() {
+        // After "abcd" fails on 'x', the failure link leads to "cd" which continues to "cdx"
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Arrays.asList(
+                rule(PKG, Const.LOG_INFO, "abcde"),
+                rule(PKG, Const.LOG_INFO, "cdx")));
+
+        assertTrue(matcher.match(item(PKG, Const.LOG_INFO, "xxabcdxx")));
+        assertTrue(matcher.match(item(PKG, Const.LOG_INFO, "abcde")));
+        assertFalse(matcher.match(item(PKG, Const.LOG_INFO, "abcd")));
+    }
+
+    @Test
+    public void levelOfSuffixFilterApplies() {
+        // "error" is a suffix of "fatal error": its more verbose level must be taken into account
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Arrays.asList(
+                rule(PKG, Const.LOG_ERROR, "fatal error"),
+                rule(PKG, Const.LOG_INFO, "error")));
+
+        assertTrue(matcher.match(item(PKG, Const.LOG_INFO, "a fatal error occurred")));
+        assertTrue(matcher.match(item(PKG, Const.LOG_ERROR, "a fatal error occurred")));
+        assertFalse(matcher.match(item(PKG, Const.LOG_INFO, "a fatal failure")));
+    }
+
+    @Test
+    public void caseInsensitiveForAscii() {
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Collections.singletonList(rule(PKG, Const.LOG_INFO, "Timeout")));
+
+        assertTrue(matcher.match(item(PKG, Const.LOG_INFO, "CONNECTION TIMEOUT")));
+        assertTrue(matcher.match(item(PKG, Const.LOG_INFO, "timeout")));
+        assertFalse(matcher.match(item(PKG, Const.LOG_INFO, "time out")));
+    }
+
+    @Test
+    public void unfilteredRuleAndPackages() {
+        LogRuleMatcher matcher = LogRuleMatcher.compile(Arrays.asList(
+                rule(PKG, Const.LOG_WARN, null),
+                rule(PKG, Const.LOG_DEBUG, "trace"),
+                rule("com.example.other", Const.LOG_ERROR, "")));
+
+        assertTrue(matcher.match(item(PKG, Const.LOG_WARN, "anything")));
+        assertFalse(matcher.match(item(PKG, Const.LOG_INFO, "anything")));
+        assertTrue(matcher.match(item(PKG, Const.LOG_DEBUG, "stack trace")));
+        assertTrue(matcher.match(item("com.example.other", Const.LOG_ERROR, null)));
+        assertFalse(matcher.match(item("com.example.other", Const.LOG_WARN, "message")));
+        assertFalse(matcher.match(item("com.example.unknown", Const.LOG_ERROR, "message")));
+        assertFalse(matcher.match(item(null, Const.LOG_ERROR, "message")));
+        assertFalse(LogRuleMatcher.EMPTY.match(item(PKG, Const.LOG_ERROR, "message")));
+    }
+
+    private static RemoteLogConfig rule(String packageId, int level, String filter) {
+        RemoteLogConfig rule = new RemoteLogConfig();
+        rule.setPackageId(packageId);
+        rule.setLogLevel(level);
+        rule.setFilter(filter);
+        return rule;
+    }
+
+    private static RemoteLogItem item(String packageId, int level, String message) {
+        RemoteLogItem item = new RemoteLogItem();
+        item.setPackageId(packageId);
+        item.setLogLevel(level);
+        item.setMessage(message);
+        return item;
+    }
+}
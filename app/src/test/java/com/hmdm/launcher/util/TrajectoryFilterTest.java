@@ -0,0 +1,216 @@
+/*
+ * Headwind MDM: Open Source Android MDM Software
+ * https://h-mdm.com
+ *
+ * Copyright (C) 2019 Headwind Solutions LLC (http://h-sms.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmdm.launcher.util;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrajectoryFilterTest {
+    private static final float TOLERANCE = 10;
+    private static final long MINUTE_MS = 60 * 1000L;
+
+    // Meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+    private static final double START_LAT = 55.0;
+    private static final double START_LON = 37.0;
+
+    // Framework stubs return default values in local tests (see testOptions in build.gradle),
+    // so the location fields are kept here
+    private static class TestLocation extends Location {
+        private final long time;
+        private final double latitude;
+        private final double longitude;
+        private final float accuracy;
+
+        TestLocation(long time, double north, double east, float accuracy) {
+            super("test");
+            this.time = time;
+            this.latitude = START_LAT + north / METERS_PER_DEGREE;
+            this.longitude = START_LON + east / (METERS_PER_DEGREE * Math.cos(Math.toRadians(START_LAT)));
+            this.accuracy = accuracy;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+
+        @Override
+        public boolean hasAccuracy() {
+            return true;
+        }
+
+        @Override
+        public float getAccuracy() {
+            return accuracy;
+        }
+    }
+
+    @Test
+    public void straightRouteStoresVertexOnly() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        Location start = fix(0, 0, 0);
+        assertEquals(Collections.singletonList(start), filter.offer(start));
+
+        // Points within the tolerance of the segment from the start are not stored
+        assertTrue(filter.offer(fix(1, 100, 0)).isEmpty());
+        assertTrue(filter.offer(fix(2, 200, 3)).isEmpty());
+        Location corner = fix(3, 300, 0);
+        assertTrue(filter.offer(corner).isEmpty());
+
+        // The route turns: the previous point is stored
+        assertEquals(Collections.singletonList(corner), filter.offer(fix(4, 300, 100)));
+        assertEquals(2, filter.getStoredCount());
+        assertEquals(5, filter.getReceivedCount());
+    }
+
+    @Test
+    public void deviationWithinToleranceIsDropped() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        filter.offer(fix(0, 0, 0));
+        filter.offer(fix(1, 100, 0));
+        // 8 m aside of the straight line from the start to the last point
+        filter.offer(fix(2, 200, 8));
+        assertTrue(filter.offer(fix(3, 400, 0)).isEmpty());
+        assertEquals(1, filter.getStoredCount());
+    }
+
+    @Test
+    public void stationaryDeviceStoresHeartbeat() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        filter.offer(fix(0, 0, 0));
+        for (int minute = 5; minute < 60; minute += 5) {
+            // GPS jitter within the tolerance
+            assertTrue(filter.offer(fix(minute, minute % 2 == 0 ? 4 : -4, 3)).isEmpty());
+        }
+        Location heartbeat = fix(TrajectoryFilter.HEARTBEAT_MS / MINUTE_MS, 2, -2);
+        assertEquals(Collections.singletonList(heartbeat), filter.offer(heartbeat));
+    }
+
+    @Test
+    public void movingDeviceFlushedByHeartbeat() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        filter.offer(fix(0, 0, 0));
+        long minutes = TrajectoryFilter.HEARTBEAT_MS / MINUTE_MS;
+        for (int minute = 1; minute < minutes; minute++) {
+            assertTrue(filter.offer(fix(minute, minute * 100, 0)).isEmpty());
+        }
+        // The newest point of a straight route is stored when the heartbeat period expires
+        Location last = fix(minutes, minutes * 100, 0);
+        assertEquals(Collections.singletonList(last), filter.offer(last));
+    }
+
+    @Test
+    public void stopPointStoredAfterStationaryTimeout() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        filter.offer(fix(0, 0, 0));
+        for (int minute = 1; minute < 10; minute++) {
+            assertTrue(filter.offer(fix(minute, minute * 100, 0)).isEmpty());
+        }
+        Location stop = fix(10, 1000, 0);
+        assertTrue(filter.offer(stop).isEmpty());
+
+        // GPS jitter around the stop point
+        long stopMinute = 10 + TrajectoryFilter.STOP_MS / MINUTE_MS;
+        for (long minute = 11; minute < stopMinute; minute++) {
+            assertTrue(filter.offer(fix(minute, minute % 2 == 0 ? 1004 : 996, 3)).isEmpty());
+        }
+        assertEquals(Collections.singletonList(stop), filter.offer(fix(stopMinute, 1002, -2)));
+
+        // Then the device is stationary at the stored point
+        assertTrue(filter.offer(fix(stopMinute + 1, 997, 2)).isEmpty());
+        assertEquals(2, filter.getStoredCount());
+    }
+
+    @Test
+    public void lastPointStoredWhenFixesStop() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        filter.offer(fix(0, 0, 0));
+        filter.offer(fix(1, 100, 0));
+        Location last = fix(2, 200, 0);
+        filter.offer(last);
+
+        long lastTime = 2 * MINUTE_MS;
+        assertTrue(filter.flushIdle(lastTime + TrajectoryFilter.STOP_MS - 1).isEmpty());
+        assertEquals(Collections.singletonList(last), filter.flushIdle(lastTime + TrajectoryFilter.STOP_MS));
+        assertTrue(filter.flushIdle(lastTime + 2 * TrajectoryFilter.STOP_MS).isEmpty());
+    }
+
+    @Test
+    public void fixAfterGapStoresLastPointFirst() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        filter.offer(fix(0, 0, 0));
+        filter.offer(fix(1, 100, 0));
+        Location last = fix(2, 200, 0);
+        filter.offer(last);
+
+        // The route continues in the same direction after the gap, but the point before the gap is a stop
+        long minute = 2 + TrajectoryFilter.STOP_MS / MINUTE_MS;
+        assertEquals(Collections.singletonList(last), filter.offer(fix(minute, 500, 0)));
+        assertTrue(filter.offer(fix(minute + 1, 600, 0)).isEmpty());
+    }
+
+    @Test
+    public void gateDropsBadFixes() {
+        TrajectoryFilter filter = new TrajectoryFilter(TOLERANCE);
+        // Too inaccurate to start the route
+        assertTrue(filter.offer(new TestLocation(0, 0, 0, TrajectoryFilter.MAX_ACCURACY + 1)).isEmpty());
+        filter.offer(fix(0, 0, 0));
+
+        // A network fix shortly after a GPS fix, and a fix older than the last one: both far away
+        filter.offer(new TestLocation(30 * 1000L, 1000, 0, 50));
+        filter.offer(new TestLocation(-1, 0, 1000, 5));
+
+        // Had any of them passed, it would be stored as a vertex before the heartbeat point
+        Location heartbeat = fix(TrajectoryFilter.HEARTBEAT_MS / MINUTE_MS, 0, 0);
+        List<Location> stored = filter.offer(heartbeat);
+        assertEquals(Collections.singletonList(heartbeat), stored);
+        assertEquals(2, filter.getStoredCount());
+    }
+
+    @Test
+    public void zeroToleranceStoresAll() {
+        TrajectoryFilter filter = new TrajectoryFilter(0);
+        for (int minute = 0; minute < 5; minute++) {
+            assertEquals(1, filter.offer(fix(minute, 0, 0)).size());
+        }
+    }
+
+    private static Location fix(long minute, double north, double east) {
+        return new TestLocation(minute * MINUTE_MS, north, east, 5);
+    }
+}